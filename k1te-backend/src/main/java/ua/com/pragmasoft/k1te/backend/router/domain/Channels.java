@@ -1,8 +1,14 @@
 /* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
 package ua.com.pragmasoft.k1te.backend.router.domain;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.stream.Stream;
+
 public interface Channels {
 
+  int MEMBERS_PAGE_SIZE = 100;
+
   Member hostChannel(String channel, String memberId, String ownerConnection, String title);
 
   Member dropChannel(String ownerConnection);
@@ -22,4 +28,47 @@ public interface Channels {
   String findUnAnsweredMessage(Member from, Member to);
 
   Member switchConnection(String channelName, String memberId, String newConnection);
+
+  /**
+   * Finds the member of the connection together with its current peer. Implementations may resolve
+   * both in fewer round trips than two separate lookups.
+   */
+  default Route findRoute(String memberConnection) {
+    Member from = this.find(memberConnection);
+    return new Route(from, this.find(from.getChannelName(), from.getPeerMemberId()));
+  }
+
+  /**
+   * Finds the route like {@link #findRoute(String)}, without blocking the calling thread on the
+   * storage round trips. By default the route is found in the calling thread. Tracked members may
+   * be changed when the stage completes, so the instance is not used until then.
+   */
+  default CompletionStage<Route> findRouteAsync(String memberConnection) {
+    try {
+      return CompletableFuture.completedFuture(this.findRoute(memberConnection));
+    } catch (RuntimeException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  /**
+   * Streams members of the channel, reading them page by page, so large channels are never loaded
+   * at once. Streamed members are not tracked, their changes are not persisted.
+   */
+  Stream<Member> members(String channelName);
+
+  /**
+   * Makes member, obtained outside of this instance, tracked by it, so its changes are persisted on
+   * {@link #flush()}.
+   *
+   * @return tracked member, may be a different instance if the same member is already tracked
+   */
+  default Member attach(Member member) {
+    return member;
+  }
+
+  /** Persists changes of the tracked members */
+  default void flush() {}
+
+  record Route(Member from, Member to) {}
 }
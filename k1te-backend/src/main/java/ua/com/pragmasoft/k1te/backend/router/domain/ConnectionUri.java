@@ -0,0 +1,110 @@
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.backend.router.domain;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Connection uri parsed once into the connector id and the raw connection. Connector ids are
+ * canonical instances, so parsing uri of the known connector doesn't allocate the id.
+ */
+public final class ConnectionUri {
+
+  private static final char SEPARATOR = ':';
+
+  private static volatile String[] connectorIds = {};
+
+  private final String connectorId;
+  private final String rawConnection;
+  private final String value;
+
+  private ConnectionUri(String connectorId, String rawConnection, String value) {
+    this.connectorId = connectorId;
+    this.rawConnection = rawConnection;
+    this.value = value;
+  }
+
+  /**
+   * @throws IndexOutOfBoundsException if uri has no connector id separator
+   */
+  public static ConnectionUri parse(String connectionUri) {
+    int separator = separator(connectionUri);
+    return new ConnectionUri(
+        connectorId(connectionUri, separator),
+        connectionUri.substring(separator + 1),
+        connectionUri);
+  }
+
+  public static ConnectionUri of(String connectorId, String rawConnection) {
+    return new ConnectionUri(
+        canonical(connectorId), rawConnection, connectorId + SEPARATOR + rawConnection);
+  }
+
+  /** Connector id of the uri, without parsing the rest of it */
+  public static String connectorIdOf(String connectionUri) {
+    int separator = connectionUri.indexOf(SEPARATOR);
+    return connectorId(connectionUri, separator < 0 ? connectionUri.length() : separator);
+  }
+
+  /**
+   * @throws IndexOutOfBoundsException if uri has no connector id separator
+   */
+  public static String rawConnectionOf(String connectionUri) {
+    return connectionUri.substring(separator(connectionUri) + 1);
+  }
+
+  public String connectorId() {
+    return this.connectorId;
+  }
+
+  public String rawConnection() {
+    return this.rawConnection;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return this == o || (o instanceof ConnectionUri other && this.value.equals(other.value));
+  }
+
+  @Override
+  public int hashCode() {
+    return this.value.hashCode();
+  }
+
+  /** Returns the uri string */
+  @Override
+  public String toString() {
+    return this.value;
+  }
+
+  private static int separator(String connectionUri) {
+    int separator = connectionUri.indexOf(SEPARATOR);
+    Objects.checkIndex(separator, connectionUri.length());
+    return separator;
+  }
+
+  private static String connectorId(String connectionUri, int length) {
+    for (String id : connectorIds) {
+      if (id.length() == length && connectionUri.startsWith(id)) {
+        return id;
+      }
+    }
+    return canonical(connectionUri.substring(0, length));
+  }
+
+  private static synchronized String canonical(String connectorId) {
+    String[] ids = connectorIds;
+    for (String id : ids) {
+      if (id.equals(connectorId)) {
+        return id;
+      }
+    }
+    // ids come from the connector uris, so there are only a few of them
+    if (ids.length < 16) {
+      ids = Arrays.copyOf(ids, ids.length + 1);
+      ids[ids.length - 1] = connectorId;
+      connectorIds = ids;
+    }
+    return connectorId;
+  }
+}
@@ -1,7 +1,6 @@
 /* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
 package ua.com.pragmasoft.k1te.backend.router.domain;
 
-import java.util.Objects;
 import ua.com.pragmasoft.k1te.backend.shared.KiteException;
 
 public interface Connector {
@@ -10,18 +9,24 @@ public interface Connector {
 
   void dispatch(RoutingContext context) throws KiteException;
 
+  /**
+   * Delivers the message of the channel broadcast. Broadcast deliveries run in parallel, outside of
+   * the request scope, so they must not use channels or other request scoped beans. By default the
+   * message is dispatched as usual.
+   */
+  default void dispatchBroadcast(RoutingContext context) throws KiteException {
+    this.dispatch(context);
+  }
+
   default String connectionUri(String rawConnection) {
     return id() + ':' + rawConnection;
   }
 
   static String rawConnection(String connectionUri) {
-    var array = connectionUri.split(":", 2);
-    Objects.checkIndex(1, array.length);
-    return array[1];
+    return ConnectionUri.rawConnectionOf(connectionUri);
   }
 
   static String connectorId(String connectionUri) {
-    var array = connectionUri.split(":", 2);
-    return array[0];
+    return ConnectionUri.connectorIdOf(connectionUri);
   }
 }
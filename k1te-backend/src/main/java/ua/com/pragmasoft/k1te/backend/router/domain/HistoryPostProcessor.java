@@ -1,12 +1,10 @@
 /* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
 package ua.com.pragmasoft.k1te.backend.router.domain;
 
-import ua.com.pragmasoft.k1te.backend.ws.PayloadEncoder;
 import ua.com.pragmasoft.k1te.backend.ws.WsConnector;
 
 public class HistoryPostProcessor implements RouterPostProcessor {
 
-  private static final PayloadEncoder ENCODER = new PayloadEncoder();
   private final Messages messages;
 
   public HistoryPostProcessor(Messages messages) {
@@ -20,10 +18,12 @@ public class HistoryPostProcessor implements RouterPostProcessor {
     if (!messageId.equals("-")) { // do nothing if it's join/left/switch/selfMessage messages
       String ownerMessageId;
       String toMessageId;
-      if (Connector.connectorId(ctx.originConnection).equals(WsConnector.WS)) {
+      ConnectionUri origin = ctx.origin();
+      ConnectionUri destination = ctx.destination();
+      if (origin.connectorId().equals(WsConnector.WS)) {
         ownerMessageId = destinationMessageId;
         toMessageId = destinationMessageId;
-      } else if (Connector.connectorId(ctx.destinationConnection).equals(WsConnector.WS)) {
+      } else if (destination.connectorId().equals(WsConnector.WS)) {
         ownerMessageId = messageId;
         toMessageId = messageId;
       } else {
@@ -33,10 +33,10 @@ public class HistoryPostProcessor implements RouterPostProcessor {
 
       Member from = ctx.from;
       Member to = ctx.to;
-      from.updateConnection(ctx.originConnection, ownerMessageId, ctx.response.delivered());
-      to.updateConnection(ctx.destinationConnection, toMessageId, ctx.response.delivered());
+      from.updateConnection(origin, ownerMessageId, ctx.response.delivered());
+      to.updateConnection(destination, toMessageId, ctx.response.delivered());
 
-      String content = ENCODER.apply(ctx.request);
+      String content = ctx.encodedRequest();
       if (from.isHost()) {
         this.messages.persist(to, toMessageId, content, ctx.response.delivered());
       } else {
@@ -3,28 +3,37 @@ package ua.com.pragmasoft.k1te.backend.router.domain;
 
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ua.com.pragmasoft.k1te.backend.router.domain.payload.MessageAck;
 import ua.com.pragmasoft.k1te.backend.shared.KiteException;
 import ua.com.pragmasoft.k1te.backend.shared.NotFoundException;
 import ua.com.pragmasoft.k1te.backend.shared.RoutingException;
-import ua.com.pragmasoft.k1te.backend.ws.PayloadEncoder;
+import ua.com.pragmasoft.k1te.backend.shared.ValidationException;
 
-public class KiteRouter implements Router {
+public class KiteRouter implements Router, AutoCloseable {
 
   private static final Logger log = LoggerFactory.getLogger(KiteRouter.class);
-  private static final PayloadEncoder ENCODER = new PayloadEncoder();
 
   public static final String CONNECTOR_ID = "k1te";
 
   public static final String ATTR_FROM = "k1te.member.from";
   public static final String ATTR_TO = "k1te.member.to";
 
+  /** Max number of concurrent deliveries of the broadcast */
+  public static final int BROADCAST_PARALLELISM = 32;
+
   private final List<RouterPostProcessor> postProcessors;
-  private final Map<String, Connector> connectors = new HashMap<>(8);
+
+  /** Immutable snapshot, replaced on registration, so lookups don't lock */
+  private volatile Map<String, Connector> connectors = Map.of();
+
   private final Channels channels;
   private final Messages messages;
+  private final Executor postProcessingExecutor;
+  private final MemberMailboxes mailboxes;
 
   /**
    * @param channels
@@ -32,15 +41,73 @@ public class KiteRouter implements Router {
    */
   public KiteRouter(
       Channels channels, List<RouterPostProcessor> postProcessors, Messages messages) {
+    this(channels, postProcessors, messages, null);
+  }
+
+  /**
+   * @param channels
+   * @param postProcessors
+   * @param messages
+   * @param postProcessingExecutor executor to run post processors of {@link
+   *     #dispatchAsync(RoutingContext)} on, or null to run them on the dispatching thread
+   */
+  public KiteRouter(
+      Channels channels,
+      List<RouterPostProcessor> postProcessors,
+      Messages messages,
+      Executor postProcessingExecutor) {
+    this(channels, postProcessors, messages, postProcessingExecutor, null);
+  }
+
+  /**
+   * @param channels
+   * @param postProcessors
+   * @param messages
+   * @param postProcessingExecutor
+   * @param mailboxes when present, messages are delivered and post processed in the mailbox of the
+   *     destination member, so messages to the same member are handled in order, and messages to
+   *     different members in parallel. Members are still resolved on the dispatching thread.
+   */
+  public KiteRouter(
+      Channels channels,
+      List<RouterPostProcessor> postProcessors,
+      Messages messages,
+      Executor postProcessingExecutor,
+      MemberMailboxes mailboxes) {
     Objects.requireNonNull(postProcessors, "Post processors");
     this.channels = channels;
     this.messages = messages;
     this.postProcessors = postProcessors;
+    this.postProcessingExecutor = postProcessingExecutor;
+    this.mailboxes = mailboxes;
+  }
+
+  /**
+   * Creates executor suitable for post processing. Its queue is bounded, when it is full the
+   * dispatching thread runs post processors itself, which slows down producers instead of
+   * accumulating unbounded backlog.
+   */
+  public static ExecutorService postProcessingExecutor(int threads, int queueCapacity) {
+    final var counter = new AtomicInteger();
+    return new ThreadPoolExecutor(
+        threads,
+        threads,
+        60L,
+        TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(queueCapacity),
+        r -> {
+          Thread t = new Thread(r, "k1te-post-processor-" + counter.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        },
+        new ThreadPoolExecutor.CallerRunsPolicy());
   }
 
   @Override
   public synchronized Router registerConnector(Connector connector) {
-    this.connectors.put(connector.id(), connector);
+    var updated = new HashMap<>(this.connectors);
+    updated.put(connector.id(), connector);
+    this.connectors = Map.copyOf(updated);
     return this;
   }
 
@@ -51,11 +118,243 @@ public class KiteRouter implements Router {
 
   @Override
   public void dispatch(RoutingContext ctx) throws KiteException {
+    if (null != this.mailboxes) {
+      this.resolve(ctx);
+      join(
+          this.mailboxes.execute(
+              ctx.to,
+              () -> {
+                if (this.deliver(ctx)) {
+                  this.postProcess(ctx);
+                }
+              }));
+      return;
+    }
+    if (this.deliver(ctx)) {
+      this.postProcess(ctx);
+    }
+  }
+
+  /**
+   * Finds the route with {@link Channels#findRouteAsync(String)}, then delivers the message on the
+   * dispatching thread, since channels and connectors may depend on its context. Message to the
+   * offline member is added to its history with {@link Messages#persistAsync(Member, String,
+   * String, Instant)}.
+   */
+  @Override
+  public CompletionStage<MessageAck> dispatchAsync(RoutingContext ctx) {
+    try {
+      this.resolveAsync(ctx).toCompletableFuture().join();
+    } catch (CompletionException e) {
+      return CompletableFuture.failedFuture(null != e.getCause() ? e.getCause() : e);
+    }
+    return this.dispatchResolved(ctx);
+  }
+
+  private CompletionStage<MessageAck> dispatchResolved(RoutingContext ctx) {
+    if (null != this.mailboxes) {
+      return this.dispatchToMailbox(ctx);
+    }
+    try {
+      if (this.isOffline(ctx)) {
+        return this.persistForOffline(ctx);
+      }
+      if (this.deliver(ctx) && !this.postProcessors.isEmpty()) {
+        if (null == this.postProcessingExecutor) {
+          this.postProcess(ctx);
+        } else {
+          this.postProcessingExecutor.execute(() -> this.postProcessSafely(ctx));
+        }
+      }
+      return CompletableFuture.completedFuture(ctx.response);
+    } catch (RejectedExecutionException rejected) {
+      log.warn("Post processing executor rejected task, running in place");
+      this.postProcess(ctx);
+      return CompletableFuture.completedFuture(ctx.response);
+    } catch (KiteException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  /**
+   * Reads channel members page by page. Online members of the page are grouped by connector and
+   * delivered to in parallel, at most {@value #BROADCAST_PARALLELISM} at once, on virtual threads,
+   * with {@link Connector#dispatchBroadcast(RoutingContext)}. Once deliveries of the page complete,
+   * the message is added to the history of every member of the page with one batched write, and
+   * the connections it was delivered to are updated in the calling thread, so it isn't replayed to
+   * them on reconnect. Members of the page are flushed before the next page is read.
+   */
+  @Override
+  public BroadcastResult broadcast(RoutingContext ctx) throws KiteException {
+    if (null == ctx.from) {
+      this.resolveOrigin(ctx);
+    }
+    final Member host = ctx.from;
+    if (!host.isHost()) {
+      throw new ValidationException("Only host member can broadcast to its channel");
+    }
+    final String content = ctx.encodedRequest();
+    final String messageId = ctx.request.messageId();
+    final Instant time = Instant.now();
+    final var permits = new Semaphore(BROADCAST_PARALLELISM);
+    final var delivered = new AtomicInteger();
+    final var failed = new AtomicInteger();
+    int members = 0;
+    try (var deliveries = Executors.newVirtualThreadPerTaskExecutor();
+        var stream = this.channels.members(host.getChannelName())) {
+      Iterator<Member> iterator =
+          stream.filter(member -> !member.getId().equals(host.getId())).iterator();
+      List<Member> page = new ArrayList<>(Channels.MEMBERS_PAGE_SIZE);
+      while (iterator.hasNext()) {
+        page.add(iterator.next());
+        if (page.size() == Channels.MEMBERS_PAGE_SIZE || !iterator.hasNext()) {
+          Map<String, List<Member>> online = new HashMap<>();
+          for (Member member : page) {
+            String connectionUri = member.getConnectionUri();
+            if (null != connectionUri) {
+              online
+                  .computeIfAbsent(Connector.connectorId(connectionUri), id -> new ArrayList<>())
+                  .add(member);
+            }
+          }
+          Queue<RoutingContext> deliveredTo = new ConcurrentLinkedQueue<>();
+          List<Future<?>> pageDeliveries = new ArrayList<>(page.size());
+          online.forEach(
+              (connectorId, destinations) -> {
+                Connector connector = this.connectors.get(connectorId);
+                if (null == connector) {
+                  log.warn("No connector with id {}", connectorId);
+                  failed.addAndGet(destinations.size());
+                  return;
+                }
+                for (Member member : destinations) {
+                  var memberCtx =
+                      RoutingContext.create()
+                          .withOriginConnection(ctx.originConnection)
+                          .withFrom(host)
+                          .withTo(member)
+                          .withDestinationConnection(member.getConnectionUri())
+                          .withRequest(ctx.request, content);
+                  permits.acquireUninterruptibly();
+                  pageDeliveries.add(
+                      deliveries.submit(
+                          () -> {
+                            try {
+                              connector.dispatchBroadcast(memberCtx);
+                              deliveredTo.add(memberCtx);
+                            } catch (RuntimeException e) {
+                              failed.incrementAndGet();
+                              log.warn(
+                                  "Broadcast to {} failed: {}", member.getId(), e.getMessage());
+                            } finally {
+                              permits.release();
+                            }
+                          }));
+                }
+              });
+          pageDeliveries.forEach(KiteRouter::awaitDelivery);
+          this.messages.persistAll(page, messageId, content, time);
+          for (RoutingContext memberCtx : deliveredTo) {
+            this.channels
+                .attach(memberCtx.to)
+                .updateConnection(memberCtx.destination(), messageId, time);
+          }
+          this.channels.flush();
+          delivered.addAndGet(deliveredTo.size());
+          members += page.size();
+          page = new ArrayList<>(Channels.MEMBERS_PAGE_SIZE);
+        }
+      }
+    }
+    log.debug("Broadcast {} to {} members of {}", messageId, members, host.getChannelName());
+    return new BroadcastResult(members, delivered.get(), failed.get());
+  }
+
+  private static void awaitDelivery(Future<?> delivery) {
+    try {
+      delivery.get();
+    } catch (ExecutionException e) {
+      log.warn("Broadcast delivery failed", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RoutingException("Broadcast was interrupted");
+    }
+  }
+
+  /** Runs the task in the mailbox of the member, if there are mailboxes */
+  @Override
+  public CompletionStage<Void> runOrdered(Member member, Runnable task) {
+    return null != this.mailboxes
+        ? this.mailboxes.execute(member, task)
+        : Router.super.runOrdered(member, task);
+  }
+
+  @Override
+  public void close() {
+    if (null != this.mailboxes) {
+      this.mailboxes.close();
+    }
+    if (this.postProcessingExecutor instanceof ExecutorService executorService) {
+      executorService.shutdown();
+      try {
+        if (!executorService.awaitTermination(5, TimeUnit.SECONDS)) {
+          log.warn("Post processing did not complete in time");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /** Acknowledges once the message is delivered, then post processes it in the same mailbox */
+  private CompletionStage<MessageAck> dispatchToMailbox(RoutingContext ctx) {
+    try {
+      this.resolve(ctx);
+      final var ack = new CompletableFuture<MessageAck>();
+      this.mailboxes.execute(
+          ctx.to,
+          () -> {
+            boolean delivered;
+            try {
+              delivered = this.deliver(ctx);
+              ack.complete(ctx.response);
+            } catch (RuntimeException e) {
+              ack.completeExceptionally(e);
+              return;
+            }
+            if (delivered) {
+              this.postProcessSafely(ctx);
+            }
+          });
+      return ack;
+    } catch (KiteException | RejectedExecutionException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  private void resolveOrigin(RoutingContext ctx) throws KiteException {
+    if (null == ctx.originConnection) {
+      throw new RoutingException("unknown origin");
+    }
+    try {
+      ctx.from = this.channels.find(ctx.originConnection);
+    } catch (NotFoundException notFound) {
+      log.warn(notFound.getMessage());
+      throw new RoutingException();
+    }
+  }
+
+  /** Resolves members of the context, which are not known yet */
+  private void resolve(RoutingContext ctx) throws KiteException {
     if (null == ctx.originConnection) {
       throw new RoutingException("unknown origin");
     }
     try {
-      if (null == ctx.from) {
+      if (null == ctx.from && null == ctx.to) {
+        Channels.Route route = this.channels.findRoute(ctx.originConnection);
+        ctx.from = route.from();
+        ctx.to = route.to();
+      } else if (null == ctx.from) {
         ctx.from = this.channels.find(ctx.originConnection);
       }
       if (null == ctx.to) {
@@ -65,32 +364,118 @@ public class KiteRouter implements Router {
       log.warn(notFound.getMessage());
       throw new RoutingException();
     }
+  }
+
+  /** Finds the route of the context asynchronously, if none of its members are known yet */
+  private CompletionStage<Void> resolveAsync(RoutingContext ctx) {
+    if (null != ctx.from || null != ctx.to || null == ctx.originConnection) {
+      return CompletableFuture.completedFuture(null); // resolved in place on delivery
+    }
+    return this.channels
+        .findRouteAsync(ctx.originConnection)
+        .handle(
+            (route, e) -> {
+              if (null != e) {
+                Throwable cause =
+                    e instanceof CompletionException && null != e.getCause() ? e.getCause() : e;
+                if (cause instanceof NotFoundException notFound) {
+                  log.warn(notFound.getMessage());
+                  throw new RoutingException();
+                }
+                throw cause instanceof RuntimeException runtime
+                    ? runtime
+                    : new CompletionException(cause);
+              }
+              ctx.from = route.from();
+              ctx.to = route.to();
+              return null;
+            });
+  }
+
+  /** Whether the message goes to the history of the member, who is offline */
+  private boolean isOffline(RoutingContext ctx) throws KiteException {
+    this.resolve(ctx);
+    return null == ctx.destinationConnection
+        && null == ctx.to.getConnectionUri()
+        && !ctx.to.isHost();
+  }
+
+  private CompletionStage<MessageAck> persistForOffline(RoutingContext ctx) {
+    String content = ctx.encodedRequest();
+    String messageId = ctx.request.messageId();
+    Instant time = Instant.now();
+    return this.messages
+        .persistAsync(ctx.to, messageId, content, time)
+        .thenApply(
+            persisted -> {
+              ctx.response = new MessageAck(messageId, messageId, time);
+              ctx.from.updatePeer(ctx.to.getId());
+              log.debug(
+                  "Member was not found. Messages {} was added to Member's history", messageId);
+              return ctx.response;
+            });
+  }
+
+  /**
+   * Resolves members and delivers message to the destination connector.
+   *
+   * @return true if message was delivered and needs post processing, false if it was stored in the
+   *     history of the offline member
+   */
+  private boolean deliver(RoutingContext ctx) throws KiteException {
+    this.resolve(ctx);
     if (null == ctx.destinationConnection) {
       String connectionUri = ctx.to.getConnectionUri();
       if (connectionUri == null && !ctx.to.isHost()) {
-        String content = ENCODER.apply(ctx.request);
+        String content = ctx.encodedRequest();
         String messageId = ctx.request.messageId();
         Instant time = Instant.now();
         this.messages.persist(ctx.to, messageId, content, time);
         ctx.response = new MessageAck(messageId, messageId, time);
         ctx.from.updatePeer(ctx.to.getId());
         log.debug("Member was not found. Messages {} was added to Member's history", messageId);
-        return;
+        return false;
       }
       ctx.destinationConnection = connectionUri;
     }
-    Connector connector = requiredConnector(Connector.connectorId(ctx.destinationConnection));
+    Connector connector = requiredConnector(ctx.destination().connectorId());
     connector.dispatch(ctx);
     MessageAck response = ctx.response;
     if (null == response) {
       throw new RoutingException("missing response from connector " + connector.id());
     }
+    return true;
+  }
 
+  private void postProcess(RoutingContext ctx) {
     postProcessors.forEach(routerPostProcessor -> routerPostProcessor.accept(ctx));
   }
 
-  private synchronized Connector requiredConnector(String connectorId) throws NotFoundException {
-    return Optional.ofNullable(this.connectors.get(connectorId))
-        .orElseThrow(() -> new NotFoundException("No connector with id " + connectorId));
+  private void postProcessSafely(RoutingContext ctx) {
+    try {
+      this.postProcess(ctx);
+    } catch (Exception e) {
+      log.error("Post processing of message %s failed".formatted(ctx.response.messageId()), e);
+    }
+  }
+
+  /** Waits for the mailbox task, rethrowing its failure */
+  private static void join(CompletableFuture<Void> task) {
+    try {
+      task.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      }
+      throw e;
+    }
+  }
+
+  private Connector requiredConnector(String connectorId) throws NotFoundException {
+    Connector connector = this.connectors.get(connectorId);
+    if (null == connector) {
+      throw new NotFoundException("No connector with id " + connectorId);
+    }
+    return connector;
   }
 }
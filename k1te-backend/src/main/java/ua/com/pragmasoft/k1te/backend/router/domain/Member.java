@@ -23,5 +23,9 @@ public interface Member {
 
   void updateConnection(String connectionUri, String messageId, Instant usageTime);
 
+  default void updateConnection(ConnectionUri connectionUri, String messageId, Instant usageTime) {
+    this.updateConnection(connectionUri.toString(), messageId, usageTime);
+  }
+
   void deleteUnAnsweredMessage(Member toMember);
 }
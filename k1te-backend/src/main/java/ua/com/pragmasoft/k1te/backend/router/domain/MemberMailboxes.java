@@ -0,0 +1,80 @@
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.backend.router.domain;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs tasks of the same member one after another, in the order they were submitted, while tasks of
+ * different members run in parallel. Every task runs on its own virtual thread. Mailbox of the
+ * member only exists while it has pending tasks.
+ */
+public class MemberMailboxes implements AutoCloseable {
+
+  private static final Logger log = LoggerFactory.getLogger(MemberMailboxes.class);
+
+  private final ConcurrentMap<String, CompletableFuture<Void>> tails = new ConcurrentHashMap<>();
+  private final ExecutorService executor;
+  private volatile boolean closed = false;
+
+  public MemberMailboxes() {
+    this(Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("k1te-mailbox-", 0).factory()));
+  }
+
+  MemberMailboxes(ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Queues the task to the mailbox of the member. Failed task doesn't affect the next ones.
+   *
+   * @return stage completed when the task is done
+   * @throws RejectedExecutionException if mailboxes are closed
+   */
+  public CompletableFuture<Void> execute(Member member, Runnable task) {
+    if (this.closed) {
+      throw new RejectedExecutionException("Mailboxes are closed");
+    }
+    final String key = member.getChannelName() + "::" + member.getId();
+    final CompletableFuture<Void> next =
+        this.tails.compute(
+            key,
+            (k, tail) ->
+                null == tail
+                    ? CompletableFuture.runAsync(task, this.executor)
+                    : tail.exceptionally(e -> null).thenRunAsync(task, this.executor));
+    next.whenComplete((result, e) -> this.tails.remove(key, next));
+    return next;
+  }
+
+  /** Number of members having pending tasks */
+  public int size() {
+    return this.tails.size();
+  }
+
+  /** Waits for the pending tasks to complete */
+  @Override
+  public void close() {
+    this.closed = true;
+    try {
+      // queued tasks are only handed over to the executor when the previous ones complete
+      CompletableFuture.allOf(this.tails.values().toArray(CompletableFuture[]::new))
+          .exceptionally(e -> null)
+          .get(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException | TimeoutException e) {
+      log.warn("Mailboxes did not complete in time");
+    }
+    this.executor.shutdown();
+  }
+}
@@ -1,17 +1,156 @@
 /* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
 package ua.com.pragmasoft.k1te.backend.router.domain;
 
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
 import java.time.Instant;
+import java.util.Base64;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import ua.com.pragmasoft.k1te.backend.shared.ValidationException;
 
 public interface Messages {
 
-  HistoryMessage persist(Member owner, String messageId, String content, Instant time);
+  int DEFAULT_PAGE_SIZE = 100;
+
+  default HistoryMessage persist(Member owner, String messageId, String content, Instant time) {
+    Objects.requireNonNull(owner);
+    return this.persist(owner.getChannelName(), owner.getId(), messageId, content, time);
+  }
+
+  /** Persists the message to the history of the member, which is only keyed by channel and id */
+  HistoryMessage persist(
+      String channelName, String memberId, String messageId, String content, Instant time);
+
+  /**
+   * Persists the message like {@link #persist(Member, String, String, Instant)}, without blocking
+   * the calling thread on the storage round trip. By default it is persisted in the calling thread.
+   */
+  default CompletionStage<HistoryMessage> persistAsync(
+      Member owner, String messageId, String content, Instant time) {
+    try {
+      return CompletableFuture.completedFuture(this.persist(owner, messageId, content, time));
+    } catch (RuntimeException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  /** Adds the same message to the history of every owner. Implementations may batch the writes. */
+  default void persistAll(
+      List<? extends Member> owners, String messageId, String content, Instant time) {
+    owners.forEach(owner -> this.persist(owner, messageId, content, time));
+  }
+
+  /**
+   * Persists messages to the histories of their members. Implementations may batch the writes.
+   *
+   * @return messages which were not persisted and have to be retried
+   */
+  default List<HistoryMessage> persistBatch(List<? extends HistoryMessage> messages) {
+    for (HistoryMessage message : messages) {
+      this.persist(
+          message.getChannelName(),
+          message.getMemberId(),
+          message.getMessageId(),
+          message.getContent(),
+          message.getTime());
+    }
+    return List.of();
+  }
 
   HistoryMessage find(Member member, String messageId);
 
   List<HistoryMessage> findAll(MessagesRequest request);
 
+  /**
+   * Returns the page of messages in chronological order, starting after the cursor of the request,
+   * if any, otherwise after the last message. Limit of the request is the page size, {@value
+   * #DEFAULT_PAGE_SIZE} by default.
+   */
+  MessagesPage findPage(MessagesRequest request);
+
+  /**
+   * Returns messages in chronological order like {@link #findPage(MessagesRequest)}, reading the
+   * next page only when the previous one is consumed.
+   */
+  default Stream<HistoryMessage> stream(MessagesRequest request) {
+    Iterator<MessagesPage> pages =
+        new Iterator<>() {
+          private MessagesRequest next = request;
+
+          @Override
+          public boolean hasNext() {
+            return null != this.next;
+          }
+
+          @Override
+          public MessagesPage next() {
+            if (null == this.next) {
+              throw new NoSuchElementException();
+            }
+            var page = findPage(this.next);
+            this.next = page.hasNext() ? this.next.withCursor(page.nextCursor()) : null;
+            return page;
+          }
+        };
+    return StreamSupport.stream(
+            Spliterators.spliteratorUnknownSize(pages, Spliterator.ORDERED), false)
+        .flatMap(page -> page.messages().stream());
+  }
+
+  /**
+   * @param messages messages in chronological order
+   * @param nextCursor cursor of the next page, or null if it is the last one
+   */
+  record MessagesPage(List<HistoryMessage> messages, String nextCursor) {
+
+    public boolean hasNext() {
+      return null != this.nextCursor;
+    }
+  }
+
+  /**
+   * Position in the history, encoded as an opaque string. Carries the time of the message, so the
+   * next page can be read without looking the message up.
+   */
+  record Cursor(Instant time, String messageId) {
+
+    private static final char SEPARATOR = ' ';
+
+    public static Cursor of(HistoryMessage message) {
+      return new Cursor(message.getTime(), message.getMessageId());
+    }
+
+    public static Cursor decode(String cursor) {
+      try {
+        String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        int separator = decoded.indexOf(SEPARATOR);
+        if (separator < 0) {
+          throw new ValidationException("Invalid cursor");
+        }
+        return new Cursor(
+            Instant.parse(decoded.substring(0, separator)), decoded.substring(separator + 1));
+      } catch (IllegalArgumentException | DateTimeException e) {
+        throw new ValidationException("Invalid cursor", e);
+      }
+    }
+
+    public String encode() {
+      return Base64.getUrlEncoder()
+          .withoutPadding()
+          .encodeToString(
+              (this.time.toString() + SEPARATOR + this.messageId).getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
   class MessagesRequest {
     private String connectionUri;
     private Member messagesOwner;
@@ -19,6 +158,7 @@ public interface Messages {
     private String lastMessageId;
     private Integer limit;
     private boolean lastMessageByConnection;
+    private String cursor;
 
     private MessagesRequest() {}
 
@@ -26,6 +166,19 @@ public interface Messages {
       return new MessagesRequestBuilder();
     }
 
+    /** Returns the copy of this request, which continues from the given cursor */
+    public MessagesRequest withCursor(String cursor) {
+      var copy = new MessagesRequest();
+      copy.connectionUri = this.connectionUri;
+      copy.messagesOwner = this.messagesOwner;
+      copy.lastMessageTime = this.lastMessageTime;
+      copy.lastMessageId = this.lastMessageId;
+      copy.limit = this.limit;
+      copy.lastMessageByConnection = this.lastMessageByConnection;
+      copy.cursor = cursor;
+      return copy;
+    }
+
     public String getConnectionUri() {
       return connectionUri;
     }
@@ -50,6 +203,10 @@ public interface Messages {
       return lastMessageByConnection;
     }
 
+    public String getCursor() {
+      return cursor;
+    }
+
     public static class MessagesRequestBuilder {
       private final MessagesRequest request;
 
@@ -87,6 +244,12 @@ public interface Messages {
         return this;
       }
 
+      /** Cursor returned with the previous page */
+      public MessagesRequestBuilder cursor(String cursor) {
+        this.request.cursor = cursor;
+        return this;
+      }
+
       public MessagesRequest build() {
         return this.request;
       }
@@ -1,7 +1,49 @@
 /* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
 package ua.com.pragmasoft.k1te.backend.router.domain;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import ua.com.pragmasoft.k1te.backend.router.domain.payload.MessageAck;
+import ua.com.pragmasoft.k1te.backend.shared.KiteException;
+
 public interface Router extends Connector {
 
   Router registerConnector(Connector connector);
+
+  /**
+   * Dispatches message and completes returned stage with the acknowledgement as soon as the
+   * destination connector has delivered it. Post processing (history, peer updates) may still be in
+   * progress at that moment.
+   */
+  default CompletionStage<MessageAck> dispatchAsync(RoutingContext ctx) {
+    try {
+      this.dispatch(ctx);
+      return CompletableFuture.completedFuture(ctx.response);
+    } catch (KiteException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  /**
+   * Delivers the message of the channel host to every other member of the channel, members who are
+   * offline find it in their history.
+   *
+   * @param ctx context with the origin connection and the request
+   */
+  BroadcastResult broadcast(RoutingContext ctx) throws KiteException;
+
+  /**
+   * @param members number of members, the message was added to the history of
+   * @param delivered number of members, the message was delivered to
+   * @param failed number of online members, delivery to which failed
+   */
+  record BroadcastResult(int members, int delivered, int failed) {}
+
+  /**
+   * Runs the task in order with messages dispatched to the member. By default the task runs in
+   * background, without ordering guarantees.
+   */
+  default CompletionStage<Void> runOrdered(Member member, Runnable task) {
+    return CompletableFuture.runAsync(task);
+  }
 }
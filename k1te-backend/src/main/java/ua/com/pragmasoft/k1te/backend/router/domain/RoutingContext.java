@@ -5,9 +5,12 @@ import java.util.HashMap;
 import java.util.Map;
 import ua.com.pragmasoft.k1te.backend.router.domain.payload.MessageAck;
 import ua.com.pragmasoft.k1te.backend.router.domain.payload.MessagePayload;
+import ua.com.pragmasoft.k1te.backend.ws.PayloadEncoder;
 
 public final class RoutingContext {
 
+  private static final PayloadEncoder ENCODER = new PayloadEncoder();
+
   public String originConnection;
   public String destinationConnection;
   public Member from;
@@ -15,6 +18,10 @@ public final class RoutingContext {
   public MessagePayload request;
   public MessageAck response;
   Map<String, Object> attributes;
+  private MessagePayload encodedPayload;
+  private String encodedRequest;
+  private ConnectionUri origin;
+  private ConnectionUri destination;
 
   public Map<String, Object> attributes() {
     if (null == this.attributes) {
@@ -23,6 +30,35 @@ public final class RoutingContext {
     return this.attributes;
   }
 
+  /**
+   * Returns request serialized in the k1te.chat.v1 format. It is encoded once and shared by all the
+   * consumers (connectors, history), until request is replaced.
+   */
+  public String encodedRequest() {
+    if (this.encodedPayload != this.request || null == this.encodedRequest) {
+      this.encodedRequest = ENCODER.apply(this.request);
+      this.encodedPayload = this.request;
+    }
+    return this.encodedRequest;
+  }
+
+  /** Returns parsed origin connection, it is parsed again only when connection is changed */
+  public ConnectionUri origin() {
+    if (null == this.origin || !this.origin.toString().equals(this.originConnection)) {
+      this.origin = ConnectionUri.parse(this.originConnection);
+    }
+    return this.origin;
+  }
+
+  /** Returns parsed destination connection, it is parsed again only when connection is changed */
+  public ConnectionUri destination() {
+    if (null == this.destination
+        || !this.destination.toString().equals(this.destinationConnection)) {
+      this.destination = ConnectionUri.parse(this.destinationConnection);
+    }
+    return this.destination;
+  }
+
   public static RoutingContext create() {
     return new RoutingContext();
   }
@@ -52,6 +88,17 @@ public final class RoutingContext {
     return this;
   }
 
+  /**
+   * Sets request along with its already known serialized form, for example when message is restored
+   * from history.
+   */
+  public RoutingContext withRequest(MessagePayload request, String encodedRequest) {
+    this.request = request;
+    this.encodedPayload = request;
+    this.encodedRequest = encodedRequest;
+    return this;
+  }
+
   public RoutingContext withResponse(MessageAck response) {
     this.response = response;
     return this;
@@ -0,0 +1,382 @@
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.backend.router.infrastructure;
+
+import jakarta.json.Json;
+import jakarta.json.JsonException;
+import jakarta.json.JsonObject;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.dynamodb.model.DynamoDbException;
+import ua.com.pragmasoft.k1te.backend.router.domain.HistoryMessage;
+import ua.com.pragmasoft.k1te.backend.router.domain.Member;
+import ua.com.pragmasoft.k1te.backend.router.domain.Messages;
+import ua.com.pragmasoft.k1te.backend.shared.KiteException;
+
+/**
+ * Persists history messages in background, with batch writes of at most {@value
+ * DynamoDbWriteBehind#MAX_BATCH_SIZE} messages, once enough of them are queued or the max delay
+ * passes. Messages are written in the order they were persisted, next batch is only written when
+ * the previous one succeeds, so ordering per member is kept. Reads write queued messages first.
+ *
+ * <p>Message resent while it is queued replaces the queued one. When the batch is rejected, for
+ * example because one of its messages is too large, its messages are written one by one, and those
+ * rejected are dropped, so they don't stop the messages after them. When the queue is full,
+ * messages are written in place by the persisting thread, which slows down producers instead of
+ * accumulating unbounded backlog.
+ *
+ * <p>Messages which could not be written on {@link #close()} are appended to the spill file, and
+ * queued again when the next instance starts.
+ */
+public class BatchingMessages implements Messages, AutoCloseable {
+
+  private static final Logger log = LoggerFactory.getLogger(BatchingMessages.class);
+
+  /** Default max number of queued messages */
+  public static final int DEFAULT_CAPACITY = 10000;
+
+  private final DynamoDbMessages delegate;
+  private final int flushSize;
+  private final int capacity;
+  private final int maxAttempts;
+  private final long backoffMillis;
+  private final Path spillFile;
+  private final ArrayDeque<DynamoDbHistoryMessage> queue = new ArrayDeque<>();
+  private final ReentrantLock flushLock = new ReentrantLock();
+  private final AtomicBoolean flushRequested = new AtomicBoolean();
+  private final ScheduledExecutorService flusher;
+  private final AtomicLong writtenMessages = new AtomicLong();
+  private final AtomicLong rejectedMessages = new AtomicLong();
+  private volatile boolean closed = false;
+
+  /**
+   * @param delegate
+   * @param flushSize number of queued messages which triggers the write
+   * @param maxDelay max time the message stays queued
+   * @param maxAttempts max number of batch write attempts per flush
+   * @param backoff delay before the first retry, doubled with every next one
+   * @param spillFile file to keep messages which could not be written on close, or null
+   */
+  public BatchingMessages(
+      DynamoDbMessages delegate,
+      int flushSize,
+      Duration maxDelay,
+      int maxAttempts,
+      Duration backoff,
+      Path spillFile) {
+    this(delegate, flushSize, maxDelay, maxAttempts, backoff, spillFile, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param delegate
+   * @param flushSize
+   * @param maxDelay
+   * @param maxAttempts
+   * @param backoff
+   * @param spillFile
+   * @param capacity max number of queued messages, next ones are written in place
+   */
+  public BatchingMessages(
+      DynamoDbMessages delegate,
+      int flushSize,
+      Duration maxDelay,
+      int maxAttempts,
+      Duration backoff,
+      Path spillFile,
+      int capacity) {
+    this.delegate = delegate;
+    this.flushSize = Math.max(1, flushSize);
+    this.capacity = Math.max(1, capacity);
+    this.maxAttempts = Math.max(1, maxAttempts);
+    this.backoffMillis = backoff.toMillis();
+    this.spillFile = spillFile;
+    this.restore();
+    this.flusher =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread t = new Thread(r, "k1te-history-writer");
+              t.setDaemon(true);
+              return t;
+            });
+    long delay = Math.max(1, maxDelay.toMillis());
+    this.flusher.scheduleWithFixedDelay(this::flushSafely, delay, delay, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public HistoryMessage persist(
+      String channelName, String memberId, String messageId, String content, Instant time) {
+    Objects.requireNonNull(channelName);
+    Objects.requireNonNull(memberId);
+    Objects.requireNonNull(messageId);
+    Objects.requireNonNull(content);
+    Objects.requireNonNull(time);
+    if (this.closed) {
+      return this.delegate.persist(channelName, memberId, messageId, content, time);
+    }
+    var message =
+        this.delegate.message(
+            DynamoDbHistoryMessage.buildId(channelName, memberId), messageId, content, time);
+    int depth;
+    boolean queued;
+    synchronized (this.queue) {
+      queued = this.queue.size() < this.capacity;
+      if (queued) {
+        this.queue.addLast(message);
+      }
+      depth = this.queue.size();
+    }
+    if (depth >= this.flushSize && this.flushRequested.compareAndSet(false, true)) {
+      this.flusher.execute(this::flushSafely);
+    }
+    if (!queued && !this.write(List.of(message)).isEmpty()) {
+      throw new KiteException("History message %s was not written".formatted(messageId));
+    }
+    return message;
+  }
+
+  @Override
+  public HistoryMessage find(Member member, String messageId) {
+    this.flush();
+    return this.delegate.find(member, messageId);
+  }
+
+  @Override
+  public List<HistoryMessage> findAll(MessagesRequest request) {
+    this.flush();
+    return this.delegate.findAll(request);
+  }
+
+  @Override
+  public MessagesPage findPage(MessagesRequest request) {
+    this.flush();
+    return this.delegate.findPage(request);
+  }
+
+  /**
+   * Writes queued messages
+   *
+   * @return true if all of them were written
+   */
+  public boolean flush() {
+    this.flushLock.lock();
+    try {
+      this.flushRequested.set(false);
+      while (true) {
+        // batch write rejects duplicate keys, so resent message replaces the queued one
+        Map<String, DynamoDbHistoryMessage> chunk = new LinkedHashMap<>();
+        synchronized (this.queue) {
+          while (chunk.size() < DynamoDbWriteBehind.MAX_BATCH_SIZE && !this.queue.isEmpty()) {
+            var message = this.queue.pollFirst();
+            chunk.put(message.getId() + "::" + message.getMessageId(), message);
+          }
+        }
+        if (chunk.isEmpty()) {
+          return true;
+        }
+        var unprocessed = this.write(new ArrayList<>(chunk.values()));
+        if (!unprocessed.isEmpty()) {
+          synchronized (this.queue) {
+            for (int i = unprocessed.size() - 1; i >= 0; i--) {
+              this.queue.addFirst(unprocessed.get(i));
+            }
+          }
+          log.error("{} history messages were not written, will retry", unprocessed.size());
+          return false;
+        }
+      }
+    } finally {
+      this.flushLock.unlock();
+    }
+  }
+
+  public int getQueueDepth() {
+    synchronized (this.queue) {
+      return this.queue.size();
+    }
+  }
+
+  public long getWrittenMessages() {
+    return this.writtenMessages.get();
+  }
+
+  public long getRejectedMessages() {
+    return this.rejectedMessages.get();
+  }
+
+  /** Writes queued messages, spilling those which could not be written to the file */
+  @Override
+  public void close() {
+    this.closed = true;
+    this.flusher.shutdown();
+    try {
+      this.flusher.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (!this.flush()) {
+      this.spill();
+    }
+  }
+
+  /**
+   * Writes the chunk, retrying unprocessed messages and failures other than rejection
+   *
+   * @return messages which were not written and have to be retried later
+   */
+  private List<DynamoDbHistoryMessage> write(List<DynamoDbHistoryMessage> chunk) {
+    List<DynamoDbHistoryMessage> remaining = chunk;
+    for (int attempt = 1; ; attempt++) {
+      try {
+        var unprocessed = this.delegate.persistAll(remaining);
+        this.writtenMessages.addAndGet(remaining.size() - unprocessed.size());
+        remaining = unprocessed;
+        if (remaining.isEmpty()) {
+          return remaining;
+        }
+      } catch (DynamoDbException e) {
+        if (e.statusCode() >= 400 && e.statusCode() < 500 && !e.isThrottlingException()) {
+          return this.writeRejected(remaining, e);
+        }
+        log.warn("Batch write failed: {}", e.getMessage());
+      } catch (SdkException e) {
+        log.warn("Batch write failed: {}", e.getMessage());
+      }
+      if (attempt >= this.maxAttempts) {
+        return remaining;
+      }
+      try {
+        Thread.sleep(this.backoffMillis << (attempt - 1));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return remaining;
+      }
+    }
+  }
+
+  /**
+   * Drops the single rejected message, or writes messages of the rejected batch one by one
+   *
+   * @return messages which were not written and have to be retried later
+   */
+  private List<DynamoDbHistoryMessage> writeRejected(
+      List<DynamoDbHistoryMessage> messages, DynamoDbException e) {
+    if (messages.size() == 1) {
+      var message = messages.get(0);
+      this.rejectedMessages.incrementAndGet();
+      log.error(
+          "History message {} of {} rejected, dropped: {}",
+          message.getMessageId(),
+          message.getId(),
+          e.getMessage());
+      return List.of();
+    }
+    log.warn("Batch write rejected, writing messages one by one: {}", e.getMessage());
+    for (int i = 0; i < messages.size(); i++) {
+      if (!this.write(List.of(messages.get(i))).isEmpty()) {
+        return messages.subList(i, messages.size());
+      }
+    }
+    return List.of();
+  }
+
+  private void flushSafely() {
+    try {
+      this.flush();
+    } catch (RuntimeException e) {
+      log.error("Background flush failed", e);
+    }
+  }
+
+  private void spill() {
+    List<DynamoDbHistoryMessage> messages;
+    synchronized (this.queue) {
+      messages = new ArrayList<>(this.queue);
+      this.queue.clear();
+    }
+    if (null == this.spillFile) {
+      log.error("{} history messages are lost, there's no spill file", messages.size());
+      return;
+    }
+    try (BufferedWriter writer = this.openSpillFile()) {
+      for (var message : messages) {
+        writer.write(
+            Json.createObjectBuilder()
+                .add("id", message.getId())
+                .add("messageId", message.getMessageId())
+                .add("content", message.getContent())
+                .add("time", message.getTime().toString())
+                .build()
+                .toString());
+        writer.newLine();
+      }
+      log.warn("{} history messages spilled to {}", messages.size(), this.spillFile);
+    } catch (IOException e) {
+      log.error("{} history messages are lost: {}", messages.size(), e.getMessage());
+    }
+  }
+
+  /** Opens spill file for appending, creating it along with its directory if needed */
+  private BufferedWriter openSpillFile() throws IOException {
+    Path directory = this.spillFile.toAbsolutePath().getParent();
+    if (null != directory) {
+      Files.createDirectories(directory);
+    }
+    return Files.newBufferedWriter(
+        this.spillFile,
+        StandardCharsets.UTF_8,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.APPEND);
+  }
+
+  /** Queues messages spilled by the previous instance */
+  private void restore() {
+    if (null == this.spillFile || !Files.exists(this.spillFile)) {
+      return;
+    }
+    try {
+      for (String line : Files.readAllLines(this.spillFile, StandardCharsets.UTF_8)) {
+        if (line.isBlank()) {
+          continue;
+        }
+        try (var reader = Json.createReader(new StringReader(line))) {
+          JsonObject json = reader.readObject();
+          this.queue.addLast(
+              this.delegate.message(
+                  json.getString("id"),
+                  json.getString("messageId"),
+                  json.getString("content"),
+                  Instant.parse(json.getString("time"))));
+        } catch (JsonException | ClassCastException | NullPointerException | DateTimeException e) {
+          log.error("Skipped malformed spilled message: {}", e.getMessage());
+        }
+      }
+      Files.delete(this.spillFile);
+      log.info("{} spilled history messages queued", this.queue.size());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -0,0 +1,320 @@
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.backend.router.infrastructure;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+import ua.com.pragmasoft.k1te.backend.router.domain.Channels;
+import ua.com.pragmasoft.k1te.backend.router.domain.Member;
+
+/**
+ * Process wide cache of members in front of any {@link Channels} implementation. Least recently
+ * used members are evicted when cache is full, entries expire after ttl.
+ *
+ * <p>Cached members are {@link Channels#attach(Member) attached} to the delegate on every hit, so
+ * their changes are flushed by the delegate as usual and all requests share the same instance.
+ * Every invalidation advances the cache version; a member loaded while the version changed is
+ * returned but not cached, so a concurrent load can never put back an entry which was just
+ * invalidated.
+ *
+ * <p>Changes of the cached members are written as updates conditional on their version, so a stale
+ * entry never overwrites changes made elsewhere. Still, a cached member doesn't see these changes
+ * until it expires. Peer of the host changes with every client message, so when other processes
+ * route messages of the same channel, hosts should not be cached at all.
+ */
+public class CachingChannels implements Channels {
+
+  private final Channels delegate;
+  private final int maxSize;
+  private final long ttlNanos;
+  private final LongSupplier clock;
+  private final boolean cacheHosts;
+  private final Map<String, Entry> members;
+  private final Map<String, String> connections = new LinkedHashMap<>();
+  private long version = 0;
+
+  public CachingChannels(Channels delegate, int maxSize, Duration ttl) {
+    this(delegate, maxSize, ttl, true);
+  }
+
+  /**
+   * @param cacheHosts false if channels are also updated by other processes, then hosts, which peer
+   *     is changed by every client message, are always read from the delegate
+   */
+  public CachingChannels(Channels delegate, int maxSize, Duration ttl, boolean cacheHosts) {
+    this(delegate, maxSize, ttl, cacheHosts, System::nanoTime);
+  }
+
+  CachingChannels(
+      Channels delegate, int maxSize, Duration ttl, boolean cacheHosts, LongSupplier clock) {
+    Objects.requireNonNull(delegate, "delegate");
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("Cache size must be positive");
+    }
+    this.delegate = delegate;
+    this.maxSize = maxSize;
+    this.ttlNanos = ttl.toNanos();
+    this.clock = clock;
+    this.cacheHosts = cacheHosts;
+    this.members =
+        new LinkedHashMap<>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (this.size() > CachingChannels.this.maxSize) {
+              eldest
+                  .getValue()
+                  .connections
+                  .forEach(connection -> connections.remove(connection, eldest.getKey()));
+              return true;
+            }
+            return false;
+          }
+        };
+  }
+
+  @Override
+  public Member hostChannel(String channel, String memberId, String ownerConnection, String title) {
+    return this.delegate.hostChannel(channel, memberId, ownerConnection, title);
+  }
+
+  @Override
+  public Member dropChannel(String ownerConnection) {
+    this.attachCached(ownerConnection);
+    Member host = this.delegate.dropChannel(ownerConnection);
+    this.invalidateChannel(host.getChannelName());
+    return host;
+  }
+
+  @Override
+  public Member joinChannel(
+      String channelName, String memberId, String connection, String memberName) {
+    this.attachCached(channelName, memberId);
+    Member member = this.delegate.joinChannel(channelName, memberId, connection, memberName);
+    this.invalidate(key(member));
+    return member;
+  }
+
+  @Override
+  public Member reconnect(String channelName, String memberId, String newConnection) {
+    if (null != memberId) {
+      this.attachCached(channelName, memberId);
+    }
+    Member member = this.delegate.reconnect(channelName, memberId, newConnection);
+    if (null != member) {
+      this.invalidate(key(member));
+    }
+    return member;
+  }
+
+  @Override
+  public Member disconnect(String connectionUri) {
+    this.attachCached(connectionUri);
+    Member member = this.delegate.disconnect(connectionUri);
+    this.invalidate(key(member));
+    return member;
+  }
+
+  @Override
+  public Member leaveChannel(String connection) {
+    this.attachCached(connection);
+    Member member = this.delegate.leaveChannel(connection);
+    this.invalidate(key(member));
+    return member;
+  }
+
+  @Override
+  public Member switchConnection(String channelName, String memberId, String newConnection) {
+    this.attachCached(channelName, memberId);
+    Member member = this.delegate.switchConnection(channelName, memberId, newConnection);
+    this.invalidate(key(member));
+    return member;
+  }
+
+  @Override
+  public Member find(String memberConnection) {
+    Member cached = this.attachCached(memberConnection);
+    if (null != cached) {
+      return cached;
+    }
+    long loadVersion = this.version();
+    Member member = this.delegate.find(memberConnection);
+    this.cache(loadVersion, member, memberConnection);
+    return member;
+  }
+
+  @Override
+  public Member find(String channel, String memberId) {
+    Member cached = this.attachCached(channel, memberId);
+    if (null != cached) {
+      return cached;
+    }
+    long loadVersion = this.version();
+    Member member = this.delegate.find(channel, memberId);
+    this.cache(loadVersion, member, null);
+    return member;
+  }
+
+  @Override
+  public Route findRoute(String memberConnection) {
+    Member from = this.attachCached(memberConnection);
+    if (null != from) {
+      return new Route(from, this.find(from.getChannelName(), from.getPeerMemberId()));
+    }
+    long loadVersion = this.version();
+    Route route = this.delegate.findRoute(memberConnection);
+    this.cache(loadVersion, route.from(), memberConnection);
+    this.cache(loadVersion, route.to(), null);
+    return route;
+  }
+
+  /** Completes in place if both members are cached, otherwise caches the route found by delegate */
+  @Override
+  public CompletionStage<Route> findRouteAsync(String memberConnection) {
+    Member from = this.attachCached(memberConnection);
+    if (null != from && null != from.getPeerMemberId()) {
+      Member to = this.attachCached(from.getChannelName(), from.getPeerMemberId());
+      if (null != to) {
+        return CompletableFuture.completedFuture(new Route(from, to));
+      }
+    }
+    long loadVersion = this.version();
+    return this.delegate
+        .findRouteAsync(memberConnection)
+        .thenApply(
+            route -> {
+              this.cache(loadVersion, route.from(), memberConnection);
+              this.cache(loadVersion, route.to(), null);
+              return route;
+            });
+  }
+
+  @Override
+  public String findUnAnsweredMessage(Member from, Member to) {
+    return this.delegate.findUnAnsweredMessage(from, to);
+  }
+
+  @Override
+  public Stream<Member> members(String channelName) {
+    return this.delegate.members(channelName);
+  }
+
+  @Override
+  public Member attach(Member member) {
+    return this.delegate.attach(member);
+  }
+
+  @Override
+  public void flush() {
+    this.delegate.flush();
+  }
+
+  /** Removes all cached members */
+  public synchronized void invalidateAll() {
+    this.version++;
+    this.members.clear();
+    this.connections.clear();
+  }
+
+  public synchronized int size() {
+    return this.members.size();
+  }
+
+  private Member attachCached(String connection) {
+    Member member = this.cached(this.memberKey(connection));
+    return null != member ? this.delegate.attach(member) : null;
+  }
+
+  private Member attachCached(String channel, String memberId) {
+    Member member = this.cached(key(channel, memberId));
+    return null != member ? this.delegate.attach(member) : null;
+  }
+
+  private synchronized String memberKey(String connection) {
+    return this.connections.get(connection);
+  }
+
+  private synchronized Member cached(String key) {
+    if (null == key) {
+      return null;
+    }
+    Entry entry = this.members.get(key);
+    if (null == entry) {
+      return null;
+    }
+    if (this.clock.getAsLong() - entry.expiresAt > 0) {
+      this.remove(key);
+      return null;
+    }
+    return entry.member;
+  }
+
+  private synchronized long version() {
+    return this.version;
+  }
+
+  private synchronized void cache(long loadVersion, Member member, String connection) {
+    if (null == member || loadVersion != this.version || (!this.cacheHosts && member.isHost())) {
+      return;
+    }
+    String key = key(member);
+    Entry entry = this.members.get(key);
+    if (null == entry || entry.member != member) {
+      this.remove(key);
+      entry = new Entry(member, this.clock.getAsLong() + this.ttlNanos);
+      this.members.put(key, entry);
+    }
+    if (null != connection && !key.equals(this.connections.put(connection, key))) {
+      entry.connections.add(connection);
+    }
+  }
+
+  private synchronized void invalidate(String key) {
+    this.version++;
+    this.remove(key);
+  }
+
+  private synchronized void invalidateChannel(String channelName) {
+    this.version++;
+    String prefix = key(channelName, "");
+    List<String> keys = new ArrayList<>();
+    for (String key : this.members.keySet()) {
+      if (key.startsWith(prefix)) {
+        keys.add(key);
+      }
+    }
+    keys.forEach(this::remove);
+  }
+
+  private void remove(String key) {
+    Entry entry = this.members.remove(key);
+    if (null != entry) {
+      entry.connections.forEach(connection -> this.connections.remove(connection, key));
+    }
+  }
+
+  private static String key(Member member) {
+    return key(member.getChannelName(), member.getId());
+  }
+
+  private static String key(String channel, String memberId) {
+    return channel + "::" + memberId;
+  }
+
+  private static final class Entry {
+    private final Member member;
+    private final long expiresAt;
+    private final List<String> connections = new ArrayList<>(2);
+
+    Entry(Member member, long expiresAt) {
+      this.member = member;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
@@ -0,0 +1,85 @@
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.backend.router.infrastructure;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.LongSupplier;
+
+/**
+ * Process wide cache of connection owners, so the warm container finds the member of the connection
+ * without reading the connection item. Least recently used connections are evicted when cache is
+ * full, entries expire after ttl.
+ *
+ * <p>Connection may change its owner in another container, by leaving the channel and joining
+ * another one, so cached owner is only a hint: {@link DynamoDbChannels} checks that the member
+ * still has the connection, and reads the connection item if it doesn't.
+ */
+public class ConnectionIdentities {
+
+  private final int maxSize;
+  private final long ttlNanos;
+  private final LongSupplier clock;
+  private final Map<String, Identity> identities;
+
+  public ConnectionIdentities(int maxSize, Duration ttl) {
+    this(maxSize, ttl, System::nanoTime);
+  }
+
+  ConnectionIdentities(int maxSize, Duration ttl, LongSupplier clock) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("Cache size must be positive");
+    }
+    this.maxSize = maxSize;
+    this.ttlNanos = ttl.toNanos();
+    this.clock = clock;
+    this.identities =
+        new LinkedHashMap<>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, Identity> eldest) {
+            return this.size() > ConnectionIdentities.this.maxSize;
+          }
+        };
+  }
+
+  /** Connection item of the cached owner, or null if connection is not cached or expired */
+  synchronized DynamoDBConnection get(String connectionUri) {
+    Identity identity = this.identities.get(connectionUri);
+    if (null == identity) {
+      return null;
+    }
+    if (this.clock.getAsLong() - identity.expiresAt > 0) {
+      this.identities.remove(connectionUri);
+      return null;
+    }
+    DynamoDBConnection connection =
+        new DynamoDBConnection(connectionUri, identity.channelName, identity.memberId);
+    connection.setPeerMemberId(identity.peerMemberId);
+    return connection;
+  }
+
+  /** Caches the owner of the connection, along with its peer hint */
+  synchronized void put(String connectionUri, String channelName, String memberId, String peer) {
+    Objects.requireNonNull(connectionUri, "connection");
+    this.identities.put(
+        connectionUri,
+        new Identity(channelName, memberId, peer, this.clock.getAsLong() + this.ttlNanos));
+  }
+
+  synchronized void remove(String connectionUri) {
+    this.identities.remove(connectionUri);
+  }
+
+  /** Removes all cached connections */
+  public synchronized void invalidateAll() {
+    this.identities.clear();
+  }
+
+  public synchronized int size() {
+    return this.identities.size();
+  }
+
+  private record Identity(
+      String channelName, String memberId, String peerMemberId, long expiresAt) {}
+}
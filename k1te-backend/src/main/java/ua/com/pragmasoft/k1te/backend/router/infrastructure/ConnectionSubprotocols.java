@@ -0,0 +1,76 @@
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.backend.router.infrastructure;
+
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbEnhancedClient;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbTable;
+import software.amazon.awssdk.enhanced.dynamodb.Expression;
+import software.amazon.awssdk.enhanced.dynamodb.Key;
+import software.amazon.awssdk.enhanced.dynamodb.model.DeleteItemEnhancedRequest;
+import software.amazon.awssdk.enhanced.dynamodb.model.GetItemEnhancedRequest;
+import software.amazon.awssdk.enhanced.dynamodb.model.UpdateItemEnhancedRequest;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import ua.com.pragmasoft.k1te.backend.ws.WsConnector;
+
+/**
+ * Keeps websocket subprotocol negotiated by the connection in its connection item, so it is known
+ * to every container delivering to the connection, not only to the one which handled the
+ * handshake. Subprotocol is written before the member joins, so the item may have no member yet.
+ * {@link DynamoDbChannels} updates connection items in place, so the subprotocol is kept when the
+ * member is written.
+ */
+public class ConnectionSubprotocols {
+
+  private static final Expression NO_MEMBER =
+      Expression.builder().expression("attribute_not_exists(memberId)").build();
+
+  private final DynamoDbTable<DynamoDBConnection> connectionsTable;
+
+  public ConnectionSubprotocols(
+      DynamoDbEnhancedClient enhancedDynamo, String serverlessEnvironmentName) {
+    this.connectionsTable =
+        enhancedDynamo.table(
+            null != serverlessEnvironmentName
+                ? serverlessEnvironmentName + '.' + DynamoDbChannels.CONNECTIONS
+                : DynamoDbChannels.CONNECTIONS,
+            DynamoDBConnection.SCHEMA);
+  }
+
+  /** Stores subprotocol of the websocket connection, creating the connection item if needed */
+  public void put(String rawConnection, String subprotocol) {
+    var connection = new DynamoDBConnection(WsConnector.WS, rawConnection, null, null);
+    connection.setSubprotocol(subprotocol);
+    this.connectionsTable.updateItem(
+        UpdateItemEnhancedRequest.builder(DynamoDBConnection.class)
+            .item(connection)
+            .ignoreNulls(true)
+            .build());
+  }
+
+  /** Subprotocol of the websocket connection, or null if it uses the default one */
+  public String get(String rawConnection) {
+    DynamoDBConnection connection =
+        this.connectionsTable.getItem(
+            GetItemEnhancedRequest.builder()
+                .key(this.keyOf(rawConnection))
+                .consistentRead(true)
+                .build());
+    return null != connection ? connection.getSubprotocol() : null;
+  }
+
+  /** Deletes the connection item, unless the member has joined with it */
+  public void remove(String rawConnection) {
+    try {
+      this.connectionsTable.deleteItem(
+          DeleteItemEnhancedRequest.builder()
+              .key(this.keyOf(rawConnection))
+              .conditionExpression(NO_MEMBER)
+              .build());
+    } catch (ConditionalCheckFailedException e) {
+      // member's connection is deleted on disconnect
+    }
+  }
+
+  private Key keyOf(String rawConnection) {
+    return Key.builder().partitionValue(WsConnector.WS).sortValue(rawConnection).build();
+  }
+}
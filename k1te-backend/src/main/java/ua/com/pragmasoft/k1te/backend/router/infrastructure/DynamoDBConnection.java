@@ -1,18 +1,25 @@
 /* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
 package ua.com.pragmasoft.k1te.backend.router.infrastructure;
 
+import software.amazon.awssdk.enhanced.dynamodb.TableSchema;
 import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbBean;
+import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbIgnoreNulls;
 import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbPartitionKey;
 import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbSortKey;
-import ua.com.pragmasoft.k1te.backend.router.domain.Connector;
+import ua.com.pragmasoft.k1te.backend.router.domain.ConnectionUri;
 
 @DynamoDbBean
 public class DynamoDBConnection {
 
+  static final String PEER_MEMBER_ID = "peerMemberId";
+  static final TableSchema<DynamoDBConnection> SCHEMA = DynamoDbSchemas.connection();
+
   private String connector;
   private String rawId;
   private String channelName;
   private String memberId;
+  private String peerMemberId;
+  private String subprotocol;
 
   public DynamoDBConnection(String connector, String rawId, String channelName, String memberId) {
     this.connector = connector;
@@ -22,8 +29,12 @@ public class DynamoDBConnection {
   }
 
   public DynamoDBConnection(String connectionUri, String channelName, String memberId) {
-    this.connector = Connector.connectorId(connectionUri);
-    this.rawId = Connector.rawConnection(connectionUri);
+    this(ConnectionUri.parse(connectionUri), channelName, memberId);
+  }
+
+  public DynamoDBConnection(ConnectionUri connectionUri, String channelName, String memberId) {
+    this.connector = connectionUri.connectorId();
+    this.rawId = connectionUri.rawConnection();
     this.channelName = channelName;
     this.memberId = memberId;
   }
@@ -63,4 +74,24 @@ public class DynamoDBConnection {
   public void setMemberId(String memberId) {
     this.memberId = memberId;
   }
+
+  /** Peer of the member at the time connection was written, lets to fetch both in one request */
+  @DynamoDbIgnoreNulls
+  public String getPeerMemberId() {
+    return peerMemberId;
+  }
+
+  public void setPeerMemberId(String peerMemberId) {
+    this.peerMemberId = peerMemberId;
+  }
+
+  /** Websocket subprotocol negotiated by the connection, absent for the default one */
+  @DynamoDbIgnoreNulls
+  public String getSubprotocol() {
+    return subprotocol;
+  }
+
+  public void setSubprotocol(String subprotocol) {
+    this.subprotocol = subprotocol;
+  }
 }
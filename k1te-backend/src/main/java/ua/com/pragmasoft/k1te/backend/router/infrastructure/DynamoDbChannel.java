@@ -3,17 +3,34 @@ package ua.com.pragmasoft.k1te.backend.router.infrastructure;
 
 import java.time.Duration;
 import java.time.Instant;
+import software.amazon.awssdk.enhanced.dynamodb.TableSchema;
 import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbBean;
 import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbPartitionKey;
+import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbSecondaryPartitionKey;
+import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbSecondarySortKey;
 
 @DynamoDbBean
 public class DynamoDbChannel {
 
   public static final Duration DEFAULT_TIMEOUT = Duration.ofDays(92);
+  static final String DROPPED_ATTRIBUTE = "dropped";
+  static final String TOMBSTONE_ATTRIBUTE = "tombstone";
+
+  /**
+   * Sparse index of the dropped channels, only tombstones have its partition key, which is always
+   * {@link #TOMBSTONE}
+   */
+  static final String TOMBSTONES_INDEX = "Tombstones";
+
+  static final String TOMBSTONE = "dropped";
+
+  static final TableSchema<DynamoDbChannel> SCHEMA = DynamoDbSchemas.channel();
 
   private String name;
   private String host;
-  private long ttl;
+  private Long ttl;
+  private Long dropped;
+  private String tombstone;
 
   public DynamoDbChannel() {
     super();
@@ -50,16 +67,52 @@ public class DynamoDbChannel {
     this.host = host;
   }
 
-  public long getTtl() {
+  public Long getTtl() {
     return ttl;
   }
 
-  public void setTtl(long ttl) {
+  public void setTtl(Long ttl) {
     this.ttl = ttl;
   }
 
+  /** Epoch second when the channel was dropped, or null if it was not */
+  @DynamoDbSecondarySortKey(indexNames = TOMBSTONES_INDEX)
+  public Long getDropped() {
+    return dropped;
+  }
+
+  public void setDropped(Long dropped) {
+    this.dropped = dropped;
+  }
+
+  /** {@link #TOMBSTONE} if the channel was dropped, so it is in the tombstones index */
+  @DynamoDbSecondaryPartitionKey(indexNames = TOMBSTONES_INDEX)
+  public String getTombstone() {
+    return tombstone;
+  }
+
+  public void setTombstone(String tombstone) {
+    this.tombstone = tombstone;
+  }
+
+  /** Marks the channel dropped at the given epoch second */
+  public void tombstone(long dropped) {
+    this.dropped = dropped;
+    this.tombstone = TOMBSTONE;
+  }
+
   @Override
   public String toString() {
-    return "DynamoDbChannel [name=" + name + ", host=" + host + ", ttl=" + ttl + "]";
+    return "DynamoDbChannel [name="
+        + name
+        + ", host="
+        + host
+        + ", ttl="
+        + ttl
+        + ", dropped="
+        + dropped
+        + ", tombstone="
+        + tombstone
+        + "]";
   }
 }
@@ -0,0 +1,296 @@
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.backend.router.infrastructure;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbEnhancedClient;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbTable;
+import software.amazon.awssdk.enhanced.dynamodb.Expression;
+import software.amazon.awssdk.enhanced.dynamodb.Key;
+import software.amazon.awssdk.enhanced.dynamodb.model.QueryConditional;
+import software.amazon.awssdk.enhanced.dynamodb.model.WriteBatch;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import ua.com.pragmasoft.k1te.backend.router.domain.ConnectionUri;
+import ua.com.pragmasoft.k1te.backend.shared.KiteException;
+
+/**
+ * Deletes the dropped channel. Members are read page by page and deleted along with their
+ * connections and history by batch writes, so channel size is not limited by the transaction size.
+ * Channel item stays tombstoned until everything else is deleted, so teardown interrupted by a
+ * crash, a failure or the time budget is continued by {@link #resume()}, which finds tombstones
+ * with the sparse {@value DynamoDbChannel#TOMBSTONES_INDEX} index.
+ */
+public class DynamoDbChannelTeardown {
+
+  private static final Logger log = LoggerFactory.getLogger(DynamoDbChannelTeardown.class);
+
+  private static final int PAGE_SIZE = DynamoDbWriteBehind.MAX_BATCH_SIZE;
+  private static final int BATCH_ATTEMPTS = 3;
+  private static final long BACKOFF_MILLIS = 50;
+
+  private static final Expression droppedCondition =
+      Expression.builder()
+          .expression("attribute_exists(#dropped)")
+          .putExpressionName("#dropped", DynamoDbChannel.DROPPED_ATTRIBUTE)
+          .build();
+
+  private final DynamoDbEnhancedClient enhancedDynamo;
+  private final DynamoDbTable<DynamoDbChannel> channelsTable;
+  private final DynamoDbTable<DynamoDbMember> membersTable;
+  private final DynamoDbTable<DynamoDBConnection> connectionsTable;
+  private final DynamoDbTable<DynamoDbHistoryMessage> messagesTable;
+  private final Executor executor;
+  private final Duration budget;
+
+  /**
+   * @param enhancedDynamo
+   * @param serverlessEnvironmentName
+   * @param executor runs teardown in background, or null to run it in the calling thread
+   */
+  public DynamoDbChannelTeardown(
+      DynamoDbEnhancedClient enhancedDynamo, String serverlessEnvironmentName, Executor executor) {
+    this(enhancedDynamo, serverlessEnvironmentName, executor, null);
+  }
+
+  /**
+   * @param enhancedDynamo
+   * @param serverlessEnvironmentName
+   * @param executor runs teardown in background, or null to run it in the calling thread
+   * @param budget time the teardown may take in the calling thread, or null if it is not limited.
+   *     Channel which was not deleted within it stays tombstoned until the next {@link #resume()}.
+   */
+  public DynamoDbChannelTeardown(
+      DynamoDbEnhancedClient enhancedDynamo,
+      String serverlessEnvironmentName,
+      Executor executor,
+      Duration budget) {
+    this.enhancedDynamo = enhancedDynamo;
+    this.executor = executor;
+    this.budget = budget;
+    this.channelsTable =
+        enhancedDynamo.table(
+            tableName(serverlessEnvironmentName, DynamoDbChannels.CHANNELS),
+            DynamoDbChannel.SCHEMA);
+    this.membersTable =
+        enhancedDynamo.table(
+            tableName(serverlessEnvironmentName, DynamoDbChannels.MEMBERS), DynamoDbMember.SCHEMA);
+    this.connectionsTable =
+        enhancedDynamo.table(
+            tableName(serverlessEnvironmentName, DynamoDbChannels.CONNECTIONS),
+            DynamoDBConnection.SCHEMA);
+    this.messagesTable =
+        enhancedDynamo.table(
+            tableName(serverlessEnvironmentName, DynamoDbMessages.MESSAGES_TABLE),
+            DynamoDbHistoryMessage.SCHEMA);
+  }
+
+  /**
+   * Tears the tombstoned channel down with the executor, or right away within the budget if there's
+   * no executor. Failed teardown is logged, the channel stays tombstoned until resumed.
+   */
+  public void drop(String channelName, String hostId) {
+    Objects.requireNonNull(channelName, "channel name");
+    Objects.requireNonNull(hostId, "host id");
+    if (null == this.executor) {
+      this.teardownSafely(channelName, hostId, this.deadline());
+    } else {
+      this.executor.execute(() -> this.teardownSafely(channelName, hostId, null));
+    }
+  }
+
+  /**
+   * Tears down channels which were tombstoned, but not deleted yet. Without the executor, they are
+   * torn down one by one within the single budget, the rest is left for the next run.
+   *
+   * @return number of channels, which teardown was resumed
+   */
+  public int resume() {
+    Long deadline = this.deadline();
+    int resumed = 0;
+    for (DynamoDbChannel channel : this.tombstones()) {
+      if (null == this.executor) {
+        if (expired(deadline)) {
+          break;
+        }
+        this.teardownSafely(channel.getName(), channel.getHost(), deadline);
+      } else {
+        this.executor.execute(
+            () -> this.teardownSafely(channel.getName(), channel.getHost(), null));
+      }
+      resumed++;
+    }
+    if (resumed > 0) {
+      log.info("Resumed teardown of {} dropped channels", resumed);
+    }
+    return resumed;
+  }
+
+  /**
+   * @param deadline {@link System#nanoTime()} to stop at, or null if there's none
+   * @return true if the channel was deleted, false if deadline has passed before
+   */
+  boolean teardown(String channelName, String hostId, Long deadline) {
+    Key channelKey = Key.builder().partitionValue(channelName).build();
+    int deleted = 0;
+    List<DynamoDbMember> members;
+    // deleted members are gone from the partition, so it's always the first page which is read
+    while (!(members = this.firstPage(channelKey)).isEmpty()) {
+      if (expired(deadline)) {
+        log.info("Teardown of channel {} paused after {} members", channelName, deleted);
+        return false;
+      }
+      List<Key> memberKeys = new ArrayList<>(members.size());
+      List<Key> connectionKeys = new ArrayList<>();
+      for (DynamoDbMember member : members) {
+        this.deleteHistory(DynamoDbHistoryMessage.buildId(channelName, member.getId()));
+        member.getConnections().values().stream()
+            .map(DynamoDbMember.MemberConnection::getConnectionUri)
+            .filter(Objects::nonNull)
+            .map(ConnectionUri::parse)
+            .map(
+                uri ->
+                    Key.builder()
+                        .partitionValue(uri.connectorId())
+                        .sortValue(uri.rawConnection())
+                        .build())
+            .forEach(connectionKeys::add);
+        memberKeys.add(this.membersTable.keyFrom(member));
+      }
+      // member goes last, so its connections and history are found again after a crash
+      this.deleteAll(this.connectionsTable, DynamoDBConnection.class, connectionKeys);
+      this.deleteAll(this.membersTable, DynamoDbMember.class, memberKeys);
+      deleted += members.size();
+    }
+    this.deleteChannel(
+        DynamoDbChannels.REVERSE_CHANNEL_KEY_PREFIX + hostId,
+        Expression.builder()
+            .expression("#host = :channel")
+            .putExpressionName("#host", "host")
+            .putExpressionValue(":channel", AttributeValue.fromS(channelName))
+            .build());
+    this.deleteChannel(channelName, droppedCondition);
+    log.info("Channel {} dropped with {} members", channelName, deleted);
+    return true;
+  }
+
+  private void teardownSafely(String channelName, String hostId, Long deadline) {
+    try {
+      this.teardown(channelName, hostId, deadline);
+    } catch (RuntimeException e) {
+      log.error("Teardown of channel {} failed, will be resumed", channelName, e);
+    }
+  }
+
+  /** Tombstoned channels, oldest first */
+  private List<DynamoDbChannel> tombstones() {
+    return this.channelsTable
+        .index(DynamoDbChannel.TOMBSTONES_INDEX)
+        .query(
+            query ->
+                query.queryConditional(
+                    QueryConditional.keyEqualTo(
+                        key -> key.partitionValue(DynamoDbChannel.TOMBSTONE))))
+        .stream()
+        .flatMap(page -> page.items().stream())
+        .toList();
+  }
+
+  private Long deadline() {
+    return null != this.budget ? System.nanoTime() + this.budget.toNanos() : null;
+  }
+
+  private static boolean expired(Long deadline) {
+    return null != deadline && System.nanoTime() - deadline > 0;
+  }
+
+  private List<DynamoDbMember> firstPage(Key channelKey) {
+    var pages =
+        this.membersTable
+            .query(
+                query ->
+                    query
+                        .queryConditional(QueryConditional.keyEqualTo(channelKey))
+                        .limit(PAGE_SIZE))
+            .iterator();
+    return pages.hasNext() ? pages.next().items() : List.of();
+  }
+
+  private void deleteHistory(String historyId) {
+    Key historyKey = Key.builder().partitionValue(historyId).build();
+    List<Key> keys = new ArrayList<>(PAGE_SIZE);
+    for (DynamoDbHistoryMessage message :
+        this.messagesTable
+            .query(
+                query ->
+                    query
+                        .queryConditional(QueryConditional.keyEqualTo(historyKey))
+                        .attributesToProject("id", "messageId")
+                        .limit(PAGE_SIZE))
+            .items()) {
+      keys.add(this.messagesTable.keyFrom(message));
+      if (keys.size() == PAGE_SIZE) {
+        this.deleteAll(this.messagesTable, DynamoDbHistoryMessage.class, keys);
+        keys.clear();
+      }
+    }
+    this.deleteAll(this.messagesTable, DynamoDbHistoryMessage.class, keys);
+  }
+
+  /**
+   * Deletes items with batch writes, unprocessed ones are retried a few times
+   *
+   * @throws KiteException if some items were not deleted
+   */
+  private <T> void deleteAll(DynamoDbTable<T> table, Class<T> itemClass, List<Key> keys) {
+    for (int i = 0; i < keys.size(); i += DynamoDbWriteBehind.MAX_BATCH_SIZE) {
+      List<Key> chunk =
+          keys.subList(i, Math.min(keys.size(), i + DynamoDbWriteBehind.MAX_BATCH_SIZE));
+      for (int attempt = 0; !chunk.isEmpty(); attempt++) {
+        if (attempt == BATCH_ATTEMPTS) {
+          throw new KiteException(
+              "%d items of %s were not deleted".formatted(chunk.size(), table.tableName()));
+        }
+        if (attempt > 0) {
+          this.backoff(attempt);
+        }
+        var batch = WriteBatch.builder(itemClass).mappedTableResource(table);
+        chunk.forEach(batch::addDeleteItem);
+        chunk =
+            this.enhancedDynamo
+                .batchWriteItem(request -> request.writeBatches(batch.build()))
+                .unprocessedDeleteItemsForTable(table);
+      }
+    }
+  }
+
+  private void deleteChannel(String name, Expression condition) {
+    try {
+      this.channelsTable.deleteItem(
+          delete ->
+              delete
+                  .key(Key.builder().partitionValue(name).build())
+                  .conditionExpression(condition));
+    } catch (ConditionalCheckFailedException e) {
+      log.debug("Channel item {} is already deleted or taken", name);
+    }
+  }
+
+  private void backoff(int attempt) {
+    try {
+      Thread.sleep(BACKOFF_MILLIS << (attempt - 1));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new KiteException("Teardown interrupted", e);
+    }
+  }
+
+  private static String tableName(String serverlessEnvironmentName, String table) {
+    return null != serverlessEnvironmentName ? serverlessEnvironmentName + '.' + table : table;
+  }
+}
@@ -1,18 +1,27 @@
 /* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
 package ua.com.pragmasoft.k1te.backend.router.infrastructure;
 
-import java.util.HashMap;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.enhanced.dynamodb.*;
 import software.amazon.awssdk.enhanced.dynamodb.model.*;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
 import software.amazon.awssdk.services.dynamodb.model.TransactionCanceledException;
 import ua.com.pragmasoft.k1te.backend.router.domain.ChannelName;
 import ua.com.pragmasoft.k1te.backend.router.domain.Channels;
-import ua.com.pragmasoft.k1te.backend.router.domain.Connector;
+import ua.com.pragmasoft.k1te.backend.router.domain.ConnectionUri;
 import ua.com.pragmasoft.k1te.backend.router.domain.Member;
 import ua.com.pragmasoft.k1te.backend.shared.ConflictException;
 import ua.com.pragmasoft.k1te.backend.shared.KiteException;
@@ -24,7 +33,7 @@ public class DynamoDbChannels implements Channels {
   private static final Logger log = LoggerFactory.getLogger(DynamoDbChannels.class);
   private static final boolean AI_FEATURE_FLAG = false;
 
-  private final HashMap<String, DynamoDbMember> stash = new HashMap<>(8);
+  private final Map<String, DynamoDbMember> stash = new ConcurrentHashMap<>(8);
 
   public static final String MEMBERS = "Members";
   public static final String CHANNELS = "Channels";
@@ -45,8 +54,85 @@ public class DynamoDbChannels implements Channels {
   private final DynamoDbTable<DynamoDbChannel> channelsTable;
   private final DynamoDbTable<DynamoDbMember> membersTable;
   private final DynamoDbTable<DynamoDBConnection> connectionsTable;
+  private final DynamoDbWriteBehind writeBehind;
+  private final DynamoDbChannelTeardown teardown;
+  private final DynamoDbEnhancedAsyncClient asyncDynamo;
+  private final DynamoDbAsyncTable<DynamoDbMember> asyncMembersTable;
+  private final DynamoDbAsyncTable<DynamoDBConnection> asyncConnectionsTable;
+  private final ConnectionIdentities identities;
+
+  public DynamoDbChannels(
+      DynamoDbEnhancedClient enhancedDynamo,
+      DynamoDbClient dynamoDbClient,
+      String serverlessEnvironmentName) {
+    this(
+        enhancedDynamo,
+        serverlessEnvironmentName,
+        new DynamoDbWriteBehind(enhancedDynamo, dynamoDbClient));
+  }
+
+  /**
+   * @param enhancedDynamo
+   * @param serverlessEnvironmentName
+   * @param writeBehind writes changed members on flush, may be shared by instances
+   */
+  public DynamoDbChannels(
+      DynamoDbEnhancedClient enhancedDynamo,
+      String serverlessEnvironmentName,
+      DynamoDbWriteBehind writeBehind) {
+    this(
+        enhancedDynamo,
+        serverlessEnvironmentName,
+        writeBehind,
+        new DynamoDbChannelTeardown(enhancedDynamo, serverlessEnvironmentName, null));
+  }
+
+  /**
+   * @param enhancedDynamo
+   * @param serverlessEnvironmentName
+   * @param writeBehind writes changed members on flush, may be shared by instances
+   * @param teardown deletes dropped channels, may be shared by instances
+   */
+  public DynamoDbChannels(
+      DynamoDbEnhancedClient enhancedDynamo,
+      String serverlessEnvironmentName,
+      DynamoDbWriteBehind writeBehind,
+      DynamoDbChannelTeardown teardown) {
+    this(enhancedDynamo, serverlessEnvironmentName, writeBehind, teardown, null);
+  }
+
+  /**
+   * @param enhancedDynamo
+   * @param serverlessEnvironmentName
+   * @param writeBehind
+   * @param teardown
+   * @param asyncDynamo finds routes without blocking, or null to find them with enhancedDynamo
+   */
+  public DynamoDbChannels(
+      DynamoDbEnhancedClient enhancedDynamo,
+      String serverlessEnvironmentName,
+      DynamoDbWriteBehind writeBehind,
+      DynamoDbChannelTeardown teardown,
+      DynamoDbEnhancedAsyncClient asyncDynamo) {
+    this(enhancedDynamo, serverlessEnvironmentName, writeBehind, teardown, asyncDynamo, null);
+  }
 
-  public DynamoDbChannels(DynamoDbEnhancedClient enhancedDynamo, String serverlessEnvironmentName) {
+  /**
+   * @param enhancedDynamo
+   * @param serverlessEnvironmentName
+   * @param writeBehind
+   * @param teardown
+   * @param asyncDynamo
+   * @param identities owners of the connections, may be shared by instances, or null to read the
+   *     connection item every time
+   */
+  public DynamoDbChannels(
+      DynamoDbEnhancedClient enhancedDynamo,
+      String serverlessEnvironmentName,
+      DynamoDbWriteBehind writeBehind,
+      DynamoDbChannelTeardown teardown,
+      DynamoDbEnhancedAsyncClient asyncDynamo,
+      ConnectionIdentities identities) {
     this.membersTableName =
         null != serverlessEnvironmentName ? serverlessEnvironmentName + '.' + MEMBERS : MEMBERS;
     this.channelsTableName =
@@ -58,15 +144,22 @@ public class DynamoDbChannels implements Channels {
     log.info("Environment: {}", serverlessEnvironmentName);
 
     this.enhancedDynamo = enhancedDynamo;
-    this.channelsTable =
-        this.enhancedDynamo.table(
-            this.channelsTableName, TableSchema.fromClass(DynamoDbChannel.class));
-    this.membersTable =
-        this.enhancedDynamo.table(
-            this.membersTableName, TableSchema.fromClass(DynamoDbMember.class));
+    this.writeBehind = writeBehind;
+    this.teardown = teardown;
+    this.channelsTable = this.enhancedDynamo.table(this.channelsTableName, DynamoDbChannel.SCHEMA);
+    this.membersTable = this.enhancedDynamo.table(this.membersTableName, DynamoDbMember.SCHEMA);
     this.connectionsTable =
-        this.enhancedDynamo.table(
-            this.connectionsTableName, TableSchema.fromClass(DynamoDBConnection.class));
+        this.enhancedDynamo.table(this.connectionsTableName, DynamoDBConnection.SCHEMA);
+    this.asyncDynamo = asyncDynamo;
+    this.asyncMembersTable =
+        null != asyncDynamo
+            ? asyncDynamo.table(this.membersTableName, DynamoDbMember.SCHEMA)
+            : null;
+    this.asyncConnectionsTable =
+        null != asyncDynamo
+            ? asyncDynamo.table(this.connectionsTableName, DynamoDBConnection.SCHEMA)
+            : null;
+    this.identities = identities;
   }
 
   @Override
@@ -80,6 +173,7 @@ public class DynamoDbChannels implements Channels {
 
     DynamoDbMember hostMember = new DynamoDbMember(channel, memberId, title, true, null);
     hostMember.updateConnection(ownerConnection);
+    hostMember.takeChanges(); // new item is put as a whole
 
     if (AI_FEATURE_FLAG) {
       // TODO: 30.11.2023 AI
@@ -111,6 +205,8 @@ public class DynamoDbChannels implements Channels {
                   .addPutItem(this.channelsTable, putReverseChannel)
                   .addPutItem(this.membersTable, hostMember)
                   .addPutItem(this.connectionsTable, dbConnection));
+      hostMember.versionWritten(1); // new item gets the initial version
+      this.remember(ownerConnection, dbConnection);
       return hostMember;
     } catch (TransactionCanceledException e) {
       var reasons = e.cancellationReasons();
@@ -126,6 +222,11 @@ public class DynamoDbChannels implements Channels {
     }
   }
 
+  /**
+   * Tombstones the channel with a single conditional write, the rest of it is deleted by the
+   * teardown. Teardown which didn't complete is resumed from the tombstone, not by dropping the
+   * channel again.
+   */
   @Override
   public Member dropChannel(String memberConnection) {
     Objects.requireNonNull(memberConnection, "member connection");
@@ -135,30 +236,38 @@ public class DynamoDbChannels implements Channels {
     if (!member.isHost()) throw new ValidationException("Only host member can drop its channel");
 
     String channelName = member.getChannelName();
-    String connectorId = Connector.connectorId(memberConnection);
-    String rawConnection = Connector.rawConnection(memberConnection);
-
-    Key channelKey = Key.builder().partitionValue(channelName).build();
-    Key reverseChannelKey =
-        Key.builder().partitionValue(REVERSE_CHANNEL_KEY_PREFIX + member.getId()).build();
-    Key connectionKey = Key.builder().partitionValue(connectorId).sortValue(rawConnection).build();
+    DynamoDbChannel tombstone = new DynamoDbChannel();
+    tombstone.setName(channelName);
+    tombstone.tombstone(Instant.now().getEpochSecond());
+    try {
+      this.channelsTable.updateItem(
+          UpdateItemEnhancedRequest.builder(DynamoDbChannel.class)
+              .item(tombstone)
+              .ignoreNulls(true)
+              .conditionExpression(
+                  Expression.builder()
+                      .expression("#host = :host")
+                      .putExpressionName("#host", "host")
+                      .putExpressionValue(":host", AttributeValue.fromS(member.getId()))
+                      .build())
+              .build());
+    } catch (ConditionalCheckFailedException e) {
+      throw new NotFoundException("Channel not found", e);
+    }
 
-    TransactWriteItemsEnhancedRequest.Builder builder = TransactWriteItemsEnhancedRequest.builder();
-    this.membersTable
-        .query(query -> query.queryConditional(QueryConditional.keyEqualTo(channelKey)))
-        .items()
-        .forEach(
-            dynamoDbMember ->
-                builder.addDeleteItem(
-                    this.membersTable, dynamoDbMember)); // Deletes all members in channel
-
-    this.enhancedDynamo.transactWriteItems(
-        builder
-            .addDeleteItem(this.channelsTable, channelKey)
-            .addDeleteItem(this.channelsTable, reverseChannelKey)
-            .addDeleteItem(this.connectionsTable, connectionKey)
+    // the host is not written back on flush, other members are not stashed by this request
+    this.stash.remove(this.constructCachedMemberId(channelName, member.getId()));
+    this.writeBehind.discard(this.membersTable, this.membersTable.keyFrom(member));
+    ConnectionUri parsedUri = ConnectionUri.parse(memberConnection);
+    this.writeBehind.discard(
+        this.connectionsTable,
+        Key.builder()
+            .partitionValue(parsedUri.connectorId())
+            .sortValue(parsedUri.rawConnection())
             .build());
 
+    this.forget(memberConnection);
+    this.teardown.drop(channelName, member.getId());
     return member;
   }
 
@@ -172,12 +281,11 @@ public class DynamoDbChannels implements Channels {
 
     Key channelKey = Key.builder().partitionValue(channelName).build();
     DynamoDbChannel channel = this.channelsTable.getItem(channelKey);
-    if (null == channel) {
+    if (null == channel || null != channel.getDropped()) {
       throw new NotFoundException("Channel not found");
     }
 
-    Key memberKey = Key.builder().partitionValue(channelName).sortValue(memberId).build();
-    DynamoDbMember maybeMember = this.membersTable.getItem(memberKey);
+    DynamoDbMember maybeMember = this.findStashed(channelName, memberId);
     if (maybeMember != null) {
       //      throw new ValidationException("You are already in this Channel");
       return maybeMember; // In order not to fail the app due to some not done work on Client side.
@@ -187,22 +295,31 @@ public class DynamoDbChannels implements Channels {
     final String hostId = channel.getHost();
     DynamoDbMember member = new DynamoDbMember(channelName, memberId, userName, false, hostId);
     member.updateConnection(memberConnection);
+    member.takeChanges(); // new item is put as a whole
 
     DynamoDBConnection dbConnection =
         new DynamoDBConnection(memberConnection, channelName, memberId);
+    dbConnection.setPeerMemberId(hostId);
 
-    WriteBatch putMember =
-        WriteBatch.builder(DynamoDbMember.class)
-            .addPutItem(member)
-            .mappedTableResource(this.membersTable)
-            .build();
-    WriteBatch putConnection =
-        WriteBatch.builder(DynamoDBConnection.class)
-            .addPutItem(dbConnection)
-            .mappedTableResource(this.connectionsTable)
-            .build();
+    this.writeBehind.discard(this.membersTable, this.membersTable.keyFrom(member));
+    this.writeBehind.discard(this.connectionsTable, this.connectionsTable.keyFrom(dbConnection));
+    try {
+      // versioned put is conditional, so it can't be batched
+      this.membersTable.putItem(member);
+      member.versionWritten(1); // new item gets the initial version
+    } catch (ConditionalCheckFailedException e) {
+      // joined concurrently with another connection
+      maybeMember = this.findStashed(channelName, memberId);
+      if (null == maybeMember) {
+        throw new ConflictException(e.getMessage(), e);
+      }
+      return maybeMember;
+    } catch (Exception e) {
+      throw new ConflictException(e.getMessage(), e);
+    }
     try {
-      this.enhancedDynamo.batchWriteItem(builder -> builder.writeBatches(putMember, putConnection));
+      this.writeConnection(dbConnection);
+      this.remember(memberConnection, dbConnection);
       return member;
     } catch (Exception e) {
       throw new ConflictException(e.getMessage(), e);
@@ -215,44 +332,39 @@ public class DynamoDbChannels implements Channels {
 
     Key channelKey = Key.builder().partitionValue(channelName).build();
     DynamoDbChannel channel = this.channelsTable.getItem(channelKey);
-    if (channel == null)
+    if (channel == null || channel.getDropped() != null)
       throw new NotFoundException("There is no Channel with name " + channelName);
 
     if (memberId == null || memberId.isEmpty()) return null;
 
-    Key memberKey = Key.builder().partitionValue(channelName).sortValue(memberId).build();
-    DynamoDbMember maybeMember = this.membersTable.getItem(memberKey);
+    DynamoDbMember maybeMember = this.findStashed(channelName, memberId);
     if (maybeMember == null)
       throw new NotFoundException(
           "There is no Member with id %s in Channel %s".formatted(memberId, channelName));
 
     DynamoDBConnection dbConnection = new DynamoDBConnection(newConnection, channelName, memberId);
-    maybeMember.updateConnection(newConnection);
-
-    WriteBatch memberRequest =
-        WriteBatch.builder(DynamoDbMember.class)
-            .addPutItem(maybeMember)
-            .mappedTableResource(this.membersTable)
-            .build();
-    WriteBatch connectionRequest =
-        WriteBatch.builder(DynamoDBConnection.class)
-            .addPutItem(dbConnection)
-            .mappedTableResource(this.connectionsTable)
-            .build();
+    dbConnection.setPeerMemberId(maybeMember.getPeerMemberId());
+    maybeMember.updateConnection(newConnection); // Member is updated via flush()
 
-    this.enhancedDynamo.batchWriteItem(
-        builder -> builder.writeBatches(memberRequest, connectionRequest));
+    this.writeBehind.discard(this.connectionsTable, this.connectionsTable.keyFrom(dbConnection));
+    this.writeConnection(dbConnection);
+    this.remember(newConnection, dbConnection);
     return maybeMember;
   }
 
   @Override
   public Member disconnect(String connectionUri) {
     DynamoDbMember member = this.find(connectionUri);
-    String connectorId = Connector.connectorId(connectionUri);
-    String rawConnection = Connector.rawConnection(connectionUri);
-    Key connectionKey = Key.builder().partitionValue(connectorId).sortValue(rawConnection).build();
+    ConnectionUri parsedUri = ConnectionUri.parse(connectionUri);
+    Key connectionKey =
+        Key.builder()
+            .partitionValue(parsedUri.connectorId())
+            .sortValue(parsedUri.rawConnection())
+            .build();
 
+    this.writeBehind.discard(this.connectionsTable, connectionKey);
     this.connectionsTable.deleteItem(connectionKey);
+    this.forget(connectionUri);
     member.deleteConnection(connectionUri); // Member is updated via flush()
     return member;
   }
@@ -265,12 +377,17 @@ public class DynamoDbChannels implements Channels {
     if (member.isHost()) {
       throw new ValidationException("Host member cannot leave channel. You can only drop it");
     }
-    String connectorId = Connector.connectorId(memberConnection);
-    String rawConnection = Connector.rawConnection(memberConnection);
-    Key connectionKey = Key.builder().partitionValue(connectorId).sortValue(rawConnection).build();
+    ConnectionUri parsedUri = ConnectionUri.parse(memberConnection);
+    Key connectionKey =
+        Key.builder()
+            .partitionValue(parsedUri.connectorId())
+            .sortValue(parsedUri.rawConnection())
+            .build();
     Key memberKey =
         Key.builder().partitionValue(member.getChannelName()).sortValue(member.getId()).build();
 
+    this.writeBehind.discard(this.membersTable, memberKey);
+    this.writeBehind.discard(this.connectionsTable, connectionKey);
     WriteBatch deleteMember =
         WriteBatch.builder(DynamoDbMember.class)
             .addDeleteItem(memberKey)
@@ -284,6 +401,7 @@ public class DynamoDbChannels implements Channels {
     try {
       this.enhancedDynamo.batchWriteItem(
           builder -> builder.writeBatches(deleteMember, deleteConnection));
+      this.forget(memberConnection);
       return member;
     } catch (Exception e) { // TransactionCanceledException
       throw new KiteException(e.getMessage(), e);
@@ -292,29 +410,44 @@ public class DynamoDbChannels implements Channels {
 
   @Override
   public DynamoDbMember find(String channel, String id) {
+    DynamoDbMember member = this.findStashed(channel, id);
+    if (null == member) {
+      throw new NotFoundException("Not found member");
+    }
+    return member;
+  }
+
+  /** Returns stashed member, or reads and stashes it. Returns null if there's no such member */
+  private DynamoDbMember findStashed(String channel, String id) {
     DynamoDbMember cachedMember = this.stash.get(this.constructCachedMemberId(channel, id));
     if (cachedMember != null) return cachedMember;
 
     Key memberKey = Key.builder().partitionValue(channel).sortValue(id).build();
     DynamoDbMember member = this.membersTable.getItem(memberKey);
-    if (null == member) {
-      throw new NotFoundException("Not found member");
+    if (null != member) {
+      this.stash.put(constructCachedMemberId(channel, id), member);
     }
-
-    this.stash.put(constructCachedMemberId(channel, id), member);
     return member;
   }
 
   @Override
-  public DynamoDbMember find(String memberConnection) {
-    Objects.requireNonNull(memberConnection, "connection");
-
-    String connectorId = Connector.connectorId(memberConnection);
-    String rawConnection = Connector.rawConnection(memberConnection);
+  public DynamoDbMember attach(Member member) {
+    return this.stash.computeIfAbsent(
+        this.constructCachedMemberId(member.getChannelName(), member.getId()),
+        key -> (DynamoDbMember) member);
+  }
 
-    Key connectionKey = Key.builder().partitionValue(connectorId).sortValue(rawConnection).build();
-    DynamoDBConnection dbConnection = this.connectionsTable.getItem(connectionKey);
-    if (dbConnection == null) throw new NotFoundException("Searched connection Not Found");
+  @Override
+  public DynamoDbMember find(String memberConnection) {
+    DynamoDBConnection cached = this.cachedConnection(memberConnection);
+    if (null != cached) {
+      DynamoDbMember member = this.findStashed(cached.getChannelName(), cached.getMemberId());
+      if (owns(member, memberConnection)) {
+        return member;
+      }
+      this.forget(memberConnection);
+    }
+    DynamoDBConnection dbConnection = this.findConnection(memberConnection);
 
     String channelName = dbConnection.getChannelName();
     String memberId = dbConnection.getMemberId();
@@ -322,6 +455,131 @@ public class DynamoDbChannels implements Channels {
     return find(channelName, memberId);
   }
 
+  /**
+   * Reads the connection, then member and its peer in one batch, using the peer hint stored with
+   * the connection. When the hint is missing or outdated, peer is read separately and the hint is
+   * rewritten on flush. Connection of the cached owner is not read, unless the owner no longer has
+   * it.
+   */
+  @Override
+  public Route findRoute(String memberConnection) {
+    DynamoDBConnection cached = this.cachedConnection(memberConnection);
+    if (null != cached) {
+      this.loadHinted(cached);
+      DynamoDbMember from = this.findStashed(cached.getChannelName(), cached.getMemberId());
+      if (owns(from, memberConnection)) {
+        return this.route(memberConnection, cached, from);
+      }
+      this.forget(memberConnection);
+    }
+    DynamoDBConnection dbConnection = this.findConnection(memberConnection);
+    this.loadHinted(dbConnection);
+    DynamoDbMember from = this.find(dbConnection.getChannelName(), dbConnection.getMemberId());
+    return this.route(memberConnection, dbConnection, from);
+  }
+
+  private void loadHinted(DynamoDBConnection dbConnection) {
+    if (null != dbConnection.getPeerMemberId()) {
+      this.load(
+          dbConnection.getChannelName(),
+          dbConnection.getMemberId(),
+          dbConnection.getPeerMemberId());
+    }
+  }
+
+  /** Marks the peer hint stale if it is outdated, outdated hint is not cached again */
+  private Route route(
+      String memberConnection, DynamoDBConnection dbConnection, DynamoDbMember from) {
+    if (!Objects.equals(dbConnection.getPeerMemberId(), from.getPeerMemberId())) {
+      from.setPeerHintStale(true);
+      dbConnection.setPeerMemberId(from.getPeerMemberId());
+      this.remember(memberConnection, dbConnection);
+    }
+    return new Route(from, this.find(from.getChannelName(), from.getPeerMemberId()));
+  }
+
+  /**
+   * Same reads as {@link #findRoute(String)}, with the async client. Members are stashed when the
+   * reads complete, on the thread of the client, so the stash is a concurrent map.
+   */
+  @Override
+  public CompletionStage<Route> findRouteAsync(String memberConnection) {
+    if (null == this.asyncDynamo) {
+      return Channels.super.findRouteAsync(memberConnection);
+    }
+    Objects.requireNonNull(memberConnection, "connection");
+    DynamoDBConnection cached = this.cachedConnection(memberConnection);
+    if (null != cached) {
+      return this.loadAsync(cached.getChannelName(), cached.getMemberId(), cached.getPeerMemberId())
+          .thenCompose(
+              loaded -> {
+                DynamoDbMember from =
+                    this.stash.get(
+                        this.constructCachedMemberId(
+                            cached.getChannelName(), cached.getMemberId()));
+                if (owns(from, memberConnection)) {
+                  return this.routeAsync(memberConnection, cached, from);
+                }
+                this.forget(memberConnection);
+                return this.findRouteAsync(memberConnection);
+              });
+    }
+    ConnectionUri parsedUri = ConnectionUri.parse(memberConnection);
+    Key connectionKey =
+        Key.builder()
+            .partitionValue(parsedUri.connectorId())
+            .sortValue(parsedUri.rawConnection())
+            .build();
+    return this.asyncConnectionsTable
+        .getItem(connectionKey)
+        .thenCompose(
+            dbConnection -> {
+              if (dbConnection == null || null == dbConnection.getMemberId()) {
+                throw new NotFoundException("Searched connection Not Found");
+              }
+              this.remember(memberConnection, dbConnection);
+              String channelName = dbConnection.getChannelName();
+              return this.loadAsync(
+                      channelName, dbConnection.getMemberId(), dbConnection.getPeerMemberId())
+                  .thenCompose(
+                      loaded ->
+                          this.routeAsync(
+                              memberConnection,
+                              dbConnection,
+                              this.stashed(channelName, dbConnection.getMemberId())));
+            });
+  }
+
+  private CompletionStage<Route> routeAsync(
+      String memberConnection, DynamoDBConnection dbConnection, DynamoDbMember from) {
+    String channelName = from.getChannelName();
+    if (!Objects.equals(dbConnection.getPeerMemberId(), from.getPeerMemberId())) {
+      from.setPeerHintStale(true);
+      dbConnection.setPeerMemberId(from.getPeerMemberId());
+      this.remember(memberConnection, dbConnection);
+    }
+    return this.loadAsync(channelName, from.getPeerMemberId())
+        .thenApply(
+            peerLoaded -> new Route(from, this.stashed(channelName, from.getPeerMemberId())));
+  }
+
+  /**
+   * Queries the members partition of the channel, next page is read once the previous is consumed
+   */
+  @Override
+  public Stream<Member> members(String channelName) {
+    Key channelKey = Key.builder().partitionValue(channelName).build();
+    return this.membersTable
+        .query(
+            query ->
+                query
+                    .queryConditional(QueryConditional.keyEqualTo(channelKey))
+                    .limit(MEMBERS_PAGE_SIZE))
+        .items()
+        .stream()
+        .map(Member.class::cast);
+  }
+
   @Override
   public String findUnAnsweredMessage(Member from, Member to) {
     DynamoDbMember member = (DynamoDbMember) from;
@@ -334,32 +592,182 @@ public class DynamoDbChannels implements Channels {
 
     member.updateConnection(newConnection);
     DynamoDBConnection dbConnection = new DynamoDBConnection(newConnection, channelName, memberId);
+    dbConnection.setPeerMemberId(member.getPeerMemberId());
 
-    this.connectionsTable.putItem(dbConnection);
+    this.writeBehind.discard(this.connectionsTable, this.connectionsTable.keyFrom(dbConnection));
+    this.writeConnection(dbConnection);
+    this.remember(newConnection, dbConnection);
     // Member is updated via flush()
     return member;
   }
 
+  /**
+   * Hands changed members and outdated peer hints of existing connections over to the write behind,
+   * then writes them unless write behind does it in background.
+   */
+  @Override
   public void flush() {
-    List<DynamoDbMember> cachedMembers =
-        this.stash.values().stream().filter(DynamoDbMember::isDirty).toList();
-
-    if (!cachedMembers.isEmpty()) {
-      List<WriteBatch> writeBatches =
-          cachedMembers.stream()
-              .map(
-                  member ->
-                      WriteBatch.builder(DynamoDbMember.class)
-                          .mappedTableResource(this.membersTable)
-                          .addPutItem(member)
-                          .build())
-              .toList();
-      this.enhancedDynamo.batchWriteItem(builder -> builder.writeBatches(writeBatches));
-      this.stash.clear();
+    for (DynamoDbMember member : this.stash.values()) {
+      synchronized (member) {
+        if (member.isDirty()) {
+          member.setDirty(false);
+          this.writeBehind.update(this.membersTable, member, member.takeChanges());
+        }
+      }
+    }
+    // only the hint is updated, so connection deleted on disconnect is not brought back
+    this.staleConnections()
+        .forEach(
+            connection ->
+                this.writeBehind.update(
+                    this.connectionsTable,
+                    this.connectionsTable.keyFrom(connection),
+                    Collections.singletonMap(
+                        List.of(DynamoDBConnection.PEER_MEMBER_ID),
+                        null != connection.getPeerMemberId()
+                            ? AttributeValue.fromS(connection.getPeerMemberId())
+                            : null)));
+    this.stash.clear();
+    if (!this.writeBehind.isBackground()) {
+      this.writeBehind.flush();
     }
     log.debug("{} flush", this.getClass().getSimpleName());
   }
 
+  /** Live connections of the stashed members, which peer hint is outdated */
+  private List<DynamoDBConnection> staleConnections() {
+    List<DynamoDBConnection> connections = new ArrayList<>();
+    for (DynamoDbMember member : this.stash.values()) {
+      if (!member.isPeerHintStale()) {
+        continue;
+      }
+      member.getConnections().values().stream()
+          .map(DynamoDbMember.MemberConnection::getConnectionUri)
+          .filter(Objects::nonNull)
+          .forEach(
+              uri -> {
+                var connection =
+                    new DynamoDBConnection(uri, member.getChannelName(), member.getId());
+                connection.setPeerMemberId(member.getPeerMemberId());
+                connections.add(connection);
+              });
+      member.setPeerHintStale(false);
+    }
+    return connections;
+  }
+
+  private DynamoDBConnection findConnection(String memberConnection) {
+    Objects.requireNonNull(memberConnection, "connection");
+
+    ConnectionUri parsedUri = ConnectionUri.parse(memberConnection);
+
+    Key connectionKey =
+        Key.builder()
+            .partitionValue(parsedUri.connectorId())
+            .sortValue(parsedUri.rawConnection())
+            .build();
+    DynamoDBConnection dbConnection = this.connectionsTable.getItem(connectionKey);
+    // connection item without member only keeps subprotocol, see ConnectionSubprotocols
+    if (dbConnection == null || null == dbConnection.getMemberId())
+      throw new NotFoundException("Searched connection Not Found");
+    this.remember(memberConnection, dbConnection);
+    return dbConnection;
+  }
+
+  /** Writes connection in place, so its subprotocol, written on handshake, is kept */
+  private void writeConnection(DynamoDBConnection dbConnection) {
+    this.connectionsTable.updateItem(
+        UpdateItemEnhancedRequest.builder(DynamoDBConnection.class)
+            .item(dbConnection)
+            .ignoreNulls(true)
+            .build());
+  }
+
+  private DynamoDBConnection cachedConnection(String memberConnection) {
+    return null != this.identities ? this.identities.get(memberConnection) : null;
+  }
+
+  private void remember(String memberConnection, DynamoDBConnection dbConnection) {
+    if (null != this.identities) {
+      this.identities.put(
+          memberConnection,
+          dbConnection.getChannelName(),
+          dbConnection.getMemberId(),
+          dbConnection.getPeerMemberId());
+    }
+  }
+
+  private void forget(String memberConnection) {
+    if (null != this.identities) {
+      this.identities.remove(memberConnection);
+    }
+  }
+
+  /**
+   * Whether the connection is the current one of the member. Member keeps one connection per
+   * connector, so an older connection of the same connector is always read from the table.
+   */
+  private static boolean owns(DynamoDbMember member, String memberConnection) {
+    if (null == member) {
+      return false;
+    }
+    var connection = member.getConnections().get(ConnectionUri.connectorIdOf(memberConnection));
+    return null != connection && memberConnection.equals(connection.getConnectionUri());
+  }
+
+  /** Reads members, which are not stashed yet, with a single batch request */
+  private void load(String channelName, String... memberIds) {
+    var batch = ReadBatch.builder(DynamoDbMember.class).mappedTableResource(this.membersTable);
+    boolean empty = true;
+    for (String memberId : memberIds) {
+      if (!this.stash.containsKey(this.constructCachedMemberId(channelName, memberId))) {
+        batch.addGetItem(Key.builder().partitionValue(channelName).sortValue(memberId).build());
+        empty = false;
+      }
+    }
+    if (empty) {
+      return;
+    }
+    this.enhancedDynamo
+        .batchGetItem(builder -> builder.readBatches(batch.build()))
+        .resultsForTable(this.membersTable)
+        .forEach(
+            member ->
+                this.stash.put(
+                    this.constructCachedMemberId(member.getChannelName(), member.getId()), member));
+  }
+
+  /** Async {@link #load(String, String...)}, member ids may be null */
+  private CompletableFuture<Void> loadAsync(String channelName, String... memberIds) {
+    var batch = ReadBatch.builder(DynamoDbMember.class).mappedTableResource(this.asyncMembersTable);
+    boolean empty = true;
+    for (String memberId : memberIds) {
+      if (null != memberId
+          && !this.stash.containsKey(this.constructCachedMemberId(channelName, memberId))) {
+        batch.addGetItem(Key.builder().partitionValue(channelName).sortValue(memberId).build());
+        empty = false;
+      }
+    }
+    if (empty) {
+      return CompletableFuture.completedFuture(null);
+    }
+    return this.asyncDynamo
+        .batchGetItem(builder -> builder.readBatches(batch.build()))
+        .resultsForTable(this.asyncMembersTable)
+        .subscribe(
+            member ->
+                this.stash.put(
+                    this.constructCachedMemberId(member.getChannelName(), member.getId()), member));
+  }
+
+  private DynamoDbMember stashed(String channel, String id) {
+    DynamoDbMember member = this.stash.get(this.constructCachedMemberId(channel, id));
+    if (null == member) {
+      throw new NotFoundException("Not found member");
+    }
+    return member;
+  }
+
   private String constructCachedMemberId(String channelName, String memberId) {
     Objects.requireNonNull(channelName);
     Objects.requireNonNull(memberId);
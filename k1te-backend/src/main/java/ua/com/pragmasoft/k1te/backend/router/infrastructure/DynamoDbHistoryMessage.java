@@ -1,33 +1,67 @@
 /* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
 package ua.com.pragmasoft.k1te.backend.router.infrastructure;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.enhanced.dynamodb.TableSchema;
+import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbAttribute;
 import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbBean;
+import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbIgnore;
 import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbPartitionKey;
 import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbSortKey;
 import ua.com.pragmasoft.k1te.backend.router.domain.HistoryMessage;
+import ua.com.pragmasoft.k1te.backend.shared.KiteException;
 
+/**
+ * History message item. Legacy items keep the content as text and the time as ISO string, compact
+ * ones keep the content in the binary {@code body}, deflated if large, and the time as epoch millis
+ * {@code ts}. Items being migrated may have both.
+ */
 @DynamoDbBean
 public class DynamoDbHistoryMessage implements HistoryMessage {
   public static final Duration DEFAULT_TIMEOUT = Duration.ofDays(92);
 
+  static final int COMPRESSION_THRESHOLD = 256;
+  private static final byte PLAIN = 0;
+  private static final byte DEFLATED = 1;
+
+  static final TableSchema<DynamoDbHistoryMessage> SCHEMA = DynamoDbSchemas.historyMessage();
+
   private String id;
+  private String channelName;
+  private String memberId;
   private String messageId;
-  private String content;
-  private Instant time;
+  private String text;
+  private Instant isoTime;
+  private Long ts;
+  private SdkBytes body;
   private long ttl;
 
   public DynamoDbHistoryMessage(String id, String messageId, String content, Instant time) {
-    this.id = id;
+    this.setId(id);
     this.messageId = messageId;
-    this.content = content;
-    this.time = time;
+    this.text = content;
+    this.isoTime = time;
     this.ttl = Instant.now().plus(DEFAULT_TIMEOUT).getEpochSecond();
   }
 
   public DynamoDbHistoryMessage() {}
 
+  /** Creates message with the compact content and time only */
+  public static DynamoDbHistoryMessage compact(
+      String id, String messageId, String content, Instant time) {
+    var message = new DynamoDbHistoryMessage(id, messageId, null, null);
+    message.setBody(encodeBody(content));
+    message.setTs(time.toEpochMilli());
+    return message;
+  }
+
   public static String buildId(String channelName, String memberId) {
     return channelName + ":" + memberId;
   }
@@ -39,18 +73,23 @@ public class DynamoDbHistoryMessage implements HistoryMessage {
 
   public void setId(String id) {
     this.id = id;
+    if (null != id) {
+      String[] parsedId = id.split(":", 2);
+      this.channelName = parsedId[0];
+      this.memberId = parsedId.length > 1 ? parsedId[1] : null;
+    }
   }
 
   @Override
+  @DynamoDbIgnore
   public String getChannelName() {
-    String[] parsedId = id.split(":", 2);
-    return parsedId[0];
+    return channelName;
   }
 
   @Override
+  @DynamoDbIgnore
   public String getMemberId() {
-    String[] parsedId = id.split(":", 2);
-    return parsedId[1];
+    return memberId;
   }
 
   @Override
@@ -63,22 +102,56 @@ public class DynamoDbHistoryMessage implements HistoryMessage {
     this.messageId = messageId;
   }
 
+  /** Content, decoded from the body if there's no legacy text */
   @Override
+  @DynamoDbIgnore
   public String getContent() {
-    return content;
+    return null != this.text || null == this.body ? this.text : decodeBody(this.body);
+  }
+
+  /** Legacy text content */
+  @DynamoDbAttribute("content")
+  public String getText() {
+    return text;
+  }
+
+  public void setText(String text) {
+    this.text = text;
+  }
+
+  @DynamoDbAttribute("body")
+  public SdkBytes getBody() {
+    return body;
   }
 
-  public void setContent(String content) {
-    this.content = content;
+  public void setBody(SdkBytes body) {
+    this.body = body;
   }
 
   @Override
+  @DynamoDbIgnore
   public Instant getTime() {
-    return time;
+    return null != this.isoTime || null == this.ts ? this.isoTime : Instant.ofEpochMilli(this.ts);
   }
 
-  public void setTime(Instant time) {
-    this.time = time;
+  /** Legacy time, sort key of the MessageTime index */
+  @DynamoDbAttribute("time")
+  public Instant getIsoTime() {
+    return isoTime;
+  }
+
+  public void setIsoTime(Instant isoTime) {
+    this.isoTime = isoTime;
+  }
+
+  /** Epoch millis, sort key of the MessageTs index */
+  @DynamoDbAttribute("ts")
+  public Long getTs() {
+    return ts;
+  }
+
+  public void setTs(Long ts) {
+    this.ts = ts;
   }
 
   public long getTtl() {
@@ -89,6 +162,64 @@ public class DynamoDbHistoryMessage implements HistoryMessage {
     this.ttl = ttl;
   }
 
+  /** Encodes UTF-8 content prefixed with the format byte, deflated when it is large enough */
+  static SdkBytes encodeBody(String content) {
+    byte[] utf8 = content.getBytes(StandardCharsets.UTF_8);
+    if (utf8.length >= COMPRESSION_THRESHOLD) {
+      var deflater = new Deflater(Deflater.BEST_SPEED);
+      try {
+        deflater.setInput(utf8);
+        deflater.finish();
+        var out = new ByteArrayOutputStream(utf8.length / 2);
+        out.write(DEFLATED);
+        byte[] buffer = new byte[1024];
+        while (!deflater.finished()) {
+          out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        if (out.size() < utf8.length) {
+          return SdkBytes.fromByteArrayUnsafe(out.toByteArray());
+        }
+      } finally {
+        deflater.end();
+      }
+    }
+    byte[] plain = new byte[utf8.length + 1];
+    plain[0] = PLAIN;
+    System.arraycopy(utf8, 0, plain, 1, utf8.length);
+    return SdkBytes.fromByteArrayUnsafe(plain);
+  }
+
+  static String decodeBody(SdkBytes body) {
+    byte[] bytes = body.asByteArrayUnsafe();
+    if (bytes.length == 0) {
+      return "";
+    }
+    if (bytes[0] == PLAIN) {
+      return new String(bytes, 1, bytes.length - 1, StandardCharsets.UTF_8);
+    }
+    if (bytes[0] != DEFLATED) {
+      throw new KiteException("Unknown message body format " + bytes[0]);
+    }
+    var inflater = new Inflater();
+    try {
+      inflater.setInput(bytes, 1, bytes.length - 1);
+      var out = new ByteArrayOutputStream(bytes.length * 3);
+      byte[] buffer = new byte[1024];
+      while (!inflater.finished()) {
+        int inflated = inflater.inflate(buffer);
+        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new KiteException("Truncated message body");
+        }
+        out.write(buffer, 0, inflated);
+      }
+      return out.toString(StandardCharsets.UTF_8);
+    } catch (DataFormatException e) {
+      throw new KiteException(e.getMessage(), e);
+    } finally {
+      inflater.end();
+    }
+  }
+
   @Override
   public String toString() {
     return "DynamoDbMessage{"
@@ -99,10 +230,10 @@ public class DynamoDbHistoryMessage implements HistoryMessage {
         + messageId
         + '\''
         + ", content='"
-        + content
+        + getContent()
         + '\''
         + ", time="
-        + time
+        + getTime()
         + ", ttl="
         + ttl
         + '}';
@@ -2,24 +2,51 @@
 package ua.com.pragmasoft.k1te.backend.router.infrastructure;
 
 import java.time.Instant;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import software.amazon.awssdk.enhanced.dynamodb.TableSchema;
+import software.amazon.awssdk.enhanced.dynamodb.extensions.annotations.DynamoDbVersionAttribute;
 import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.*;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import ua.com.pragmasoft.k1te.backend.router.domain.ConnectionUri;
 import ua.com.pragmasoft.k1te.backend.router.domain.Connector;
 import ua.com.pragmasoft.k1te.backend.router.domain.Member;
 
+/**
+ * Member item. Instances may be shared between concurrent requests by {@link CachingChannels}, so
+ * they are safe to update concurrently. Changes made by the update methods are tracked per
+ * attribute and map entry, so they can be written without rewriting the whole item.
+ *
+ * <p>Item is versioned, so changes made by concurrent requests are detected and merged: last peer
+ * wins, and connection keeps its latest message.
+ */
 @DynamoDbBean
-public class DynamoDbMember implements Member {
+public class DynamoDbMember implements Member, DynamoDbWriteBehind.Versioned {
+  static final String PEER_MEMBER_ID = "peerMemberId";
+  static final String LAST_ACTIVE_CONNECTOR = "lastActiveConnector";
+  static final String CONNECTIONS = "connections";
+  static final String PINNED_MESSAGES = "pinnedMessages";
+
+  static final TableSchema<DynamoDbMember> SCHEMA = DynamoDbSchemas.member();
+  private static final TableSchema<MemberConnection> CONNECTION_SCHEMA =
+      DynamoDbSchemas.memberConnection();
+
   private String channelName;
   private String id;
   private String userName;
   private boolean host;
-  private String peerMemberId;
-  private String lastActiveConnector;
-  private Map<String, MemberConnection> connections = new HashMap<>();
-  private Map<String, String> pinnedMessages = new HashMap<>();
-  private boolean dirty = false;
+  private volatile String peerMemberId;
+  private volatile String lastActiveConnector;
+  private Map<String, MemberConnection> connections = new ConcurrentHashMap<>();
+  private Map<String, String> pinnedMessages = new ConcurrentHashMap<>();
+  private volatile Long version;
+  private volatile boolean dirty = false;
+  private volatile boolean peerHintStale = false;
+  private final Map<List<String>, AttributeValue> changes = new LinkedHashMap<>();
 
   public DynamoDbMember() {}
 
@@ -39,8 +66,8 @@ public class DynamoDbMember implements Member {
     this.host = host;
     this.peerMemberId = peerMemberId;
     this.lastActiveConnector = lastActiveConnector;
-    this.connections = connections;
-    this.pinnedMessages = pinnedMessages;
+    this.setConnections(connections);
+    this.setPinnedMessages(pinnedMessages);
     this.dirty = dirty;
   }
 
@@ -56,12 +83,12 @@ public class DynamoDbMember implements Member {
   /** Returns the most relevant connection by comparing lastActiveTime attribute */
   @Override
   public String getConnectionUri() {
-    if (this.lastActiveConnector != null && !this.lastActiveConnector.isEmpty()) {
-      MemberConnection memberConnection = this.connections.get(this.lastActiveConnector);
+    String activeConnector = this.lastActiveConnector;
+    if (activeConnector != null && !activeConnector.isEmpty()) {
+      MemberConnection memberConnection = this.connections.get(activeConnector);
       if (memberConnection == null)
         throw new IllegalStateException(
-            "Member doesn't have any connection with a given connectorId "
-                + this.lastActiveConnector);
+            "Member doesn't have any connection with a given connectorId " + activeConnector);
       return memberConnection.getConnectionUri();
     } else {
       return this.connections.values().stream()
@@ -73,23 +100,27 @@ public class DynamoDbMember implements Member {
   }
 
   @Override
-  public void updatePeer(String peerMemberId) {
+  public synchronized void updatePeer(String peerMemberId) {
     if (peerMemberId.equals(this.getPeerMemberId())) {
       return;
     }
     this.setPeerMemberId(peerMemberId);
+    this.changes.put(List.of(PEER_MEMBER_ID), AttributeValue.fromS(peerMemberId));
     this.setDirty(true);
+    this.setPeerHintStale(true);
   }
 
   @Override
-  public void updateUnAnsweredMessage(Member toMember, String messageId) {
+  public synchronized void updateUnAnsweredMessage(Member toMember, String messageId) {
     this.pinnedMessages.put(toMember.getId(), messageId);
+    this.changes.put(List.of(PINNED_MESSAGES, toMember.getId()), AttributeValue.fromS(messageId));
     this.setDirty(true);
   }
 
   @Override
-  public void deleteUnAnsweredMessage(Member toMember) {
+  public synchronized void deleteUnAnsweredMessage(Member toMember) {
     this.pinnedMessages.remove(toMember.getId());
+    this.changes.put(List.of(PINNED_MESSAGES, toMember.getId()), null);
     this.setDirty(true);
   }
 
@@ -100,8 +131,14 @@ public class DynamoDbMember implements Member {
   @Override
   public void updateConnection(String connectionUri, String messageId, Instant lastMessageTime) {
     Objects.requireNonNull(connectionUri);
+    this.updateConnection(ConnectionUri.parse(connectionUri), messageId, lastMessageTime);
+  }
 
-    String connectorId = Connector.connectorId(connectionUri);
+  @Override
+  public synchronized void updateConnection(
+      ConnectionUri parsedUri, String messageId, Instant lastMessageTime) {
+    String connectorId = parsedUri.connectorId();
+    String connectionUri = parsedUri.toString();
     MemberConnection memberConnection = this.connections.get(connectorId);
     if (memberConnection != null) {
       if (messageId != null) {
@@ -112,15 +149,19 @@ public class DynamoDbMember implements Member {
       }
       memberConnection.setConnectionUri(connectionUri);
     } else {
-      MemberConnection connection = new MemberConnection(connectionUri, messageId, lastMessageTime);
-      this.connections.put(connectorId, connection);
+      memberConnection = new MemberConnection(connectionUri, messageId, lastMessageTime);
+      this.connections.put(connectorId, memberConnection);
     }
+    this.changes.put(List.of(CONNECTIONS, connectorId), connectionValue(memberConnection));
 
-    this.lastActiveConnector = connectorId;
+    if (!connectorId.equals(this.lastActiveConnector)) {
+      this.lastActiveConnector = connectorId;
+      this.changes.put(List.of(LAST_ACTIVE_CONNECTOR), AttributeValue.fromS(connectorId));
+    }
     this.setDirty(true);
   }
 
-  public void deleteConnection(String connectionUri) {
+  public synchronized void deleteConnection(String connectionUri) {
     String connectorId = Connector.connectorId(connectionUri);
     MemberConnection memberConnection = this.connections.get(connectorId);
     if (memberConnection == null)
@@ -128,12 +169,95 @@ public class DynamoDbMember implements Member {
           "There is no connection by a given connectorId " + connectorId);
 
     memberConnection.setConnectionUri(null);
-    if (this.lastActiveConnector.equals(connectorId)) {
+    this.changes.put(List.of(CONNECTIONS, connectorId), connectionValue(memberConnection));
+    if (connectorId.equals(this.lastActiveConnector)) {
       this.lastActiveConnector = null;
+      this.changes.put(List.of(LAST_ACTIVE_CONNECTOR), null);
     }
     this.setDirty(true);
   }
 
+  /**
+   * Returns changes made since the last call and forgets them.
+   *
+   * @return new values of the changed attributes by their path, null value means the attribute is
+   *     removed
+   */
+  public synchronized Map<List<String>, AttributeValue> takeChanges() {
+    if (this.changes.isEmpty()) {
+      return Map.of();
+    }
+    var taken = new LinkedHashMap<>(this.changes);
+    this.changes.clear();
+    return taken;
+  }
+
+  @Override
+  public synchronized void versionWritten(long version) {
+    if (null == this.version || this.version < version) {
+      this.version = version;
+    }
+  }
+
+  /**
+   * Takes concurrent changes of the current item, except for the changed attributes. Changed
+   * connection keeps the later of the last messages.
+   */
+  @Override
+  public synchronized Map<List<String>, AttributeValue> merge(
+      Map<List<String>, AttributeValue> changes, Map<String, AttributeValue> current) {
+    var currentMember = SCHEMA.mapToItem(current);
+    Predicate<List<String>> changed =
+        path -> changes.containsKey(path) || this.changes.containsKey(path);
+    if (!changed.test(List.of(PEER_MEMBER_ID))) {
+      this.peerMemberId = currentMember.getPeerMemberId();
+    }
+    if (!changed.test(List.of(LAST_ACTIVE_CONNECTOR))) {
+      this.lastActiveConnector = currentMember.getLastActiveConnector();
+    }
+    currentMember
+        .getPinnedMessages()
+        .forEach(
+            (peerId, messageId) -> {
+              if (!changed.test(List.of(PINNED_MESSAGES, peerId))) {
+                this.pinnedMessages.put(peerId, messageId);
+              }
+            });
+
+    var merged = new LinkedHashMap<>(changes);
+    currentMember
+        .getConnections()
+        .forEach(
+            (connectorId, currentConnection) -> {
+              var path = List.of(CONNECTIONS, connectorId);
+              var connection = this.connections.get(connectorId);
+              if (null == connection || !changed.test(path)) {
+                this.connections.put(connectorId, currentConnection);
+              } else if (isLater(
+                  currentConnection.getLastMessageTime(), connection.getLastMessageTime())) {
+                connection.setLastMessageId(currentConnection.getLastMessageId());
+                connection.setLastMessageTime(currentConnection.getLastMessageTime());
+                var value = connectionValue(connection);
+                if (changes.containsKey(path)) {
+                  merged.put(path, value);
+                }
+                if (this.changes.containsKey(path)) {
+                  this.changes.put(path, value);
+                }
+              }
+            });
+    this.version = currentMember.getVersion();
+    return merged;
+  }
+
+  private static boolean isLater(Instant time, Instant than) {
+    return null != time && (null == than || time.isAfter(than));
+  }
+
+  private static AttributeValue connectionValue(MemberConnection connection) {
+    return AttributeValue.fromM(CONNECTION_SCHEMA.itemToMap(connection, true));
+  }
+
   public Instant getLastMessageTimeForConnection(String connectionUri) {
     String connectorId = Connector.connectorId(connectionUri);
     MemberConnection memberConnection = this.connections.get(connectorId);
@@ -203,7 +327,8 @@ public class DynamoDbMember implements Member {
   }
 
   public void setConnections(Map<String, MemberConnection> connections) {
-    this.connections = connections;
+    this.connections =
+        null != connections ? new ConcurrentHashMap<>(connections) : new ConcurrentHashMap<>();
   }
 
   @DynamoDbIgnoreNulls
@@ -212,7 +337,20 @@ public class DynamoDbMember implements Member {
   }
 
   public void setPinnedMessages(Map<String, String> pinnedMessages) {
-    this.pinnedMessages = pinnedMessages;
+    this.pinnedMessages =
+        null != pinnedMessages
+            ? new ConcurrentHashMap<>(pinnedMessages)
+            : new ConcurrentHashMap<>();
+  }
+
+  @Override
+  @DynamoDbVersionAttribute
+  public Long getVersion() {
+    return version;
+  }
+
+  public void setVersion(Long version) {
+    this.version = version;
   }
 
   @DynamoDbIgnore
@@ -224,6 +362,16 @@ public class DynamoDbMember implements Member {
     this.dirty = dirty;
   }
 
+  /** True when peer hint of the member connections needs to be rewritten */
+  @DynamoDbIgnore
+  public boolean isPeerHintStale() {
+    return peerHintStale;
+  }
+
+  public void setPeerHintStale(boolean peerHintStale) {
+    this.peerHintStale = peerHintStale;
+  }
+
   @Override
   public String toString() {
     return "DynamoDbMember{"
@@ -248,6 +396,8 @@ public class DynamoDbMember implements Member {
         + connections
         + ", pinnedMessages="
         + pinnedMessages
+        + ", version="
+        + version
         + ", dirty="
         + dirty
         + '}';
@@ -255,9 +405,9 @@ public class DynamoDbMember implements Member {
 
   @DynamoDbBean
   public static class MemberConnection {
-    private String connectionUri;
-    private String lastMessageId;
-    private Instant lastMessageTime;
+    private volatile String connectionUri;
+    private volatile String lastMessageId;
+    private volatile Instant lastMessageTime;
 
     public MemberConnection(String connectionUri, String lastMessageId, Instant lastMessageTime) {
       this.connectionUri = connectionUri;
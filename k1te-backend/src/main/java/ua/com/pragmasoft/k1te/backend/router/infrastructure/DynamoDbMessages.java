@@ -3,40 +3,115 @@ package ua.com.pragmasoft.k1te.backend.router.infrastructure;
 
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbAsyncTable;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbEnhancedAsyncClient;
 import software.amazon.awssdk.enhanced.dynamodb.DynamoDbEnhancedClient;
 import software.amazon.awssdk.enhanced.dynamodb.DynamoDbTable;
-import software.amazon.awssdk.enhanced.dynamodb.Key;
-import software.amazon.awssdk.enhanced.dynamodb.TableSchema;
+import software.amazon.awssdk.enhanced.dynamodb.model.WriteBatch;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.DynamoDbException;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
 import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
 import ua.com.pragmasoft.k1te.backend.router.domain.*;
 import ua.com.pragmasoft.k1te.backend.shared.KiteException;
 import ua.com.pragmasoft.k1te.backend.shared.NotFoundException;
 
 public class DynamoDbMessages implements Messages {
 
+  private static final Logger log = LoggerFactory.getLogger(DynamoDbMessages.class);
+
   public static final String MESSAGES_TABLE = "Messages";
   private static final String MESSAGES_TIME_INDEX = "MessageTime";
+  private static final String MESSAGES_TS_INDEX = "MessageTs";
 
   private static final String MESSAGES_ID_ATTRIBUTE = "id";
   private static final String MESSAGES_TIME_ATTRIBUTE = "time";
+  private static final String MESSAGES_TS_ATTRIBUTE = "ts";
   private static final String MESSAGES_CONTENT_ATTRIBUTE = "content";
+  private static final String MESSAGES_BODY_ATTRIBUTE = "body";
   private static final String MESSAGES_MESSAGE_ID_ATTRIBUTE = "messageId";
 
+  /** Attributes read from the history, partition key is known from the request */
+  private static final Map<String, String> PROJECTION_NAMES =
+      Map.of(
+          "#mid", MESSAGES_MESSAGE_ID_ATTRIBUTE,
+          "#time", MESSAGES_TIME_ATTRIBUTE,
+          "#ts", MESSAGES_TS_ATTRIBUTE,
+          "#content", MESSAGES_CONTENT_ATTRIBUTE,
+          "#body", MESSAGES_BODY_ATTRIBUTE);
+
+  private static final String PROJECTION = "#mid, #time, #ts, #content, #body";
+
+  private static final int BATCH_ATTEMPTS = 3;
+
+  /**
+   * Storage format of the history. Migration goes from {@link #LEGACY} through {@link #DUAL}, while
+   * existing items are {@link #migrate() migrated}, to {@link #COMPACT}.
+   */
+  public enum HistoryFormat {
+    /** Text content and ISO time, read with the MessageTime index */
+    LEGACY,
+    /**
+     * Same as {@link #LEGACY}, with epoch millis time added, so items get to the MessageTs index.
+     * Every write goes to both indexes, so it is only a temporary step of the migration.
+     */
+    DUAL,
+    /** Binary content and epoch millis time only, read with the MessageTs index */
+    COMPACT
+  }
+
   private final Channels channels;
+  private final HistoryFormat format;
 
   private final String messagesTableName;
   private final DynamoDbEnhancedClient enhancedDynamo;
   private final DynamoDbClient dynamoDbClient;
   private final DynamoDbTable<DynamoDbHistoryMessage> messageTable;
+  private final DynamoDbAsyncTable<DynamoDbHistoryMessage> asyncMessageTable;
 
   public DynamoDbMessages(
       Channels channels,
       DynamoDbEnhancedClient enhancedDynamo,
       DynamoDbClient dynamoDbClient,
       String serverlessEnvironmentName) {
+    this(channels, enhancedDynamo, dynamoDbClient, serverlessEnvironmentName, HistoryFormat.LEGACY);
+  }
+
+  public DynamoDbMessages(
+      Channels channels,
+      DynamoDbEnhancedClient enhancedDynamo,
+      DynamoDbClient dynamoDbClient,
+      String serverlessEnvironmentName,
+      HistoryFormat format) {
+    this(channels, enhancedDynamo, dynamoDbClient, serverlessEnvironmentName, format, null);
+  }
+
+  /**
+   * @param channels
+   * @param enhancedDynamo
+   * @param dynamoDbClient
+   * @param serverlessEnvironmentName
+   * @param format
+   * @param asyncDynamo persists messages without blocking, or null to persist them with
+   *     enhancedDynamo
+   */
+  public DynamoDbMessages(
+      Channels channels,
+      DynamoDbEnhancedClient enhancedDynamo,
+      DynamoDbClient dynamoDbClient,
+      String serverlessEnvironmentName,
+      HistoryFormat format,
+      DynamoDbEnhancedAsyncClient asyncDynamo) {
     this.channels = channels;
+    this.format = format;
     this.dynamoDbClient = dynamoDbClient;
     this.messagesTableName =
         null != serverlessEnvironmentName
@@ -44,19 +119,24 @@ public class DynamoDbMessages implements Messages {
             : MESSAGES_TABLE;
     this.enhancedDynamo = enhancedDynamo;
     this.messageTable =
-        this.enhancedDynamo.table(
-            this.messagesTableName, TableSchema.fromClass(DynamoDbHistoryMessage.class));
+        this.enhancedDynamo.table(this.messagesTableName, DynamoDbHistoryMessage.SCHEMA);
+    this.asyncMessageTable =
+        null != asyncDynamo
+            ? asyncDynamo.table(this.messagesTableName, DynamoDbHistoryMessage.SCHEMA)
+            : null;
   }
 
   @Override
-  public HistoryMessage persist(Member owner, String messageId, String content, Instant time) {
-    Objects.requireNonNull(owner);
+  public HistoryMessage persist(
+      String channelName, String memberId, String messageId, String content, Instant time) {
+    Objects.requireNonNull(channelName);
+    Objects.requireNonNull(memberId);
     Objects.requireNonNull(messageId);
     Objects.requireNonNull(content);
     Objects.requireNonNull(time);
-    String id = DynamoDbHistoryMessage.buildId(owner.getChannelName(), owner.getId());
-
-    DynamoDbHistoryMessage dbMessage = new DynamoDbHistoryMessage(id, messageId, content, time);
+    DynamoDbHistoryMessage dbMessage =
+        this.message(
+            DynamoDbHistoryMessage.buildId(channelName, memberId), messageId, content, time);
     try {
       this.messageTable.putItem(dbMessage);
       return dbMessage;
@@ -66,91 +146,377 @@ public class DynamoDbMessages implements Messages {
   }
 
   @Override
-  public DynamoDbHistoryMessage find(Member member, String messageId) {
-    String id = DynamoDbHistoryMessage.buildId(member.getChannelName(), member.getId());
-    Key messageKey = Key.builder().partitionValue(id).sortValue(messageId).build();
+  public CompletionStage<HistoryMessage> persistAsync(
+      Member owner, String messageId, String content, Instant time) {
+    if (null == this.asyncMessageTable) {
+      return Messages.super.persistAsync(owner, messageId, content, time);
+    }
+    Objects.requireNonNull(owner);
+    Objects.requireNonNull(messageId);
+    Objects.requireNonNull(content);
+    Objects.requireNonNull(time);
+    DynamoDbHistoryMessage dbMessage =
+        this.message(this.historyId(owner), messageId, content, time);
+    return this.asyncMessageTable
+        .putItem(dbMessage)
+        .handle(
+            (written, e) -> {
+              if (null != e) {
+                Throwable cause =
+                    e instanceof CompletionException && null != e.getCause() ? e.getCause() : e;
+                throw new KiteException(cause.getMessage(), cause);
+              }
+              return dbMessage;
+            });
+  }
+
+  /** Writes the messages with batch requests, unprocessed ones are retried a few times */
+  @Override
+  public void persistAll(
+      List<? extends Member> owners, String messageId, String content, Instant time) {
+    Objects.requireNonNull(messageId);
+    Objects.requireNonNull(content);
+    Objects.requireNonNull(time);
+    List<DynamoDbHistoryMessage> dbMessages = new ArrayList<>(owners.size());
+    for (Member owner : owners) {
+      dbMessages.add(this.message(this.historyId(owner), messageId, content, time));
+    }
+    for (int i = 0; i < dbMessages.size(); i += DynamoDbWriteBehind.MAX_BATCH_SIZE) {
+      var chunk =
+          dbMessages.subList(
+              i, Math.min(dbMessages.size(), i + DynamoDbWriteBehind.MAX_BATCH_SIZE));
+      for (int attempt = 0; !chunk.isEmpty() && attempt < BATCH_ATTEMPTS; attempt++) {
+        try {
+          chunk = this.persistAll(chunk);
+        } catch (Exception e) {
+          throw new KiteException(e.getMessage(), e);
+        }
+      }
+      if (!chunk.isEmpty()) {
+        throw new KiteException("%d history messages were not written".formatted(chunk.size()));
+      }
+    }
+  }
+
+  /**
+   * Writes messages with one batch request per {@value DynamoDbWriteBehind#MAX_BATCH_SIZE} of them.
+   * Batch write rejects duplicate keys, so the last of the messages with the same key is written.
+   */
+  @Override
+  public List<HistoryMessage> persistBatch(List<? extends HistoryMessage> messages) {
+    Map<String, DynamoDbHistoryMessage> dbMessages = new LinkedHashMap<>();
+    for (HistoryMessage message : messages) {
+      String historyId =
+          DynamoDbHistoryMessage.buildId(message.getChannelName(), message.getMemberId());
+      dbMessages.put(
+          historyId + "::" + message.getMessageId(),
+          this.message(historyId, message.getMessageId(), message.getContent(), message.getTime()));
+    }
+    List<DynamoDbHistoryMessage> pending = new ArrayList<>(dbMessages.values());
+    List<HistoryMessage> unprocessed = new ArrayList<>();
+    for (int i = 0; i < pending.size(); i += DynamoDbWriteBehind.MAX_BATCH_SIZE) {
+      var chunk =
+          pending.subList(i, Math.min(pending.size(), i + DynamoDbWriteBehind.MAX_BATCH_SIZE));
+      try {
+        unprocessed.addAll(this.persistAll(chunk));
+      } catch (Exception e) {
+        throw new KiteException(e.getMessage(), e);
+      }
+    }
+    return unprocessed;
+  }
+
+  /** Whether DynamoDB rejected the write, so it fails the same way when retried */
+  static boolean isRejected(Throwable e) {
+    for (Throwable cause = e; null != cause; cause = cause.getCause()) {
+      if (cause instanceof DynamoDbException dynamoDb) {
+        return dynamoDb.statusCode() >= 400
+            && dynamoDb.statusCode() < 500
+            && !dynamoDb.isThrottlingException();
+      }
+    }
+    return false;
+  }
 
-    DynamoDbHistoryMessage message = this.messageTable.getItem(messageKey);
-    if (message == null) throw new NotFoundException("History Message Not Found");
+  /**
+   * Writes messages with one batch request
+   *
+   * @param messages at most {@value DynamoDbWriteBehind#MAX_BATCH_SIZE} messages
+   * @return messages which were not processed and have to be retried
+   */
+  public List<DynamoDbHistoryMessage> persistAll(List<DynamoDbHistoryMessage> messages) {
+    if (messages.isEmpty()) {
+      return List.of();
+    }
+    var batch =
+        WriteBatch.builder(DynamoDbHistoryMessage.class).mappedTableResource(this.messageTable);
+    messages.forEach(batch::addPutItem);
+    return this.enhancedDynamo
+        .batchWriteItem(builder -> builder.writeBatches(batch.build()))
+        .unprocessedPutItemsForTable(this.messageTable);
+  }
+
+  /** Creates message item in the configured format */
+  DynamoDbHistoryMessage message(String historyId, String messageId, String content, Instant time) {
+    return switch (this.format) {
+      case LEGACY -> new DynamoDbHistoryMessage(historyId, messageId, content, time);
+      case DUAL -> {
+        var message = new DynamoDbHistoryMessage(historyId, messageId, content, time);
+        message.setTs(time.toEpochMilli());
+        yield message;
+      }
+      case COMPACT -> DynamoDbHistoryMessage.compact(historyId, messageId, content, time);
+    };
+  }
 
-    return message;
+  @Override
+  public DynamoDbHistoryMessage find(Member member, String messageId) {
+    String id = this.historyId(member);
+    var response =
+        this.dynamoDbClient.getItem(
+            GetItemRequest.builder()
+                .tableName(this.messagesTableName)
+                .key(
+                    Map.of(
+                        MESSAGES_ID_ATTRIBUTE,
+                        AttributeValue.fromS(id),
+                        MESSAGES_MESSAGE_ID_ATTRIBUTE,
+                        AttributeValue.fromS(messageId)))
+                .projectionExpression(PROJECTION)
+                .expressionAttributeNames(PROJECTION_NAMES)
+                .build());
+    if (!response.hasItem() || response.item().isEmpty())
+      throw new NotFoundException("History Message Not Found");
+
+    return this.buildMessage(id, response.item());
   }
 
   /**
    * - if lastMessageId == null && lastMessageTime == null - returns all item collection - if limit
-   * == null - return all items up to 1 MB - if both lastMessageId and lastActiveTime are provided -
-   * lastActiveTime has priority - if connectionUri is provided - lastMessageTime will be for this
-   * specific connection - if there is no messagesOwner provided, owner will be found by their
-   * connectionUri
+   * == null - returns all items, otherwise the latest limit items - if both lastMessageId and
+   * lastActiveTime are provided - lastActiveTime has priority - if connectionUri is provided -
+   * lastMessageTime will be for this specific connection - if there is no messagesOwner provided,
+   * owner will be found by their connectionUri
    */
   @Override
   public List<HistoryMessage> findAll(MessagesRequest request) {
-    String connectionUri = request.getConnectionUri();
-    Member member = request.getMessagesOwner();
-    Instant lastMessageTime = request.getLastMessageTime();
-    String lastMessageId = request.getLastMessageId();
     Integer limit = request.getLimit();
-    boolean lastMessageByConnection = request.isLastMessageByConnection();
+    if (null == limit) {
+      return this.stream(request).toList();
+    }
+    if (limit <= 0) {
+      return List.of();
+    }
+    Member member = this.owner(request);
+    Instant lastMessageTime = this.lastMessageTime(request, member);
+
+    // latest messages first, so the query is stopped as soon as there are enough of them
+    List<HistoryMessage> messages = new ArrayList<>(limit);
+    Map<String, AttributeValue> startKey = null;
+    do {
+      var response =
+          this.dynamoDbClient.query(
+              this.query(member, lastMessageTime, startKey)
+                  .scanIndexForward(false)
+                  .limit(limit - messages.size())
+                  .build());
+      String id = this.historyId(member);
+      response.items().forEach(item -> messages.add(this.buildMessage(id, item)));
+      startKey = response.hasLastEvaluatedKey() ? response.lastEvaluatedKey() : null;
+    } while (null != startKey && !startKey.isEmpty() && messages.size() < limit);
+    Collections.reverse(messages);
+    return messages;
+  }
 
+  /** Query continues from the cursor using exclusive start key, without looking up the message */
+  @Override
+  public MessagesPage findPage(MessagesRequest request) {
+    Member member = this.owner(request);
+    int pageSize = null != request.getLimit() ? request.getLimit() : DEFAULT_PAGE_SIZE;
+    String cursor = request.getCursor();
+    Instant lastMessageTime = this.lastMessageTime(request, member);
+
+    String id = this.historyId(member);
+    Map<String, AttributeValue> startKey = null;
+    if (null != cursor) {
+      var position = Cursor.decode(cursor);
+      startKey =
+          Map.of(
+              MESSAGES_ID_ATTRIBUTE,
+              AttributeValue.fromS(id),
+              MESSAGES_MESSAGE_ID_ATTRIBUTE,
+              AttributeValue.fromS(position.messageId()),
+              this.sortAttribute(),
+              this.timeValue(position.time()));
+    }
+    var response =
+        this.dynamoDbClient.query(
+            this.query(member, lastMessageTime, startKey)
+                .scanIndexForward(true)
+                .limit(pageSize)
+                .build());
+    List<HistoryMessage> messages =
+        response.items().stream().<HistoryMessage>map(item -> this.buildMessage(id, item)).toList();
+    String nextCursor = null;
+    if (response.hasLastEvaluatedKey() && !response.lastEvaluatedKey().isEmpty()) {
+      var lastKey = response.lastEvaluatedKey();
+      nextCursor =
+          new Cursor(time(lastKey), lastKey.get(MESSAGES_MESSAGE_ID_ATTRIBUTE).s()).encode();
+    }
+    return new MessagesPage(messages, nextCursor);
+  }
+
+  private Member owner(MessagesRequest request) {
+    String connectionUri = request.getConnectionUri();
+    Member member = request.getMessagesOwner();
     if (connectionUri == null && member == null)
       throw new IllegalStateException(
           "Member and Connection are not provided, must be at least one of them");
 
-    if (member == null) {
-      member = this.channels.find(connectionUri);
-    }
-    if (lastMessageByConnection) {
+    return member != null ? member : this.channels.find(connectionUri);
+  }
+
+  private Instant lastMessageTime(MessagesRequest request, Member member) {
+    String connectionUri = request.getConnectionUri();
+    if (request.isLastMessageByConnection()) {
       if (connectionUri == null) {
         throw new IllegalStateException(
             "lastMessageByConnection is true but not ConnectionUri is specified");
       }
       DynamoDbMember dbMember = (DynamoDbMember) member;
-      lastMessageTime = dbMember.getLastMessageTimeForConnection(connectionUri);
+      return dbMember.getLastMessageTimeForConnection(connectionUri);
     }
+    Instant lastMessageTime = request.getLastMessageTime();
+    String lastMessageId = request.getLastMessageId();
+    if (lastMessageTime == null
+        && lastMessageId != null
+        && !lastMessageId.isEmpty()
+        && request.getCursor() == null) {
+      lastMessageTime = this.find(member, lastMessageId).getTime();
+    }
+    return lastMessageTime;
+  }
 
-    String id = DynamoDbHistoryMessage.buildId(member.getChannelName(), member.getId());
-    String keyCondition = "#id = :id ";
+  private QueryRequest.Builder query(
+      Member member, Instant lastMessageTime, Map<String, AttributeValue> startKey) {
+    String keyCondition = "#id = :id";
 
-    Map<String, String> names = new HashMap<>();
+    Map<String, String> names = new HashMap<>(PROJECTION_NAMES);
     names.put("#id", MESSAGES_ID_ATTRIBUTE);
     Map<String, AttributeValue> values = new HashMap<>();
-    values.put(":id", AttributeValue.fromS(id));
+    values.put(":id", AttributeValue.fromS(this.historyId(member)));
 
     if (lastMessageTime != null) {
-      keyCondition = keyCondition.concat("AND #time > :time");
-      names.put("#time", MESSAGES_TIME_ATTRIBUTE);
-      values.put(":time", AttributeValue.fromS(lastMessageTime.toString()));
-    } else if (lastMessageId != null && !lastMessageId.isEmpty()) {
-      HistoryMessage message = this.find(member, lastMessageId);
-      Instant messageTime = message.getTime();
-      keyCondition = keyCondition.concat("AND #time > :time");
-      names.put("#time", MESSAGES_TIME_ATTRIBUTE);
-      values.put(":time", AttributeValue.fromS(messageTime.toString()));
-    }
-
-    return this.dynamoDbClient
-        .query(
-            QueryRequest.builder()
-                .tableName(messagesTableName)
-                .indexName(MESSAGES_TIME_INDEX)
-                .keyConditionExpression(keyCondition)
-                .expressionAttributeNames(names)
+      String sortName = this.format == HistoryFormat.COMPACT ? "#ts" : "#time";
+      keyCondition = keyCondition.concat(" AND " + sortName + " > :time");
+      values.put(":time", this.timeValue(lastMessageTime));
+    }
+    return QueryRequest.builder()
+        .tableName(messagesTableName)
+        .indexName(this.format == HistoryFormat.COMPACT ? MESSAGES_TS_INDEX : MESSAGES_TIME_INDEX)
+        .keyConditionExpression(keyCondition)
+        .projectionExpression(PROJECTION)
+        .expressionAttributeNames(names)
+        .expressionAttributeValues(values)
+        .exclusiveStartKey(startKey);
+  }
+
+  String historyId(Member member) {
+    return DynamoDbHistoryMessage.buildId(member.getChannelName(), member.getId());
+  }
+
+  /**
+   * Adds the epoch millis time to the items, which don't have it yet. In {@link
+   * HistoryFormat#COMPACT} format, also replaces legacy content and time with the compact ones.
+   *
+   * @return number of migrated items
+   */
+  public long migrate() {
+    boolean compact = this.format == HistoryFormat.COMPACT;
+    Map<String, String> names = new HashMap<>(PROJECTION_NAMES);
+    names.put("#id", MESSAGES_ID_ATTRIBUTE);
+    long migrated = 0;
+    for (var item :
+        this.dynamoDbClient
+            .scanPaginator(
+                ScanRequest.builder()
+                    .tableName(this.messagesTableName)
+                    .projectionExpression("#id, " + PROJECTION)
+                    .filterExpression(
+                        compact
+                            ? "attribute_not_exists(#ts) OR attribute_exists(#content)"
+                            : "attribute_not_exists(#ts)")
+                    .expressionAttributeNames(names)
+                    .build())
+            .items()) {
+      var message = this.buildMessage(item.get(MESSAGES_ID_ATTRIBUTE).s(), item);
+      Map<String, AttributeValue> values = new HashMap<>();
+      values.put(":ts", AttributeValue.fromN(Long.toString(message.getTime().toEpochMilli())));
+      String update = "SET #ts = :ts";
+      if (compact) {
+        values.put(
+            ":body", AttributeValue.fromB(DynamoDbHistoryMessage.encodeBody(message.getContent())));
+        update = "SET #ts = :ts, #body = :body REMOVE #content, #time";
+      }
+      try {
+        this.dynamoDbClient.updateItem(
+            UpdateItemRequest.builder()
+                .tableName(this.messagesTableName)
+                .key(
+                    Map.of(
+                        MESSAGES_ID_ATTRIBUTE,
+                        item.get(MESSAGES_ID_ATTRIBUTE),
+                        MESSAGES_MESSAGE_ID_ATTRIBUTE,
+                        item.get(MESSAGES_MESSAGE_ID_ATTRIBUTE)))
+                .updateExpression(update)
+                .conditionExpression("attribute_exists(#id)")
+                .expressionAttributeNames(
+                    compact
+                        ? Map.of(
+                            "#id", MESSAGES_ID_ATTRIBUTE,
+                            "#ts", MESSAGES_TS_ATTRIBUTE,
+                            "#body", MESSAGES_BODY_ATTRIBUTE,
+                            "#content", MESSAGES_CONTENT_ATTRIBUTE,
+                            "#time", MESSAGES_TIME_ATTRIBUTE)
+                        : Map.of("#id", MESSAGES_ID_ATTRIBUTE, "#ts", MESSAGES_TS_ATTRIBUTE))
                 .expressionAttributeValues(values)
-                .scanIndexForward(false)
-                .limit(limit)
-                .build())
-        .items()
-        .stream()
-        .map(this::buildMessage)
-        .sorted(Comparator.comparing(HistoryMessage::getTime))
-        .toList();
-  }
-
-  private HistoryMessage buildMessage(Map<String, AttributeValue> map) {
-    String historyMessageId = map.get(MESSAGES_ID_ATTRIBUTE).s();
+                .build());
+        migrated++;
+      } catch (ConditionalCheckFailedException e) {
+        // expired meanwhile
+      }
+    }
+    log.info("Migrated {} history messages to {} format", migrated, this.format);
+    return migrated;
+  }
+
+  private String sortAttribute() {
+    return this.format == HistoryFormat.COMPACT ? MESSAGES_TS_ATTRIBUTE : MESSAGES_TIME_ATTRIBUTE;
+  }
+
+  private AttributeValue timeValue(Instant time) {
+    return this.format == HistoryFormat.COMPACT
+        ? AttributeValue.fromN(Long.toString(time.toEpochMilli()))
+        : AttributeValue.fromS(time.toString());
+  }
+
+  /** Reads legacy time if present, otherwise epoch millis */
+  private static Instant time(Map<String, AttributeValue> item) {
+    var time = item.get(MESSAGES_TIME_ATTRIBUTE);
+    return null != time
+        ? Instant.parse(time.s())
+        : Instant.ofEpochMilli(Long.parseLong(item.get(MESSAGES_TS_ATTRIBUTE).n()));
+  }
+
+  private DynamoDbHistoryMessage buildMessage(String historyId, Map<String, AttributeValue> map) {
     String messageId = map.get(MESSAGES_MESSAGE_ID_ATTRIBUTE).s();
-    String content = map.get(MESSAGES_CONTENT_ATTRIBUTE).s();
-    String time = map.get(MESSAGES_TIME_ATTRIBUTE).s();
-    return new DynamoDbHistoryMessage(historyMessageId, messageId, content, Instant.parse(time));
+    var content = map.get(MESSAGES_CONTENT_ATTRIBUTE);
+    return new DynamoDbHistoryMessage(
+        historyId,
+        messageId,
+        null != content
+            ? content.s()
+            : DynamoDbHistoryMessage.decodeBody(map.get(MESSAGES_BODY_ATTRIBUTE).b()),
+        time(map));
   }
 }
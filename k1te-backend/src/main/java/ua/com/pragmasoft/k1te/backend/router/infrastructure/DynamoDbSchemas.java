@@ -0,0 +1,243 @@
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.backend.router.infrastructure;
+
+import static software.amazon.awssdk.enhanced.dynamodb.mapper.StaticAttributeTags.primaryPartitionKey;
+import static software.amazon.awssdk.enhanced.dynamodb.mapper.StaticAttributeTags.primarySortKey;
+import static software.amazon.awssdk.enhanced.dynamodb.mapper.StaticAttributeTags.secondaryPartitionKey;
+import static software.amazon.awssdk.enhanced.dynamodb.mapper.StaticAttributeTags.secondarySortKey;
+
+import java.time.Instant;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.enhanced.dynamodb.EnhancedType;
+import software.amazon.awssdk.enhanced.dynamodb.TableSchema;
+import software.amazon.awssdk.enhanced.dynamodb.extensions.VersionedRecordExtension;
+import software.amazon.awssdk.enhanced.dynamodb.mapper.StaticTableSchema;
+import ua.com.pragmasoft.k1te.backend.router.infrastructure.DynamoDbMember.MemberConnection;
+
+/**
+ * Table schemas of the items, declared without bean introspection, so creating them doesn't need
+ * reflection and is cheap on cold start. Items are mapped the same way as with {@link
+ * TableSchema#fromBean(Class)} of the annotated item classes. Every call creates the new schema,
+ * items keep them in the {@code SCHEMA} constants.
+ */
+public final class DynamoDbSchemas {
+
+  private DynamoDbSchemas() {}
+
+  public static TableSchema<DynamoDbChannel> channel() {
+    return StaticTableSchema.builder(DynamoDbChannel.class)
+        .newItemSupplier(DynamoDbChannel::new)
+        .addAttribute(
+            String.class,
+            a ->
+                a.name("name")
+                    .getter(DynamoDbChannel::getName)
+                    .setter(DynamoDbChannel::setName)
+                    .tags(primaryPartitionKey()))
+        .addAttribute(
+            String.class,
+            a -> a.name("host").getter(DynamoDbChannel::getHost).setter(DynamoDbChannel::setHost))
+        .addAttribute(
+            Long.class,
+            a -> a.name("ttl").getter(DynamoDbChannel::getTtl).setter(DynamoDbChannel::setTtl))
+        .addAttribute(
+            Long.class,
+            a ->
+                a.name(DynamoDbChannel.DROPPED_ATTRIBUTE)
+                    .getter(DynamoDbChannel::getDropped)
+                    .setter(DynamoDbChannel::setDropped)
+                    .tags(secondarySortKey(DynamoDbChannel.TOMBSTONES_INDEX)))
+        .addAttribute(
+            String.class,
+            a ->
+                a.name(DynamoDbChannel.TOMBSTONE_ATTRIBUTE)
+                    .getter(DynamoDbChannel::getTombstone)
+                    .setter(DynamoDbChannel::setTombstone)
+                    .tags(secondaryPartitionKey(DynamoDbChannel.TOMBSTONES_INDEX)))
+        .build();
+  }
+
+  public static TableSchema<DynamoDbMember> member() {
+    return StaticTableSchema.builder(DynamoDbMember.class)
+        .newItemSupplier(DynamoDbMember::new)
+        .addAttribute(
+            String.class,
+            a ->
+                a.name("channelName")
+                    .getter(DynamoDbMember::getChannelName)
+                    .setter(DynamoDbMember::setChannelName)
+                    .tags(primaryPartitionKey()))
+        .addAttribute(
+            String.class,
+            a ->
+                a.name("id")
+                    .getter(DynamoDbMember::getId)
+                    .setter(DynamoDbMember::setId)
+                    .tags(primarySortKey()))
+        .addAttribute(
+            String.class,
+            a ->
+                a.name("userName")
+                    .getter(DynamoDbMember::getUserName)
+                    .setter(DynamoDbMember::setUserName))
+        .addAttribute(
+            Boolean.class,
+            a -> a.name("host").getter(DynamoDbMember::isHost).setter(DynamoDbMember::setHost))
+        .addAttribute(
+            String.class,
+            a ->
+                a.name(DynamoDbMember.PEER_MEMBER_ID)
+                    .getter(DynamoDbMember::getPeerMemberId)
+                    .setter(DynamoDbMember::setPeerMemberId))
+        .addAttribute(
+            String.class,
+            a ->
+                a.name(DynamoDbMember.LAST_ACTIVE_CONNECTOR)
+                    .getter(DynamoDbMember::getLastActiveConnector)
+                    .setter(DynamoDbMember::setLastActiveConnector))
+        .addAttribute(
+            EnhancedType.mapOf(
+                EnhancedType.of(String.class),
+                EnhancedType.documentOf(
+                    MemberConnection.class,
+                    memberConnection(),
+                    document -> document.ignoreNulls(true))),
+            a ->
+                a.name(DynamoDbMember.CONNECTIONS)
+                    .getter(DynamoDbMember::getConnections)
+                    .setter(DynamoDbMember::setConnections))
+        .addAttribute(
+            EnhancedType.mapOf(String.class, String.class),
+            a ->
+                a.name(DynamoDbMember.PINNED_MESSAGES)
+                    .getter(DynamoDbMember::getPinnedMessages)
+                    .setter(DynamoDbMember::setPinnedMessages))
+        .addAttribute(
+            Long.class,
+            a ->
+                a.name("version")
+                    .getter(DynamoDbMember::getVersion)
+                    .setter(DynamoDbMember::setVersion)
+                    .tags(VersionedRecordExtension.AttributeTags.versionAttribute()))
+        .build();
+  }
+
+  /** Schema of the connection, nested in the member item */
+  public static TableSchema<MemberConnection> memberConnection() {
+    return StaticTableSchema.builder(MemberConnection.class)
+        .newItemSupplier(MemberConnection::new)
+        .addAttribute(
+            String.class,
+            a ->
+                a.name("connectionUri")
+                    .getter(MemberConnection::getConnectionUri)
+                    .setter(MemberConnection::setConnectionUri))
+        .addAttribute(
+            String.class,
+            a ->
+                a.name("lastMessageId")
+                    .getter(MemberConnection::getLastMessageId)
+                    .setter(MemberConnection::setLastMessageId))
+        .addAttribute(
+            Instant.class,
+            a ->
+                a.name("lastMessageTime")
+                    .getter(MemberConnection::getLastMessageTime)
+                    .setter(MemberConnection::setLastMessageTime))
+        .build();
+  }
+
+  public static TableSchema<DynamoDBConnection> connection() {
+    return StaticTableSchema.builder(DynamoDBConnection.class)
+        .newItemSupplier(DynamoDBConnection::new)
+        .addAttribute(
+            String.class,
+            a ->
+                a.name("connector")
+                    .getter(DynamoDBConnection::getConnector)
+                    .setter(DynamoDBConnection::setConnector)
+                    .tags(primaryPartitionKey()))
+        .addAttribute(
+            String.class,
+            a ->
+                a.name("rawId")
+                    .getter(DynamoDBConnection::getRawId)
+                    .setter(DynamoDBConnection::setRawId)
+                    .tags(primarySortKey()))
+        .addAttribute(
+            String.class,
+            a ->
+                a.name("channelName")
+                    .getter(DynamoDBConnection::getChannelName)
+                    .setter(DynamoDBConnection::setChannelName))
+        .addAttribute(
+            String.class,
+            a ->
+                a.name("memberId")
+                    .getter(DynamoDBConnection::getMemberId)
+                    .setter(DynamoDBConnection::setMemberId))
+        .addAttribute(
+            String.class,
+            a ->
+                a.name(DynamoDBConnection.PEER_MEMBER_ID)
+                    .getter(DynamoDBConnection::getPeerMemberId)
+                    .setter(DynamoDBConnection::setPeerMemberId))
+        .addAttribute(
+            String.class,
+            a ->
+                a.name("subprotocol")
+                    .getter(DynamoDBConnection::getSubprotocol)
+                    .setter(DynamoDBConnection::setSubprotocol))
+        .build();
+  }
+
+  public static TableSchema<DynamoDbHistoryMessage> historyMessage() {
+    return StaticTableSchema.builder(DynamoDbHistoryMessage.class)
+        .newItemSupplier(DynamoDbHistoryMessage::new)
+        .addAttribute(
+            String.class,
+            a ->
+                a.name("id")
+                    .getter(DynamoDbHistoryMessage::getId)
+                    .setter(DynamoDbHistoryMessage::setId)
+                    .tags(primaryPartitionKey()))
+        .addAttribute(
+            String.class,
+            a ->
+                a.name("messageId")
+                    .getter(DynamoDbHistoryMessage::getMessageId)
+                    .setter(DynamoDbHistoryMessage::setMessageId)
+                    .tags(primarySortKey()))
+        .addAttribute(
+            String.class,
+            a ->
+                a.name("content")
+                    .getter(DynamoDbHistoryMessage::getText)
+                    .setter(DynamoDbHistoryMessage::setText))
+        .addAttribute(
+            SdkBytes.class,
+            a ->
+                a.name("body")
+                    .getter(DynamoDbHistoryMessage::getBody)
+                    .setter(DynamoDbHistoryMessage::setBody))
+        .addAttribute(
+            Instant.class,
+            a ->
+                a.name("time")
+                    .getter(DynamoDbHistoryMessage::getIsoTime)
+                    .setter(DynamoDbHistoryMessage::setIsoTime))
+        .addAttribute(
+            Long.class,
+            a ->
+                a.name("ts")
+                    .getter(DynamoDbHistoryMessage::getTs)
+                    .setter(DynamoDbHistoryMessage::setTs))
+        .addAttribute(
+            Long.class,
+            a ->
+                a.name("ttl")
+                    .getter(DynamoDbHistoryMessage::getTtl)
+                    .setter(DynamoDbHistoryMessage::setTtl))
+        .build();
+  }
+}
@@ -0,0 +1,557 @@
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.backend.router.infrastructure;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbEnhancedClient;
+import software.amazon.awssdk.enhanced.dynamodb.Key;
+import software.amazon.awssdk.enhanced.dynamodb.MappedTableResource;
+import software.amazon.awssdk.enhanced.dynamodb.TableMetadata;
+import software.amazon.awssdk.enhanced.dynamodb.model.BatchWriteResult;
+import software.amazon.awssdk.enhanced.dynamodb.model.WriteBatch;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.DynamoDbException;
+import software.amazon.awssdk.services.dynamodb.model.ReturnValuesOnConditionCheckFailure;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+
+/**
+ * Puts items with batch writes of at most {@value #MAX_BATCH_SIZE} items and applies partial
+ * updates of existing items. Items which were not processed or failed due to throttling are retried
+ * with exponential backoff. Items which still could not be written stay pending until the next
+ * flush, unless replaced by a newer version.
+ *
+ * <p>Repeated puts of the item with the same key are coalesced, only the latest one is written.
+ * Repeated updates are merged into one. With the flush interval, items are written in background,
+ * otherwise only on {@link #flush()}.
+ *
+ * <p>Updates of the {@link Versioned} items are conditional on the version attribute. When the item
+ * was changed concurrently, changes are merged with the current item and the update is retried.
+ */
+public class DynamoDbWriteBehind implements AutoCloseable {
+
+  private static final Logger log = LoggerFactory.getLogger(DynamoDbWriteBehind.class);
+
+  public static final int MAX_BATCH_SIZE = 25;
+
+  /** Table metadata key of the version attribute name, set by {@code DynamoDbVersionAttribute} */
+  private static final String VERSION_ATTRIBUTE_METADATA =
+      "VersionedRecordExtension:VersionAttribute";
+
+  private final DynamoDbEnhancedClient enhancedDynamo;
+  private final DynamoDbClient dynamoDbClient;
+  private final int maxAttempts;
+  private final long backoffMillis;
+  private final Map<String, Pending<?>> pending = new LinkedHashMap<>();
+  private final Map<String, Update> updates = new LinkedHashMap<>();
+  private final ScheduledExecutorService scheduler;
+
+  private final AtomicLong flushes = new AtomicLong();
+  private final AtomicLong writtenItems = new AtomicLong();
+  private final AtomicLong retriedItems = new AtomicLong();
+  private final AtomicLong coalescedItems = new AtomicLong();
+  private final AtomicLong conflicts = new AtomicLong();
+  private volatile long lastFlushNanos;
+  private volatile long maxFlushNanos;
+
+  /** Creates write behind, which only writes on {@link #flush()} */
+  public DynamoDbWriteBehind(DynamoDbEnhancedClient enhancedDynamo, DynamoDbClient dynamoDbClient) {
+    this(enhancedDynamo, dynamoDbClient, 5, Duration.ofMillis(50), Duration.ZERO);
+  }
+
+  /**
+   * @param enhancedDynamo
+   * @param dynamoDbClient
+   * @param maxAttempts max number of batch write attempts per flush
+   * @param backoff delay before the first retry, doubled with every next one
+   * @param flushInterval interval of background flushes, or zero to only flush on {@link #flush()}
+   */
+  public DynamoDbWriteBehind(
+      DynamoDbEnhancedClient enhancedDynamo,
+      DynamoDbClient dynamoDbClient,
+      int maxAttempts,
+      Duration backoff,
+      Duration flushInterval) {
+    this.enhancedDynamo = enhancedDynamo;
+    this.dynamoDbClient = dynamoDbClient;
+    this.maxAttempts = Math.max(1, maxAttempts);
+    this.backoffMillis = backoff.toMillis();
+    if (flushInterval.isZero() || flushInterval.isNegative()) {
+      this.scheduler = null;
+    } else {
+      this.scheduler =
+          Executors.newSingleThreadScheduledExecutor(
+              r -> {
+                Thread t = new Thread(r, "k1te-write-behind");
+                t.setDaemon(true);
+                return t;
+              });
+      long interval = flushInterval.toMillis();
+      this.scheduler.scheduleWithFixedDelay(
+          this::flushSafely, interval, interval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /** True if items are written in background, so there's no need to flush them explicitly */
+  public boolean isBackground() {
+    return null != this.scheduler;
+  }
+
+  /**
+   * Queues the snapshot of the item, so the caller may keep changing it. Caller is responsible to
+   * prevent concurrent changes of the item while it is being copied.
+   */
+  public <T> void put(MappedTableResource<T> table, T item) {
+    var schema = table.tableSchema();
+    if (versionAttribute(table).isPresent()) {
+      // batch writes can't be conditional
+      throw new IllegalArgumentException("Versioned items can only be updated");
+    }
+    T snapshot = schema.mapToItem(schema.itemToMap(item, true));
+    var key = pendingKey(table, table.keyFrom(snapshot));
+    synchronized (this.pending) {
+      this.updates.remove(key); // put includes them
+      if (null != this.pending.put(key, new Pending<>(table, snapshot))) {
+        this.coalescedItems.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Queues partial update of the existing item. Update is skipped, if there's no such item.
+   *
+   * @param changes new values of the attributes, where key is the path of the attribute: top level
+   *     attribute name, followed by the map keys if any. Null value removes the attribute.
+   */
+  public void update(
+      MappedTableResource<?> table, Key key, Map<List<String>, AttributeValue> changes) {
+    this.update(table, key, changes, null, null);
+  }
+
+  /**
+   * Queues partial update of the existing versioned item, which is expected to have the current
+   * version of the item. Update is skipped, if there's no such item.
+   *
+   * @see #update(MappedTableResource, Key, Map)
+   */
+  public <T extends Versioned> void update(
+      MappedTableResource<T> table, T item, Map<List<String>, AttributeValue> changes) {
+    String versionAttribute =
+        versionAttribute(table)
+            .orElseThrow(() -> new IllegalArgumentException("No version attribute"));
+    this.update(table, table.keyFrom(item), changes, versionAttribute, item);
+  }
+
+  private void update(
+      MappedTableResource<?> table,
+      Key key,
+      Map<List<String>, AttributeValue> changes,
+      String versionAttribute,
+      Versioned item) {
+    if (changes.isEmpty()) {
+      return;
+    }
+    var update =
+        new Update(
+            table.tableName(),
+            key.keyMap(table.tableSchema(), TableMetadata.primaryIndexName()),
+            new LinkedHashMap<>(changes),
+            versionAttribute,
+            null != item ? item.getVersion() : null,
+            item);
+    synchronized (this.pending) {
+      Update previous = this.updates.get(pendingKey(table, key));
+      if (null != previous) {
+        previous.changes.putAll(update.changes);
+        this.coalescedItems.incrementAndGet();
+      } else {
+        this.updates.put(pendingKey(table, key), update);
+      }
+    }
+  }
+
+  /** Drops pending writes of the item, which is going to be deleted or written directly */
+  public void discard(MappedTableResource<?> table, Key key) {
+    synchronized (this.pending) {
+      this.pending.remove(pendingKey(table, key));
+      this.updates.remove(pendingKey(table, key));
+    }
+  }
+
+  /** Writes all pending items, puts first */
+  public void flush() {
+    List<Pending<?>> items;
+    Map<String, Update> itemUpdates;
+    synchronized (this.pending) {
+      if (this.pending.isEmpty() && this.updates.isEmpty()) {
+        return;
+      }
+      items = new ArrayList<>(this.pending.values());
+      itemUpdates = new LinkedHashMap<>(this.updates);
+      this.pending.clear();
+      this.updates.clear();
+    }
+    long start = System.nanoTime();
+    List<Pending<?>> failed = new ArrayList<>();
+    for (int from = 0; from < items.size(); from += MAX_BATCH_SIZE) {
+      failed.addAll(this.write(items.subList(from, Math.min(from + MAX_BATCH_SIZE, items.size()))));
+    }
+    Set<String> failedKeys = new HashSet<>();
+    failed.forEach(item -> failedKeys.add(item.pendingKey()));
+    Map<String, Update> failedUpdates = new LinkedHashMap<>();
+    itemUpdates.forEach(
+        (key, update) -> {
+          // update of the item which was not put yet has to wait for it
+          var notWritten = failedKeys.contains(key) ? update : this.write(update);
+          if (null != notWritten) {
+            failedUpdates.put(key, notWritten);
+          }
+        });
+    if (!failed.isEmpty() || !failedUpdates.isEmpty()) {
+      log.error(
+          "{} items were not written, will retry on next flush",
+          failed.size() + failedUpdates.size());
+      synchronized (this.pending) {
+        failed.forEach(item -> this.pending.putIfAbsent(item.pendingKey(), item));
+        failedUpdates.forEach(
+            (key, update) -> {
+              Pending<?> queued = this.pending.get(key);
+              if (null != queued && !failed.contains(queued)) {
+                return; // superseded by the newer put
+              }
+              Update newer = this.updates.get(key);
+              if (null != newer) {
+                update.changes.putAll(newer.changes);
+              }
+              this.updates.put(key, update);
+            });
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+    this.lastFlushNanos = elapsed;
+    this.maxFlushNanos = Math.max(this.maxFlushNanos, elapsed);
+    this.flushes.incrementAndGet();
+    log.debug(
+        "Flushed {} items and {} updates in {} ms",
+        items.size(),
+        itemUpdates.size(),
+        TimeUnit.NANOSECONDS.toMillis(elapsed));
+  }
+
+  /** Number of items and updates waiting to be written */
+  public int getQueueDepth() {
+    synchronized (this.pending) {
+      return this.pending.size() + this.updates.size();
+    }
+  }
+
+  public long getFlushCount() {
+    return this.flushes.get();
+  }
+
+  public long getWrittenItems() {
+    return this.writtenItems.get();
+  }
+
+  public long getRetriedItems() {
+    return this.retriedItems.get();
+  }
+
+  public long getCoalescedItems() {
+    return this.coalescedItems.get();
+  }
+
+  /** Number of versioned updates, which were merged with concurrent changes */
+  public long getConflictCount() {
+    return this.conflicts.get();
+  }
+
+  public Duration getLastFlushLatency() {
+    return Duration.ofNanos(this.lastFlushNanos);
+  }
+
+  public Duration getMaxFlushLatency() {
+    return Duration.ofNanos(this.maxFlushNanos);
+  }
+
+  @Override
+  public void close() {
+    if (null != this.scheduler) {
+      this.scheduler.shutdown();
+      try {
+        this.scheduler.awaitTermination(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    this.flush();
+  }
+
+  /**
+   * Writes the chunk, retrying unprocessed items
+   *
+   * @return items which were not written
+   */
+  private List<Pending<?>> write(List<Pending<?>> chunk) {
+    List<Pending<?>> remaining = chunk;
+    for (int attempt = 1; ; attempt++) {
+      try {
+        List<WriteBatch> batches = remaining.stream().map(Pending::writeBatch).toList();
+        BatchWriteResult result =
+            this.enhancedDynamo.batchWriteItem(builder -> builder.writeBatches(batches));
+        List<Pending<?>> unprocessed = unprocessed(remaining, result);
+        this.writtenItems.addAndGet(remaining.size() - unprocessed.size());
+        remaining = unprocessed;
+        if (remaining.isEmpty()) {
+          return remaining;
+        }
+      } catch (SdkException e) {
+        if (attempt >= this.maxAttempts) {
+          log.warn("Batch write failed: {}", e.getMessage());
+          return remaining;
+        }
+      }
+      if (attempt >= this.maxAttempts) {
+        return remaining;
+      }
+      this.retriedItems.addAndGet(remaining.size());
+      try {
+        Thread.sleep(this.backoffMillis << (attempt - 1));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return remaining;
+      }
+    }
+  }
+
+  /**
+   * Applies the update, retrying if throttled or changed concurrently
+   *
+   * @return update which has to be retried later, or null
+   */
+  private Update write(Update update) {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        this.dynamoDbClient.updateItem(update.request());
+        this.writtenItems.incrementAndGet();
+        if (null != update.item()) {
+          update.item().versionWritten(update.nextVersion());
+        }
+        return null;
+      } catch (ConditionalCheckFailedException e) {
+        if (null == update.item() || !e.hasItem() || e.item().isEmpty()) {
+          log.debug("Skipped update of the deleted item {}", update.key());
+          return null;
+        }
+        this.conflicts.incrementAndGet();
+        update = update.rebase(e.item());
+        if (attempt >= this.maxAttempts) {
+          log.warn("Update of the item {} keeps conflicting", update.key());
+          return update;
+        }
+        continue; // no need to back off, item was changed, not throttled
+      } catch (DynamoDbException e) {
+        if (!e.isThrottlingException() && e.statusCode() < 500) {
+          log.error("Update of the item {} rejected: {}", update.key(), e.getMessage());
+          return null;
+        }
+        if (attempt >= this.maxAttempts) {
+          log.warn("Update failed: {}", e.getMessage());
+          return update;
+        }
+      } catch (SdkException e) {
+        if (attempt >= this.maxAttempts) {
+          log.warn("Update failed: {}", e.getMessage());
+          return update;
+        }
+      }
+      this.retriedItems.incrementAndGet();
+      try {
+        Thread.sleep(this.backoffMillis << (attempt - 1));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return update;
+      }
+    }
+  }
+
+  private static Optional<String> versionAttribute(MappedTableResource<?> table) {
+    return table
+        .tableSchema()
+        .tableMetadata()
+        .customMetadataObject(VERSION_ATTRIBUTE_METADATA, String.class);
+  }
+
+  private static List<Pending<?>> unprocessed(List<Pending<?>> written, BatchWriteResult result) {
+    Map<String, Pending<?>> byKey = new LinkedHashMap<>();
+    written.forEach(item -> byKey.put(item.pendingKey(), item));
+    List<Pending<?>> unprocessed = new ArrayList<>();
+    written.stream()
+        .map(Pending::table)
+        .distinct()
+        .forEach(table -> unprocessed.addAll(unprocessed(table, result, byKey)));
+    return unprocessed;
+  }
+
+  private static <T> List<Pending<?>> unprocessed(
+      MappedTableResource<T> table, BatchWriteResult result, Map<String, Pending<?>> byKey) {
+    return result.unprocessedPutItemsForTable(table).stream()
+        .<Pending<?>>map(item -> byKey.get(pendingKey(table, table.keyFrom(item))))
+        .filter(Objects::nonNull)
+        .toList();
+  }
+
+  private void flushSafely() {
+    try {
+      this.flush();
+    } catch (RuntimeException e) {
+      log.error("Background flush failed", e);
+    }
+  }
+
+  private static String pendingKey(MappedTableResource<?> table, Key key) {
+    return table.tableName() + '|' + key.partitionKeyValue() + '|' + key.sortKeyValue();
+  }
+
+  /**
+   * Item, which updates are guarded by the version attribute. Version is incremented by every
+   * update, null version means the item was not versioned yet.
+   */
+  public interface Versioned {
+
+    Long getVersion();
+
+    /** Called when the update is written, so the item has the given version now */
+    void versionWritten(long version);
+
+    /**
+     * Resolves the conflict with concurrent update, refreshing the item from the current one.
+     *
+     * @param changes changes which could not be written
+     * @param current current item
+     * @return changes to apply to the current item
+     */
+    Map<List<String>, AttributeValue> merge(
+        Map<List<String>, AttributeValue> changes, Map<String, AttributeValue> current);
+  }
+
+  /** Update of the existing item, REMOVE attributes with null values, SET the others */
+  private record Update(
+      String tableName,
+      Map<String, AttributeValue> key,
+      LinkedHashMap<List<String>, AttributeValue> changes,
+      String versionAttribute,
+      Long version,
+      Versioned item) {
+
+    long nextVersion() {
+      return null != this.version ? this.version + 1 : 1;
+    }
+
+    Update rebase(Map<String, AttributeValue> current) {
+      var currentVersion = current.get(this.versionAttribute);
+      return new Update(
+          this.tableName,
+          this.key,
+          new LinkedHashMap<>(this.item.merge(this.changes, current)),
+          this.versionAttribute,
+          null != currentVersion && null != currentVersion.n()
+              ? Long.valueOf(currentVersion.n())
+              : null,
+          this.item);
+    }
+
+    UpdateItemRequest request() {
+      Map<String, String> names = new HashMap<>();
+      Map<String, AttributeValue> values = new HashMap<>();
+      List<String> set = new ArrayList<>();
+      List<String> remove = new ArrayList<>();
+      Map<String, String> placeholders = new HashMap<>();
+      this.changes.forEach(
+          (path, value) -> {
+            var expression = new StringBuilder();
+            for (String name : path) {
+              if (!expression.isEmpty()) {
+                expression.append('.');
+              }
+              String placeholder =
+                  placeholders.computeIfAbsent(name, n -> "#n" + placeholders.size());
+              names.put(placeholder, name);
+              expression.append(placeholder);
+            }
+            if (null == value) {
+              remove.add(expression.toString());
+            } else {
+              String placeholder = ":v" + values.size();
+              values.put(placeholder, value);
+              set.add(expression + " = " + placeholder);
+            }
+          });
+      String keyAttribute = this.key.keySet().iterator().next();
+      names.put("#key", keyAttribute);
+      String condition = "attribute_exists(#key)";
+      if (null != this.versionAttribute) {
+        names.put("#ver", this.versionAttribute);
+        values.put(":ver", AttributeValue.fromN(Long.toString(this.nextVersion())));
+        set.add("#ver = :ver");
+        if (null != this.version) {
+          values.put(":expected", AttributeValue.fromN(this.version.toString()));
+          condition += " AND #ver = :expected";
+        } else {
+          condition += " AND attribute_not_exists(#ver)";
+        }
+      }
+      var expression = new StringBuilder();
+      if (!set.isEmpty()) {
+        expression.append("SET ").append(String.join(", ", set));
+      }
+      if (!remove.isEmpty()) {
+        expression
+            .append(set.isEmpty() ? "" : " ")
+            .append("REMOVE ")
+            .append(String.join(", ", remove));
+      }
+      return UpdateItemRequest.builder()
+          .tableName(this.tableName)
+          .key(this.key)
+          .updateExpression(expression.toString())
+          .conditionExpression(condition)
+          .expressionAttributeNames(names)
+          .expressionAttributeValues(values.isEmpty() ? null : values)
+          .returnValuesOnConditionCheckFailure(
+              null != this.versionAttribute ? ReturnValuesOnConditionCheckFailure.ALL_OLD : null)
+          .build();
+    }
+  }
+
+  private record Pending<T>(MappedTableResource<T> table, T item) {
+
+    String pendingKey() {
+      return DynamoDbWriteBehind.pendingKey(this.table, this.table.keyFrom(this.item));
+    }
+
+    @SuppressWarnings("unchecked")
+    WriteBatch writeBatch() {
+      return WriteBatch.builder((Class<T>) this.item.getClass())
+          .mappedTableResource(this.table)
+          .addPutItem(this.item)
+          .build();
+    }
+  }
+}
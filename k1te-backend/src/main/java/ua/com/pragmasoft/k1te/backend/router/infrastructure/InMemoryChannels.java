@@ -0,0 +1,204 @@
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.backend.router.infrastructure;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ua.com.pragmasoft.k1te.backend.router.domain.ChannelName;
+import ua.com.pragmasoft.k1te.backend.router.domain.Channels;
+import ua.com.pragmasoft.k1te.backend.router.domain.Member;
+import ua.com.pragmasoft.k1te.backend.shared.ConflictException;
+import ua.com.pragmasoft.k1te.backend.shared.NotFoundException;
+import ua.com.pragmasoft.k1te.backend.shared.ValidationException;
+
+/**
+ * Keeps channels and members of the single node in memory. Members are indexed both by channel and
+ * id and by connection uri, so every lookup is a hash map access. Nothing survives restart.
+ */
+public class InMemoryChannels implements Channels {
+
+  private static final Logger log = LoggerFactory.getLogger(InMemoryChannels.class);
+
+  private final ConcurrentMap<String, Channel> channels = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, String> hostedChannels = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, InMemoryMember> connections = new ConcurrentHashMap<>();
+  private final List<Consumer<Member>> removalListeners = new CopyOnWriteArrayList<>();
+
+  /** Listener is called with every member who leaves the channel, or whose channel is dropped */
+  public void onMemberRemoved(Consumer<Member> listener) {
+    this.removalListeners.add(listener);
+  }
+
+  @Override
+  public Member hostChannel(String channel, String memberId, String ownerConnection, String title) {
+    ChannelName.validate(channel);
+    Objects.requireNonNull(memberId, "member id");
+    Objects.requireNonNull(ownerConnection, "owner connection");
+    if (null == title) {
+      title = channel;
+    }
+
+    if (null != this.hostedChannels.putIfAbsent(memberId, channel)) {
+      throw new ConflictException("You cannot host more than one channel");
+    }
+    var newChannel = new Channel(memberId);
+    if (null != this.channels.putIfAbsent(channel, newChannel)) {
+      this.hostedChannels.remove(memberId, channel);
+      throw new ConflictException("Channel name is already taken");
+    }
+
+    var hostMember = new InMemoryMember(channel, memberId, title, true, null, this.connections);
+    newChannel.members.put(memberId, hostMember);
+    hostMember.updateConnection(ownerConnection, null, null);
+    log.debug("Channel {} was created by Host {}", channel, memberId);
+    return hostMember;
+  }
+
+  @Override
+  public Member dropChannel(String ownerConnection) {
+    Objects.requireNonNull(ownerConnection, "owner connection");
+
+    InMemoryMember member = this.find(ownerConnection);
+    if (!member.isHost()) throw new ValidationException("Only host member can drop its channel");
+
+    String channelName = member.getChannelName();
+    Channel channel = this.channels.remove(channelName);
+    this.hostedChannels.remove(member.getId(), channelName);
+    if (null != channel) {
+      channel.members.values().forEach(InMemoryMember::deleteConnections);
+      channel.members.values().forEach(this::removed);
+    }
+    log.debug("Channel {} was deleted", channelName);
+    return member;
+  }
+
+  @Override
+  public Member joinChannel(
+      String channelName, String memberId, String memberConnection, String userName) {
+    ChannelName.validate(channelName);
+    Objects.requireNonNull(memberId, "member id");
+    Objects.requireNonNull(memberConnection, "connection");
+    Objects.requireNonNull(userName, "user name");
+
+    Channel channel = this.channels.get(channelName);
+    if (null == channel) {
+      throw new NotFoundException("Channel not found");
+    }
+    var created = new boolean[1];
+    InMemoryMember member =
+        channel.members.computeIfAbsent(
+            memberId,
+            id -> {
+              created[0] = true;
+              return new InMemoryMember(
+                  channelName, id, userName, false, channel.hostId, this.connections);
+            });
+    if (created[0]) {
+      member.updateConnection(memberConnection, null, null);
+      log.debug("Member {} joined the Channel {}", memberId, channelName);
+    }
+    return member;
+  }
+
+  @Override
+  public Member reconnect(String channelName, String memberId, String newConnection) {
+    ChannelName.validate(channelName);
+
+    Channel channel = this.channels.get(channelName);
+    if (null == channel)
+      throw new NotFoundException("There is no Channel with name " + channelName);
+
+    if (memberId == null || memberId.isEmpty()) return null;
+
+    InMemoryMember member = channel.members.get(memberId);
+    if (null == member)
+      throw new NotFoundException(
+          "There is no Member with id %s in Channel %s".formatted(memberId, channelName));
+
+    member.updateConnection(newConnection, null, null);
+    return member;
+  }
+
+  @Override
+  public Member disconnect(String connectionUri) {
+    InMemoryMember member = this.find(connectionUri);
+    member.deleteConnection(connectionUri);
+    return member;
+  }
+
+  @Override
+  public Member leaveChannel(String memberConnection) {
+    Objects.requireNonNull(memberConnection, "member connection");
+
+    InMemoryMember member = this.find(memberConnection);
+    if (member.isHost()) {
+      throw new ValidationException("Host member cannot leave channel. You can only drop it");
+    }
+    Channel channel = this.channels.get(member.getChannelName());
+    if (null != channel) {
+      channel.members.remove(member.getId(), member);
+    }
+    member.deleteConnections();
+    this.removed(member);
+    return member;
+  }
+
+  @Override
+  public InMemoryMember find(String memberConnection) {
+    Objects.requireNonNull(memberConnection, "connection");
+    InMemoryMember member = this.connections.get(memberConnection);
+    if (null == member) throw new NotFoundException("Searched connection Not Found");
+    return member;
+  }
+
+  @Override
+  public InMemoryMember find(String channelName, String memberId) {
+    Objects.requireNonNull(channelName, "channel name");
+    Objects.requireNonNull(memberId, "member id");
+    Channel channel = this.channels.get(channelName);
+    InMemoryMember member = null != channel ? channel.members.get(memberId) : null;
+    if (null == member) {
+      throw new NotFoundException("Not found member");
+    }
+    return member;
+  }
+
+  @Override
+  public String findUnAnsweredMessage(Member from, Member to) {
+    return ((InMemoryMember) from).getUnAnsweredMessage(to.getId());
+  }
+
+  @Override
+  public Stream<Member> members(String channelName) {
+    Channel channel = this.channels.get(channelName);
+    return null != channel
+        ? channel.members.values().stream().map(Member.class::cast)
+        : Stream.empty();
+  }
+
+  @Override
+  public Member switchConnection(String channelName, String memberId, String newConnection) {
+    InMemoryMember member = this.find(channelName, memberId);
+    member.updateConnection(newConnection, null, null);
+    return member;
+  }
+
+  private void removed(Member member) {
+    this.removalListeners.forEach(listener -> listener.accept(member));
+  }
+
+  private static final class Channel {
+    private final String hostId;
+    private final ConcurrentMap<String, InMemoryMember> members = new ConcurrentHashMap<>();
+
+    Channel(String hostId) {
+      this.hostId = hostId;
+    }
+  }
+}
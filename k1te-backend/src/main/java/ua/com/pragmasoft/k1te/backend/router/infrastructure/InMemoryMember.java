@@ -0,0 +1,182 @@
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.backend.router.infrastructure;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import ua.com.pragmasoft.k1te.backend.router.domain.ConnectionUri;
+import ua.com.pragmasoft.k1te.backend.router.domain.Connector;
+import ua.com.pragmasoft.k1te.backend.router.domain.Member;
+
+/**
+ * Member of the {@link InMemoryChannels}. Keeps connection index of its channels up to date, when
+ * its connections change.
+ */
+public class InMemoryMember implements Member {
+
+  private final String channelName;
+  private final String id;
+  private final String userName;
+  private final boolean host;
+  private final ConcurrentMap<String, InMemoryMember> connectionIndex;
+  private final Map<String, Connection> connections = new HashMap<>(4);
+  private final Map<String, String> pinnedMessages = new ConcurrentHashMap<>(4);
+  private volatile String peerMemberId;
+  private String lastActiveConnector;
+
+  InMemoryMember(
+      String channelName,
+      String id,
+      String userName,
+      boolean host,
+      String peerMemberId,
+      ConcurrentMap<String, InMemoryMember> connectionIndex) {
+    this.channelName = channelName;
+    this.id = id;
+    this.userName = userName;
+    this.host = host;
+    this.peerMemberId = peerMemberId;
+    this.connectionIndex = connectionIndex;
+  }
+
+  @Override
+  public String getId() {
+    return this.id;
+  }
+
+  @Override
+  public String getChannelName() {
+    return this.channelName;
+  }
+
+  @Override
+  public String getUserName() {
+    return this.userName;
+  }
+
+  @Override
+  public boolean isHost() {
+    return this.host;
+  }
+
+  /** Returns connection of the last active connector, or any other live connection */
+  @Override
+  public synchronized String getConnectionUri() {
+    if (null != this.lastActiveConnector) {
+      return this.connections.get(this.lastActiveConnector).connectionUri;
+    }
+    return this.connections.values().stream()
+        .map(connection -> connection.connectionUri)
+        .filter(Objects::nonNull)
+        .findFirst()
+        .orElse(null);
+  }
+
+  @Override
+  public String getPeerMemberId() {
+    return this.peerMemberId;
+  }
+
+  @Override
+  public void updateUnAnsweredMessage(Member toMember, String messageId) {
+    this.pinnedMessages.put(toMember.getId(), messageId);
+  }
+
+  @Override
+  public void updatePeer(String peerMemberId) {
+    this.peerMemberId = peerMemberId;
+  }
+
+  @Override
+  public void updateConnection(String connectionUri, String messageId, Instant usageTime) {
+    Objects.requireNonNull(connectionUri);
+    this.updateConnection(ConnectionUri.parse(connectionUri), messageId, usageTime);
+  }
+
+  @Override
+  public synchronized void updateConnection(
+      ConnectionUri parsedUri, String messageId, Instant usageTime) {
+    String connectorId = parsedUri.connectorId();
+    String connectionUri = parsedUri.toString();
+    Connection connection = this.connections.computeIfAbsent(connectorId, id -> new Connection());
+    if (!connectionUri.equals(connection.connectionUri)) {
+      if (null != connection.connectionUri) {
+        this.connectionIndex.remove(connection.connectionUri, this);
+      }
+      connection.connectionUri = connectionUri;
+      this.connectionIndex.put(connectionUri, this);
+    }
+    if (null != messageId) {
+      connection.lastMessageId = messageId;
+    }
+    if (null != usageTime) {
+      connection.lastMessageTime = usageTime;
+    }
+    this.lastActiveConnector = connectorId;
+  }
+
+  @Override
+  public void deleteUnAnsweredMessage(Member toMember) {
+    this.pinnedMessages.remove(toMember.getId());
+  }
+
+  public String getUnAnsweredMessage(String toMemberId) {
+    return this.pinnedMessages.get(toMemberId);
+  }
+
+  public synchronized Instant getLastMessageTimeForConnection(String connectionUri) {
+    Connection connection = this.connections.get(Connector.connectorId(connectionUri));
+    return null != connection ? connection.lastMessageTime : null;
+  }
+
+  synchronized void deleteConnection(String connectionUri) {
+    String connectorId = Connector.connectorId(connectionUri);
+    Connection connection = this.connections.get(connectorId);
+    if (null != connection && connectionUri.equals(connection.connectionUri)) {
+      connection.connectionUri = null;
+      if (connectorId.equals(this.lastActiveConnector)) {
+        this.lastActiveConnector = null;
+      }
+    }
+    this.connectionIndex.remove(connectionUri, this);
+  }
+
+  synchronized void deleteConnections() {
+    this.connections
+        .values()
+        .forEach(
+            connection -> {
+              if (null != connection.connectionUri) {
+                this.connectionIndex.remove(connection.connectionUri, this);
+                connection.connectionUri = null;
+              }
+            });
+    this.lastActiveConnector = null;
+  }
+
+  @Override
+  public String toString() {
+    return "InMemoryMember{"
+        + "channelName='"
+        + channelName
+        + '\''
+        + ", id='"
+        + id
+        + '\''
+        + ", host="
+        + host
+        + ", peerMemberId='"
+        + peerMemberId
+        + '\''
+        + '}';
+  }
+
+  private static final class Connection {
+    private String connectionUri;
+    private String lastMessageId;
+    private Instant lastMessageTime;
+  }
+}
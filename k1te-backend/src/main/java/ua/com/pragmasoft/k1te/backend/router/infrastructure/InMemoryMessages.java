@@ -0,0 +1,223 @@
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.backend.router.infrastructure;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import ua.com.pragmasoft.k1te.backend.router.domain.Channels;
+import ua.com.pragmasoft.k1te.backend.router.domain.HistoryMessage;
+import ua.com.pragmasoft.k1te.backend.router.domain.Member;
+import ua.com.pragmasoft.k1te.backend.router.domain.Messages;
+import ua.com.pragmasoft.k1te.backend.shared.NotFoundException;
+
+/**
+ * Keeps the most recent messages of every member in a fixed size ring buffer, older messages are
+ * overwritten.
+ */
+public class InMemoryMessages implements Messages {
+
+  public static final int DEFAULT_HISTORY_CAPACITY = 100;
+
+  private static final Comparator<Cursor> ORDER =
+      Comparator.comparing(Cursor::time).thenComparing(Cursor::messageId);
+
+  private final Channels channels;
+  private final int historyCapacity;
+  private final ConcurrentMap<String, History> histories = new ConcurrentHashMap<>();
+
+  public InMemoryMessages(Channels channels) {
+    this(channels, DEFAULT_HISTORY_CAPACITY);
+  }
+
+  /**
+   * @param channels used to find messages owner when request only has a connection
+   * @param historyCapacity max number of messages kept per member
+   */
+  public InMemoryMessages(Channels channels, int historyCapacity) {
+    if (historyCapacity <= 0) {
+      throw new IllegalArgumentException("History capacity must be positive");
+    }
+    this.channels = channels;
+    this.historyCapacity = historyCapacity;
+  }
+
+  @Override
+  public HistoryMessage persist(
+      String channelName, String memberId, String messageId, String content, Instant time) {
+    Objects.requireNonNull(channelName);
+    Objects.requireNonNull(memberId);
+    Objects.requireNonNull(messageId);
+    Objects.requireNonNull(content);
+    Objects.requireNonNull(time);
+    var message = new InMemoryHistoryMessage(channelName, memberId, messageId, content, time);
+    this.histories
+        .computeIfAbsent(historyId(channelName, memberId), id -> new History(this.historyCapacity))
+        .add(message);
+    return message;
+  }
+
+  @Override
+  public HistoryMessage find(Member member, String messageId) {
+    History history = this.histories.get(historyId(member));
+    HistoryMessage message = null != history ? history.find(messageId) : null;
+    if (message == null) throw new NotFoundException("History Message Not Found");
+    return message;
+  }
+
+  /** Same semantics as {@link DynamoDbMessages#findAll(MessagesRequest)} */
+  @Override
+  public List<HistoryMessage> findAll(MessagesRequest request) {
+    Integer limit = request.getLimit();
+    List<HistoryMessage> messages = this.history(request);
+    if (limit != null && messages.size() > limit) {
+      messages = messages.subList(messages.size() - limit, messages.size());
+    }
+    return List.copyOf(messages);
+  }
+
+  @Override
+  public MessagesPage findPage(MessagesRequest request) {
+    int pageSize = null != request.getLimit() ? request.getLimit() : DEFAULT_PAGE_SIZE;
+    List<HistoryMessage> messages = this.history(request);
+    if (null != request.getCursor()) {
+      var position = Cursor.decode(request.getCursor());
+      messages =
+          messages.stream()
+              .filter(message -> ORDER.compare(Cursor.of(message), position) > 0)
+              .toList();
+    }
+    if (messages.size() <= pageSize) {
+      return new MessagesPage(List.copyOf(messages), null);
+    }
+    var page = List.copyOf(messages.subList(0, pageSize));
+    return new MessagesPage(page, Cursor.of(page.get(pageSize - 1)).encode());
+  }
+
+  /**
+   * Forgets the history of the member, who left the channel or whose channel was dropped, see
+   * {@link InMemoryChannels#onMemberRemoved}
+   */
+  public void delete(Member member) {
+    this.histories.remove(historyId(member));
+  }
+
+  /** Messages after the last message of the request, in chronological order */
+  private List<HistoryMessage> history(MessagesRequest request) {
+    String connectionUri = request.getConnectionUri();
+    Member member = request.getMessagesOwner();
+    Instant lastMessageTime = request.getLastMessageTime();
+    String lastMessageId = request.getLastMessageId();
+
+    if (connectionUri == null && member == null)
+      throw new IllegalStateException(
+          "Member and Connection are not provided, must be at least one of them");
+
+    if (member == null) {
+      member = this.channels.find(connectionUri);
+    }
+    if (request.isLastMessageByConnection()) {
+      if (connectionUri == null) {
+        throw new IllegalStateException(
+            "lastMessageByConnection is true but not ConnectionUri is specified");
+      }
+      lastMessageTime = ((InMemoryMember) member).getLastMessageTimeForConnection(connectionUri);
+    }
+    if (lastMessageTime == null
+        && lastMessageId != null
+        && !lastMessageId.isEmpty()
+        && request.getCursor() == null) {
+      lastMessageTime = this.find(member, lastMessageId).getTime();
+    }
+
+    History history = this.histories.get(historyId(member));
+    if (null == history) {
+      return List.of();
+    }
+    List<HistoryMessage> messages = history.after(lastMessageTime);
+    messages.sort(Comparator.comparing(Cursor::of, ORDER));
+    return messages;
+  }
+
+  private static String historyId(Member member) {
+    return historyId(member.getChannelName(), member.getId());
+  }
+
+  private static String historyId(String channelName, String memberId) {
+    return channelName + ':' + memberId;
+  }
+
+  private static final class History {
+
+    private final HistoryMessage[] ring;
+    private int next = 0;
+    private int size = 0;
+
+    History(int capacity) {
+      this.ring = new HistoryMessage[capacity];
+    }
+
+    synchronized void add(HistoryMessage message) {
+      this.ring[this.next] = message;
+      this.next = (this.next + 1) % this.ring.length;
+      if (this.size < this.ring.length) {
+        this.size++;
+      }
+    }
+
+    synchronized HistoryMessage find(String messageId) {
+      for (int i = 0; i < this.size; i++) {
+        HistoryMessage message = this.ring[i];
+        if (message.getMessageId().equals(messageId)) {
+          return message;
+        }
+      }
+      return null;
+    }
+
+    /** Returns messages after the given time, or all messages if time is null */
+    synchronized List<HistoryMessage> after(Instant time) {
+      var result = new ArrayList<HistoryMessage>(this.size);
+      for (int i = 0; i < this.size; i++) {
+        HistoryMessage message = this.ring[i];
+        if (null == time || message.getTime().isAfter(time)) {
+          result.add(message);
+        }
+      }
+      return result;
+    }
+  }
+
+  record InMemoryHistoryMessage(
+      String channelName, String memberId, String messageId, String content, Instant time)
+      implements HistoryMessage {
+
+    @Override
+    public String getChannelName() {
+      return this.channelName;
+    }
+
+    @Override
+    public String getMemberId() {
+      return this.memberId;
+    }
+
+    @Override
+    public String getMessageId() {
+      return this.messageId;
+    }
+
+    @Override
+    public String getContent() {
+      return this.content;
+    }
+
+    @Override
+    public Instant getTime() {
+      return this.time;
+    }
+  }
+}
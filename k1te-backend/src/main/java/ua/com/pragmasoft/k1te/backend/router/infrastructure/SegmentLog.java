@@ -0,0 +1,290 @@
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.backend.router.infrastructure;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only log of records, kept in memory mapped segment files. Record is its length, CRC32
+ * checksum and bytes, zero length marks the end of the segment. Position of the first record which
+ * is not consumed yet is kept in the checkpoint file, segments before it are deleted.
+ *
+ * <p>On open, the last segment is scanned up to the first incomplete record, which is overwritten
+ * by the next append.
+ *
+ * <p>Only the segments being written and read are mapped, retired segments are unmapped right away
+ * instead of waiting for the garbage collector. Records are copied out of the mapped segments
+ * within the lock, so no reference to the unmapped memory can be left.
+ */
+final class SegmentLog implements AutoCloseable {
+
+  private static final Logger log = LoggerFactory.getLogger(SegmentLog.class);
+
+  private static final String SEGMENT_SUFFIX = ".segment";
+  private static final String CHECKPOINT = "checkpoint";
+  private static final int HEADER = 2 * Integer.BYTES;
+  private static final MethodHandle INVOKE_CLEANER = invokeCleaner();
+
+  /**
+   * @param bytes record
+   * @param next position after the record
+   */
+  record Entry(byte[] bytes, long next) {}
+
+  private final Path dir;
+  private final int segmentSize;
+  private final boolean syncOnRoll;
+  private final MappedByteBuffer checkpoint;
+  private long firstSegment;
+  private long writeSegment;
+  private MappedByteBuffer writeBuffer;
+  private long readSegment;
+  private int readOffset;
+  private MappedByteBuffer readBuffer;
+
+  /**
+   * @param dir directory of the segment files
+   * @param segmentSize size of the new segment files
+   * @param syncOnRoll whether to force the segment to the storage device once it is full
+   */
+  SegmentLog(Path dir, int segmentSize, boolean syncOnRoll) throws IOException {
+    if (segmentSize <= HEADER) {
+      throw new IllegalArgumentException("Segment size is too small: " + segmentSize);
+    }
+    this.dir = dir;
+    this.segmentSize = segmentSize;
+    this.syncOnRoll = syncOnRoll;
+    Files.createDirectories(dir);
+    this.checkpoint = this.map(dir.resolve(CHECKPOINT), Long.BYTES);
+
+    List<Long> segments = this.segments();
+    long committed = this.checkpoint.getLong(0);
+    this.firstSegment = segments.isEmpty() ? segment(committed) : segments.get(0);
+    this.writeSegment = segments.isEmpty() ? this.firstSegment : segments.get(segments.size() - 1);
+    this.writeBuffer = this.map(this.segmentPath(this.writeSegment), segmentSize);
+    int end = scan(this.writeBuffer);
+    this.writeBuffer.position(end);
+    if (this.writeBuffer.remaining() >= Integer.BYTES) {
+      this.writeBuffer.putInt(end, 0);
+    }
+    if (segment(committed) < this.firstSegment) {
+      this.checkpoint.putLong(0, position(this.firstSegment, 0));
+    }
+    this.rewind();
+  }
+
+  /**
+   * Appends the record
+   *
+   * @param sync whether to force the record to the storage device
+   */
+  synchronized void append(byte[] bytes, boolean sync) {
+    int length = HEADER + bytes.length;
+    if (length > this.segmentSize) {
+      throw new IllegalArgumentException("Record of %d bytes is too large".formatted(bytes.length));
+    }
+    if (this.writeBuffer.remaining() < length) {
+      this.roll();
+    }
+    int offset = this.writeBuffer.position();
+    var crc = new CRC32();
+    crc.update(bytes);
+    this.writeBuffer.putInt(bytes.length).putInt((int) crc.getValue()).put(bytes);
+    if (this.writeBuffer.remaining() >= Integer.BYTES) {
+      this.writeBuffer.putInt(this.writeBuffer.position(), 0);
+    }
+    if (sync) {
+      this.writeBuffer.force(offset, length);
+    }
+  }
+
+  /** Reads at most max records following the previously read ones */
+  synchronized List<Entry> read(int max) {
+    List<Entry> entries = new ArrayList<>(Math.min(max, 64));
+    while (entries.size() < max) {
+      boolean live = this.readSegment == this.writeSegment;
+      var buffer = live ? this.writeBuffer : this.readBuffer;
+      int limit = live ? this.writeBuffer.position() : buffer.limit();
+      byte[] bytes = record(buffer, this.readOffset, limit);
+      if (null != bytes) {
+        this.readOffset += HEADER + bytes.length;
+        entries.add(new Entry(bytes, position(this.readSegment, this.readOffset)));
+      } else if (!live) {
+        if (this.readOffset + Integer.BYTES <= limit && buffer.getInt(this.readOffset) != 0) {
+          log.warn("Skipped corrupted tail of the segment {}", this.readSegment);
+        }
+        unmap(this.readBuffer);
+        this.readSegment++;
+        this.readOffset = 0;
+        this.readBuffer = this.mapForRead(this.readSegment);
+      } else {
+        break;
+      }
+    }
+    return entries;
+  }
+
+  /** Marks records before the position as consumed, deleting segments which are fully consumed */
+  synchronized void commit(long position) {
+    this.checkpoint.putLong(0, position);
+    long segment = segment(position);
+    while (this.firstSegment < segment) {
+      try {
+        Files.deleteIfExists(this.segmentPath(this.firstSegment));
+      } catch (IOException e) {
+        log.warn("Segment {} was not deleted: {}", this.firstSegment, e.getMessage());
+      }
+      this.firstSegment++;
+    }
+  }
+
+  /** Continues reading from the last committed position */
+  synchronized void rewind() {
+    long committed = this.checkpoint.getLong(0);
+    if (null == this.readBuffer || this.readSegment != segment(committed)) {
+      unmap(this.readBuffer);
+      this.readSegment = segment(committed);
+      this.readBuffer = this.mapForRead(this.readSegment);
+    }
+    this.readOffset = offset(committed);
+  }
+
+  /** Forces the current segment and the checkpoint to the storage device */
+  synchronized void sync() {
+    this.writeBuffer.force();
+    this.checkpoint.force();
+  }
+
+  @Override
+  public void close() {
+    this.sync();
+  }
+
+  private void roll() {
+    if (this.syncOnRoll) {
+      this.writeBuffer.force();
+    }
+    if (this.readSegment == this.writeSegment) {
+      this.readBuffer = this.writeBuffer; // reader continues with the sealed segment
+    } else {
+      unmap(this.writeBuffer);
+    }
+    this.writeSegment++;
+    this.writeBuffer = this.map(this.segmentPath(this.writeSegment), this.segmentSize);
+  }
+
+  private MappedByteBuffer mapForRead(long segment) {
+    return segment < this.writeSegment
+        ? this.map(this.segmentPath(segment), this.segmentSize)
+        : null;
+  }
+
+  /** Maps the file, its existing size is kept */
+  private MappedByteBuffer map(Path path, int size) {
+    try (var channel =
+        FileChannel.open(
+            path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      long existing = channel.size();
+      return channel.map(FileChannel.MapMode.READ_WRITE, 0, existing > 0 ? existing : size);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** Unmaps the buffer, which must not be used anymore. Left to the collector if not supported. */
+  private static void unmap(MappedByteBuffer buffer) {
+    if (null == buffer || null == INVOKE_CLEANER) {
+      return;
+    }
+    try {
+      INVOKE_CLEANER.invokeExact((ByteBuffer) buffer);
+    } catch (Throwable e) {
+      log.warn("Segment was not unmapped: {}", e.getMessage());
+    }
+  }
+
+  /** Unsafe.invokeCleaner, the only way to unmap the buffer before it is collected */
+  private static MethodHandle invokeCleaner() {
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      return MethodHandles.lookup()
+          .findVirtual(
+              unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+          .bindTo(theUnsafe.get(null));
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      log.warn("Segments are unmapped by the garbage collector: {}", e.getMessage());
+      return null;
+    }
+  }
+
+  private List<Long> segments() throws IOException {
+    try (Stream<Path> files = Files.list(this.dir)) {
+      return files
+          .map(file -> file.getFileName().toString())
+          .filter(name -> name.endsWith(SEGMENT_SUFFIX))
+          .map(name -> Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())))
+          .sorted()
+          .toList();
+    }
+  }
+
+  private Path segmentPath(long segment) {
+    return this.dir.resolve("%020d%s".formatted(segment, SEGMENT_SUFFIX));
+  }
+
+  /** Returns end of the valid records */
+  private static int scan(MappedByteBuffer buffer) {
+    int offset = 0;
+    byte[] bytes;
+    while (null != (bytes = record(buffer, offset, buffer.limit()))) {
+      offset += HEADER + bytes.length;
+    }
+    return offset;
+  }
+
+  /** Returns the record at the offset, or null if there's no complete record there */
+  private static byte[] record(MappedByteBuffer buffer, int offset, int limit) {
+    if (offset + HEADER > limit) {
+      return null;
+    }
+    int length = buffer.getInt(offset);
+    if (length <= 0 || length > limit - offset - HEADER) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(offset + HEADER, bytes);
+    var crc = new CRC32();
+    crc.update(bytes);
+    return (int) crc.getValue() == buffer.getInt(offset + Integer.BYTES) ? bytes : null;
+  }
+
+  private static long position(long segment, int offset) {
+    return segment << 32 | offset;
+  }
+
+  private static long segment(long position) {
+    return position >>> 32;
+  }
+
+  private static int offset(long position) {
+    return (int) position;
+  }
+}
@@ -0,0 +1,287 @@
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.backend.router.infrastructure;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ua.com.pragmasoft.k1te.backend.router.domain.HistoryMessage;
+import ua.com.pragmasoft.k1te.backend.router.domain.Member;
+import ua.com.pragmasoft.k1te.backend.router.domain.Messages;
+
+/**
+ * Appends history messages to the local {@link SegmentLog} and ships them to the delegate in
+ * background, so persisting doesn't wait for the database. Messages which were not shipped before
+ * shutdown or crash are shipped after restart. While the delegate is not available, messages stay
+ * in the log. Reads ship pending messages first.
+ *
+ * <p>Messages are shipped in batches. When the batch is rejected, its messages are shipped one by
+ * one, and those rejected are skipped, so they don't stop the messages after them.
+ */
+public class WriteAheadMessages implements Messages, AutoCloseable {
+
+  private static final Logger log = LoggerFactory.getLogger(WriteAheadMessages.class);
+
+  private static final int SHIP_BATCH = DynamoDbWriteBehind.MAX_BATCH_SIZE;
+
+  /** When appended messages are forced to the storage device */
+  public enum Fsync {
+    /** Every message before it is acknowledged */
+    ALWAYS,
+    /** With every ship run, messages survive process crash, but may be lost on power failure */
+    PERIODIC,
+    /** Left to the operating system */
+    NONE
+  }
+
+  private final Messages delegate;
+  private final SegmentLog segmentLog;
+  private final Fsync fsync;
+  private final ReentrantLock shipLock = new ReentrantLock();
+  private final ScheduledExecutorService shipper;
+  private final AtomicLong shippedMessages = new AtomicLong();
+  private final AtomicLong rejectedMessages = new AtomicLong();
+  private volatile boolean closed = false;
+
+  /**
+   * @param delegate
+   * @param dir directory of the log segments
+   * @param segmentSize size of the log segment file
+   * @param fsync
+   * @param shipInterval delay between ship runs
+   */
+  public WriteAheadMessages(
+      Messages delegate, Path dir, int segmentSize, Fsync fsync, Duration shipInterval) {
+    this.delegate = delegate;
+    this.fsync = fsync;
+    try {
+      this.segmentLog = new SegmentLog(dir, segmentSize, fsync != Fsync.NONE);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    this.shipper =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread t = new Thread(r, "k1te-history-shipper");
+              t.setDaemon(true);
+              return t;
+            });
+    long delay = Math.max(1, shipInterval.toMillis());
+    this.shipper.scheduleWithFixedDelay(this::shipSafely, 0, delay, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public HistoryMessage persist(
+      String channelName, String memberId, String messageId, String content, Instant time) {
+    Objects.requireNonNull(channelName);
+    Objects.requireNonNull(memberId);
+    Objects.requireNonNull(messageId);
+    Objects.requireNonNull(content);
+    Objects.requireNonNull(time);
+    if (this.closed) {
+      return this.delegate.persist(channelName, memberId, messageId, content, time);
+    }
+    var message = new LoggedMessage(channelName, memberId, messageId, content, time);
+    this.segmentLog.append(encode(message), this.fsync == Fsync.ALWAYS);
+    return message;
+  }
+
+  @Override
+  public HistoryMessage find(Member member, String messageId) {
+    this.ship();
+    return this.delegate.find(member, messageId);
+  }
+
+  @Override
+  public List<HistoryMessage> findAll(MessagesRequest request) {
+    this.ship();
+    return this.delegate.findAll(request);
+  }
+
+  @Override
+  public MessagesPage findPage(MessagesRequest request) {
+    this.ship();
+    return this.delegate.findPage(request);
+  }
+
+  /**
+   * Persists logged messages with the delegate, in the order they were logged. Stops at the first
+   * batch which failed other than rejected, it is retried with the next run.
+   *
+   * @return true if all of them were shipped
+   */
+  public boolean ship() {
+    this.shipLock.lock();
+    try {
+      while (true) {
+        var entries = this.segmentLog.read(SHIP_BATCH);
+        if (entries.isEmpty()) {
+          return true;
+        }
+        var messages = entries.stream().map(entry -> decode(entry.bytes())).toList();
+        try {
+          var unprocessed = this.delegate.persistBatch(messages);
+          if (!unprocessed.isEmpty()) {
+            log.warn("{} history messages were not shipped, will retry", unprocessed.size());
+            this.segmentLog.rewind();
+            return false;
+          }
+        } catch (RuntimeException e) {
+          if (!DynamoDbMessages.isRejected(e)) {
+            log.warn("History messages were not shipped, will retry: {}", e.getMessage());
+            this.segmentLog.rewind();
+            return false;
+          }
+          log.warn("History batch rejected, shipping messages one by one: {}", e.getMessage());
+          if (!this.shipEach(entries, messages)) {
+            return false;
+          }
+          continue;
+        }
+        this.segmentLog.commit(entries.get(entries.size() - 1).next());
+        this.shippedMessages.addAndGet(entries.size());
+      }
+    } finally {
+      this.shipLock.unlock();
+    }
+  }
+
+  /** Ships messages one by one, skipping those rejected. Stops at the first failed otherwise */
+  private boolean shipEach(List<SegmentLog.Entry> entries, List<LoggedMessage> messages) {
+    for (int i = 0; i < entries.size(); i++) {
+      var message = messages.get(i);
+      try {
+        this.delegate.persist(
+            message.channelName(),
+            message.memberId(),
+            message.messageId(),
+            message.content(),
+            message.time());
+        this.shippedMessages.incrementAndGet();
+      } catch (RuntimeException e) {
+        if (!DynamoDbMessages.isRejected(e)) {
+          log.warn("History message was not shipped, will retry: {}", e.getMessage());
+          this.segmentLog.rewind();
+          return false;
+        }
+        this.rejectedMessages.incrementAndGet();
+        log.error(
+            "History message {} of {}::{} rejected, skipped: {}",
+            message.messageId(),
+            message.channelName(),
+            message.memberId(),
+            e.getMessage());
+      }
+      this.segmentLog.commit(entries.get(i).next());
+    }
+    return true;
+  }
+
+  public long getShippedMessages() {
+    return this.shippedMessages.get();
+  }
+
+  public long getRejectedMessages() {
+    return this.rejectedMessages.get();
+  }
+
+  /** Ships logged messages, those which could not be shipped stay in the log until restart */
+  @Override
+  public void close() {
+    this.closed = true;
+    this.shipper.shutdown();
+    try {
+      this.shipper.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    this.ship();
+    this.segmentLog.close();
+  }
+
+  private void shipSafely() {
+    try {
+      this.ship();
+      if (this.fsync == Fsync.PERIODIC) {
+        this.segmentLog.sync();
+      }
+    } catch (RuntimeException e) {
+      log.error("Background ship failed", e);
+    }
+  }
+
+  static byte[] encode(LoggedMessage message) {
+    byte[][] strings = {
+      message.channelName().getBytes(StandardCharsets.UTF_8),
+      message.memberId().getBytes(StandardCharsets.UTF_8),
+      message.messageId().getBytes(StandardCharsets.UTF_8),
+      message.content().getBytes(StandardCharsets.UTF_8)
+    };
+    int size = Long.BYTES + Integer.BYTES;
+    for (byte[] string : strings) {
+      size += Integer.BYTES + string.length;
+    }
+    var buffer =
+        ByteBuffer.allocate(size)
+            .putLong(message.time().getEpochSecond())
+            .putInt(message.time().getNano());
+    for (byte[] string : strings) {
+      buffer.putInt(string.length).put(string);
+    }
+    return buffer.array();
+  }
+
+  static LoggedMessage decode(byte[] bytes) {
+    var buffer = ByteBuffer.wrap(bytes);
+    var time = Instant.ofEpochSecond(buffer.getLong(), buffer.getInt());
+    return new LoggedMessage(string(buffer), string(buffer), string(buffer), string(buffer), time);
+  }
+
+  private static String string(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  record LoggedMessage(
+      String channelName, String memberId, String messageId, String content, Instant time)
+      implements HistoryMessage {
+
+    @Override
+    public String getChannelName() {
+      return this.channelName;
+    }
+
+    @Override
+    public String getMemberId() {
+      return this.memberId;
+    }
+
+    @Override
+    public String getMessageId() {
+      return this.messageId;
+    }
+
+    @Override
+    public String getContent() {
+      return this.content;
+    }
+
+    @Override
+    public Instant getTime() {
+      return this.time;
+    }
+  }
+}
@@ -14,6 +14,7 @@ import com.pengrad.telegrambot.model.User;
 import com.pengrad.telegrambot.model.request.ParseMode;
 import com.pengrad.telegrambot.request.*;
 import com.pengrad.telegrambot.response.GetFileResponse;
+import com.pengrad.telegrambot.response.SendResponse;
 import java.io.Closeable;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -52,6 +53,7 @@ public class TelegramConnector implements Connector, Closeable {
 
       /host *channel* set up current chat as a support channel named *channel*
       /drop unregister current support channel
+      /broadcast *text* send *text* to every member of your support channel
 
       /join *channel* start conversation with support channel named *channel*
       /leave leave current support channel
@@ -209,7 +211,21 @@ public class TelegramConnector implements Connector, Closeable {
 
   @Override
   public void dispatch(RoutingContext ctx) {
-    Long destinationChatId = toLong(Connector.rawConnection(ctx.destinationConnection));
+    var sendResponse = this.send(ctx);
+    if (PIN_FEATURE_FLAG && ctx.from != ctx.to) {
+      this.updatePinnedMessage(ctx, sendResponse.message());
+    }
+  }
+
+  /** Broadcast messages are not pinned, so their delivery doesn't use channels */
+  @Override
+  public void dispatchBroadcast(RoutingContext ctx) {
+    this.send(ctx);
+  }
+
+  /** Sends the request to the destination chat and sets the response of the context */
+  private SendResponse send(RoutingContext ctx) {
+    Long destinationChatId = toLong(ctx.destination().rawConnection());
     Member from = ctx.from;
     Member to = ctx.to;
     AbstractSendRequest<?> sendMessage;
@@ -251,47 +267,47 @@ public class TelegramConnector implements Connector, Closeable {
           "%s connector error: (%d) %s"
               .formatted(this.id(), sendResponse.errorCode(), sendResponse.description()));
     }
-
-    if (PIN_FEATURE_FLAG && from != to) {
-      String text = sendResponse.message().text();
-      boolean isJoinMessage =
-          text != null && text.contains(SUCCESS) && text.contains("joined channel");
-      boolean isLeaveMessage =
-          text != null && text.contains(SUCCESS) && text.contains("left channel");
-      boolean isSwitchMessage =
-          text != null && text.contains(SUCCESS) && text.contains("switched to Telegram");
-
-      String pinnedMessageId = this.channels.findUnAnsweredMessage(from, to);
-      if (pinnedMessageId == null) {
-        if (!isJoinMessage && !isLeaveMessage && !isSwitchMessage) {
-          PinChatMessage pinChatMessage =
-              new PinChatMessage(destinationChatId, sendResponse.message().messageId())
-                  .disableNotification(true);
-          bot.execute(pinChatMessage);
-          from.updateUnAnsweredMessage(
-              to, fromLong(sendResponse.message().messageId().longValue()));
-          log.debug(
-              "Member {} pinned message {}", from.getId(), sendResponse.message().messageId());
-        }
-      } else {
-        if (isLeaveMessage) {
-          UnpinChatMessage unpinChatMessage =
-              new UnpinChatMessage(destinationChatId).messageId(toLong(pinnedMessageId).intValue());
-          bot.execute(unpinChatMessage);
-          from.deleteUnAnsweredMessage(to);
-          log.debug(
-              "Member {} left the Channel, his pinnedMessage {} was deleted",
-              from.getId(),
-              pinnedMessageId);
-        }
-      }
-    }
-
     ctx.response =
         new MessageAck(
             ctx.request.messageId(),
             fromLong(sendResponse.message().messageId().longValue()),
             Instant.ofEpochSecond(sendResponse.message().date()));
+    return sendResponse;
+  }
+
+  private void updatePinnedMessage(RoutingContext ctx, Message sent) {
+    Long destinationChatId = toLong(ctx.destination().rawConnection());
+    Member from = ctx.from;
+    Member to = ctx.to;
+    String text = sent.text();
+    boolean isJoinMessage =
+        text != null && text.contains(SUCCESS) && text.contains("joined channel");
+    boolean isLeaveMessage =
+        text != null && text.contains(SUCCESS) && text.contains("left channel");
+    boolean isSwitchMessage =
+        text != null && text.contains(SUCCESS) && text.contains("switched to Telegram");
+
+    String pinnedMessageId = this.channels.findUnAnsweredMessage(from, to);
+    if (pinnedMessageId == null) {
+      if (!isJoinMessage && !isLeaveMessage && !isSwitchMessage) {
+        PinChatMessage pinChatMessage =
+            new PinChatMessage(destinationChatId, sent.messageId()).disableNotification(true);
+        bot.execute(pinChatMessage);
+        from.updateUnAnsweredMessage(to, fromLong(sent.messageId().longValue()));
+        log.debug("Member {} pinned message {}", from.getId(), sent.messageId());
+      }
+    } else {
+      if (isLeaveMessage) {
+        UnpinChatMessage unpinChatMessage =
+            new UnpinChatMessage(destinationChatId).messageId(toLong(pinnedMessageId).intValue());
+        bot.execute(unpinChatMessage);
+        from.deleteUnAnsweredMessage(to);
+        log.debug(
+            "Member {} left the Channel, his pinnedMessage {} was deleted",
+            from.getId(),
+            pinnedMessageId);
+      }
+    }
   }
 
   private String onCommand(final Message message) {
@@ -356,6 +372,9 @@ public class TelegramConnector implements Connector, Closeable {
                           .formatted(client.getUserName(), client.getChannelName()))));
       response = "✅ You left channel %s".formatted(client.getChannelName());
 
+    } else if ("/broadcast".equals(command)) {
+      response = onBroadcastCommand(message, cmd.args, originConnection);
+
     } else if ("/drop".equals(command)) {
       Member client = this.channels.dropChannel(originConnection);
       response = "✅ You dropped channel %s".formatted(client.getChannelName());
@@ -381,6 +400,23 @@ public class TelegramConnector implements Connector, Closeable {
     }
   }
 
+  private String onBroadcastCommand(Message message, String text, String originConnection) {
+    if (text.isEmpty()) {
+      throw new ValidationException("Nothing to broadcast, add the text after the command");
+    }
+    var request =
+        new PlaintextMessage(
+            text,
+            fromLong(message.messageId().longValue()),
+            Instant.ofEpochSecond(message.date()),
+            0);
+    var result =
+        this.router.broadcast(
+            RoutingContext.create().withOriginConnection(originConnection).withRequest(request));
+    return "✅ Delivered to %d of %d members, the rest will find it in the history"
+        .formatted(result.delivered(), result.members());
+  }
+
   private String onHostCommand(
       String channelName, String title, String memberId, String originConnection) {
     this.channels.hostChannel(channelName, memberId, originConnection, title);
@@ -0,0 +1,153 @@
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.backend.ws;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.EnumMap;
+import ua.com.pragmasoft.k1te.backend.router.domain.payload.Payload.Type;
+
+/**
+ * Building blocks of the k1te.chat.v2 binary frames.
+ *
+ * <p>Frame starts with a single byte type tag followed by the same elements, in the same order, as
+ * the k1te.chat.v1 json array, except JOIN: its optional member name goes after the channel name,
+ * so it can be omitted like the other optional trailing elements. Strings are written as varint
+ * byte length followed by UTF-8 bytes, numbers as varints, timestamps as varint epoch millis.
+ * Optional trailing elements are omitted, same as in v1.
+ */
+final class CompactFrames {
+
+  private static final EnumMap<Type, Byte> TAGS = new EnumMap<>(Type.class);
+  private static final Type[] TYPES = new Type[16];
+
+  static {
+    tag(Type.JOIN, 1);
+    tag(Type.ACK, 2);
+    tag(Type.OK, 3);
+    tag(Type.ERR, 4);
+    tag(Type.TXT, 5);
+    tag(Type.BIN, 6);
+    tag(Type.UPL, 7);
+    tag(Type.PING, 8);
+    tag(Type.PONG, 9);
+  }
+
+  private CompactFrames() {}
+
+  private static void tag(Type type, int tag) {
+    TAGS.put(type, (byte) tag);
+    TYPES[tag] = type;
+  }
+
+  static byte tagOf(Type type) {
+    return TAGS.get(type);
+  }
+
+  static Type typeOf(byte tag) {
+    Type type = tag > 0 && tag < TYPES.length ? TYPES[tag] : null;
+    if (null == type) {
+      throw new IllegalArgumentException("Unknown frame tag " + tag);
+    }
+    return type;
+  }
+
+  /** Growable byte sink for frames being encoded */
+  static final class Sink {
+
+    private byte[] bytes = new byte[256];
+    private int size = 0;
+
+    void reset() {
+      this.size = 0;
+    }
+
+    int size() {
+      return this.size;
+    }
+
+    byte[] bytes() {
+      return this.bytes;
+    }
+
+    Sink writeByte(int b) {
+      this.ensure(1);
+      this.bytes[this.size++] = (byte) b;
+      return this;
+    }
+
+    Sink writeVarLong(long value) {
+      this.ensure(10);
+      while ((value & ~0x7FL) != 0) {
+        this.bytes[this.size++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      this.bytes[this.size++] = (byte) value;
+      return this;
+    }
+
+    Sink writeString(String value) {
+      byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+      this.writeVarLong(utf8.length);
+      this.ensure(utf8.length);
+      System.arraycopy(utf8, 0, this.bytes, this.size, utf8.length);
+      this.size += utf8.length;
+      return this;
+    }
+
+    Sink writeInstant(Instant value) {
+      return this.writeVarLong(value.toEpochMilli());
+    }
+
+    private void ensure(int extra) {
+      if (this.size + extra > this.bytes.length) {
+        byte[] grown = new byte[Math.max(this.bytes.length * 2, this.size + extra)];
+        System.arraycopy(this.bytes, 0, grown, 0, this.size);
+        this.bytes = grown;
+      }
+    }
+  }
+
+  static long readVarLong(ByteBuffer buffer) {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = buffer.get();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IllegalArgumentException("Malformed varint");
+  }
+
+  static int readVarInt(ByteBuffer buffer) {
+    return Math.toIntExact(readVarLong(buffer));
+  }
+
+  static String readString(ByteBuffer buffer) {
+    int length = readVarInt(buffer);
+    if (length > buffer.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    String value;
+    if (buffer.hasArray()) {
+      value =
+          new String(
+              buffer.array(),
+              buffer.arrayOffset() + buffer.position(),
+              length,
+              StandardCharsets.UTF_8);
+      buffer.position(buffer.position() + length);
+    } else {
+      byte[] utf8 = new byte[length];
+      buffer.get(utf8);
+      value = new String(utf8, StandardCharsets.UTF_8);
+    }
+    return value;
+  }
+
+  static Instant readInstant(ByteBuffer buffer) {
+    return Instant.ofEpochMilli(readVarLong(buffer));
+  }
+}
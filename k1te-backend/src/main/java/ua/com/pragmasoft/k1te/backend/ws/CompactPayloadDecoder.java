@@ -0,0 +1,81 @@
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.backend.ws;
+
+import static ua.com.pragmasoft.k1te.backend.ws.CompactFrames.*;
+
+import java.nio.ByteBuffer;
+import java.util.EnumMap;
+import java.util.Objects;
+import java.util.function.Function;
+import ua.com.pragmasoft.k1te.backend.router.domain.payload.BinaryMessage;
+import ua.com.pragmasoft.k1te.backend.router.domain.payload.JoinChannel;
+import ua.com.pragmasoft.k1te.backend.router.domain.payload.Payload;
+import ua.com.pragmasoft.k1te.backend.router.domain.payload.Payload.Type;
+import ua.com.pragmasoft.k1te.backend.router.domain.payload.Ping;
+import ua.com.pragmasoft.k1te.backend.router.domain.payload.PlaintextMessage;
+import ua.com.pragmasoft.k1te.backend.router.domain.payload.UploadRequest;
+
+/**
+ * Decodes k1te.chat.v2 binary frames, see {@link CompactFrames}. Accepts the same payload types as
+ * {@link PayloadDecoder}. In the JOIN frame, optional member name goes after the channel name.
+ */
+public class CompactPayloadDecoder implements Function<ByteBuffer, Payload> {
+
+  static final EnumMap<Type, Function<ByteBuffer, Payload>> DECODERS = new EnumMap<>(Type.class);
+
+  static {
+    DECODERS.put(Type.JOIN, CompactPayloadDecoder::decodeJoinChannel);
+    DECODERS.put(Type.TXT, CompactPayloadDecoder::decodePlaintextMessage);
+    DECODERS.put(Type.BIN, CompactPayloadDecoder::decodeBinaryMessage);
+    DECODERS.put(Type.UPL, CompactPayloadDecoder::decodeUploadRequest);
+    DECODERS.put(Type.PING, CompactPayloadDecoder::decodePing);
+  }
+
+  /** Decodes frame from the remaining bytes of the buffer */
+  @Override
+  public Payload apply(ByteBuffer buffer) {
+    Type type = typeOf(buffer.get());
+    var decoder = DECODERS.get(type);
+    Objects.requireNonNull(decoder, "No decoder for " + type);
+    return decoder.apply(buffer);
+  }
+
+  private static Payload decodeJoinChannel(ByteBuffer buffer) {
+    String memberId = readString(buffer);
+    String channelName = readString(buffer);
+    String memberName = buffer.hasRemaining() ? readString(buffer) : memberId;
+    return new JoinChannel(memberId, memberName, channelName);
+  }
+
+  private static Payload decodePlaintextMessage(ByteBuffer buffer) {
+    String messageId = readString(buffer);
+    String text = readString(buffer);
+    var timestamp = readInstant(buffer);
+    int status = buffer.hasRemaining() ? readVarInt(buffer) : 0;
+    return new PlaintextMessage(text, messageId, timestamp, status);
+  }
+
+  private static Payload decodeBinaryMessage(ByteBuffer buffer) {
+    var messageId = readString(buffer);
+    var url = readString(buffer);
+    var fileName = readString(buffer);
+    var fileType = readString(buffer);
+    var fileSize = readVarLong(buffer);
+    var timestamp = readInstant(buffer);
+    int status = buffer.hasRemaining() ? readVarInt(buffer) : 0;
+    return new BinaryMessage(url, fileName, fileType, fileSize, messageId, timestamp, status);
+  }
+
+  private static Payload decodeUploadRequest(ByteBuffer buffer) {
+    var messageId = readString(buffer);
+    var fileName = readString(buffer);
+    var fileType = readString(buffer);
+    var fileSize = readVarLong(buffer);
+    var timestamp = readInstant(buffer);
+    return new UploadRequest(fileName, fileType, fileSize, messageId, timestamp);
+  }
+
+  private static Payload decodePing(ByteBuffer buffer) {
+    return new Ping();
+  }
+}
@@ -0,0 +1,109 @@
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.backend.ws;
+
+import java.nio.ByteBuffer;
+import java.util.EnumMap;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import ua.com.pragmasoft.k1te.backend.router.domain.payload.*;
+import ua.com.pragmasoft.k1te.backend.ws.CompactFrames.Sink;
+
+/**
+ * Encodes payloads in the k1te.chat.v2 binary format, see {@link CompactFrames}. Timestamps are
+ * truncated to millis.
+ */
+public class CompactPayloadEncoder implements Function<Payload, ByteBuffer> {
+
+  private static final ThreadLocal<Sink> SINKS = ThreadLocal.withInitial(Sink::new);
+
+  static final EnumMap<Payload.Type, BiConsumer<Payload, Sink>> ENCODERS =
+      new EnumMap<>(Payload.Type.class);
+
+  static {
+    ENCODERS.put(Payload.Type.ACK, CompactPayloadEncoder::encodeAck);
+    ENCODERS.put(Payload.Type.OK, CompactPayloadEncoder::encodeTypeOnlyPayload);
+    ENCODERS.put(Payload.Type.ERR, CompactPayloadEncoder::encodeError);
+    ENCODERS.put(Payload.Type.TXT, CompactPayloadEncoder::encodePlaintext);
+    ENCODERS.put(Payload.Type.BIN, CompactPayloadEncoder::encodeBinary);
+    ENCODERS.put(Payload.Type.UPL, CompactPayloadEncoder::encodeUploadResponse);
+    ENCODERS.put(Payload.Type.PONG, CompactPayloadEncoder::encodeTypeOnlyPayload);
+  }
+
+  /** Returns encoded frame in a new buffer, ready to be read */
+  @Override
+  public ByteBuffer apply(Payload payload) {
+    var sink = encode(payload);
+    byte[] frame = new byte[sink.size()];
+    System.arraycopy(sink.bytes(), 0, frame, 0, frame.length);
+    return ByteBuffer.wrap(frame);
+  }
+
+  /**
+   * Writes encoded frame to the buffer, starting at its current position.
+   *
+   * @throws java.nio.BufferOverflowException if there's not enough space remaining in the buffer
+   */
+  public void encode(Payload payload, ByteBuffer buffer) {
+    var sink = encode(payload);
+    buffer.put(sink.bytes(), 0, sink.size());
+  }
+
+  private static Sink encode(Payload payload) {
+    final var type = payload.type();
+    var encoder = ENCODERS.get(type);
+    Objects.requireNonNull(encoder, "No encoder for " + type);
+    var sink = SINKS.get();
+    sink.reset();
+    sink.writeByte(CompactFrames.tagOf(type));
+    encoder.accept(payload, sink);
+    return sink;
+  }
+
+  private static void encodeAck(Payload payload, Sink sink) {
+    var ack = (MessageAck) payload;
+    sink.writeString(ack.messageId())
+        .writeString(ack.destinationMessageId())
+        .writeInstant(ack.delivered());
+  }
+
+  private static void encodeError(Payload payload, Sink sink) {
+    var error = (ErrorResponse) payload;
+    sink.writeString(error.reason()).writeVarLong(error.code());
+  }
+
+  private static void encodePlaintext(Payload payload, Sink sink) {
+    var message = (PlaintextMessage) payload;
+    sink.writeString(message.messageId())
+        .writeString(message.text())
+        .writeInstant(message.created());
+    if (message.status() != null && message.status() != 0) {
+      sink.writeVarLong(message.status());
+    }
+  }
+
+  private static void encodeBinary(Payload payload, Sink sink) {
+    var message = (BinaryPayload) payload;
+    sink.writeString(message.messageId())
+        .writeString(message.uri().toString())
+        .writeString(message.fileName())
+        .writeString(message.fileType())
+        .writeVarLong(message.fileSize())
+        .writeInstant(message.created());
+    if (message.status() != null && message.status() != 0) {
+      sink.writeVarLong(message.status());
+    }
+  }
+
+  private static void encodeUploadResponse(Payload payload, Sink sink) {
+    var message = (UploadResponse) payload;
+    sink.writeString(message.messageId()).writeString(message.canonicalUri().toString());
+    if (null != message.uploadUri()) {
+      sink.writeString(message.uploadUri().toString());
+    }
+  }
+
+  private static void encodeTypeOnlyPayload(Payload payload, Sink sink) {
+    // tag is the only element
+  }
+}
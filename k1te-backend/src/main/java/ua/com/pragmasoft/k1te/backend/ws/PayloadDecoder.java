@@ -2,8 +2,17 @@
 package ua.com.pragmasoft.k1te.backend.ws;
 
 import jakarta.json.Json;
-import jakarta.json.JsonArray;
+import jakarta.json.JsonException;
+import jakarta.json.stream.JsonParser;
+import jakarta.json.stream.JsonParser.Event;
+import jakarta.json.stream.JsonParserFactory;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.Reader;
 import java.io.StringReader;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.EnumMap;
 import java.util.Objects;
@@ -18,11 +27,17 @@ import ua.com.pragmasoft.k1te.backend.router.domain.payload.Ping;
 import ua.com.pragmasoft.k1te.backend.router.domain.payload.PlaintextMessage;
 import ua.com.pragmasoft.k1te.backend.router.domain.payload.UploadRequest;
 
+/**
+ * Decodes k1te.chat.v1 frames. Frame elements are pulled from the {@link JsonParser} one by one,
+ * without building intermediate json tree.
+ */
 public class PayloadDecoder implements Function<String, Payload> {
 
   private static final Logger log = LoggerFactory.getLogger(PayloadDecoder.class);
 
-  static final EnumMap<Type, Function<JsonArray, Payload>> DECODERS = new EnumMap<>(Type.class);
+  private static final JsonParserFactory PARSERS = Json.createParserFactory(null);
+
+  static final EnumMap<Type, Function<Frame, Payload>> DECODERS = new EnumMap<>(Type.class);
 
   static {
     DECODERS.put(Type.JOIN, PayloadDecoder::decodeJoinChannel);
@@ -37,62 +52,207 @@ public class PayloadDecoder implements Function<String, Payload> {
 
     log.debug("decode {}", text);
 
-    try (var reader = Json.createReader(new StringReader(text))) {
-      var array = reader.readArray();
-      String typeLabel = array.getString(0);
-      Type type = Type.valueOf(typeLabel);
-      var decoder = DECODERS.get(type);
-      Objects.requireNonNull(decoder, "No decoder for " + type);
-      return decoder.apply(array);
+    return this.decode(new StringReader(text));
+  }
+
+  public Payload decode(Reader reader) {
+    try (var parser = PARSERS.createParser(reader)) {
+      return decode(parser);
+    }
+  }
+
+  /** Decodes UTF-8 encoded frame */
+  public Payload decode(InputStream in) {
+    try (var parser = PARSERS.createParser(in, StandardCharsets.UTF_8)) {
+      return decode(parser);
+    }
+  }
+
+  /** Decodes UTF-8 encoded frame from the remaining bytes of the buffer */
+  public Payload decode(ByteBuffer buffer) {
+    if (buffer.hasArray()) {
+      var in =
+          new ByteArrayInputStream(
+              buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+      buffer.position(buffer.limit());
+      return this.decode(in);
+    }
+    return this.decode(new ByteBufferInputStream(buffer));
+  }
+
+  private static Payload decode(JsonParser parser) {
+    if (!parser.hasNext() || parser.next() != Event.START_ARRAY) {
+      throw new JsonException("Frame is not an array");
     }
+    var frame = new Frame(parser);
+    Type type = Type.valueOf(frame.string());
+    var decoder = DECODERS.get(type);
+    Objects.requireNonNull(decoder, "No decoder for " + type);
+    var payload = decoder.apply(frame);
+    frame.skipRest();
+    return payload;
   }
 
-  private static Payload decodeJoinChannel(JsonArray array) {
-    Objects.checkIndex(3, array.size());
-    String memberId = array.getString(1);
-    String memberName = array.getString(2, memberId);
-    String channelName = array.getString(3);
+  private static Payload decodeJoinChannel(Frame frame) {
+    String memberId = frame.string();
+    String memberName = frame.string(memberId);
+    String channelName = frame.string();
     return new JoinChannel(memberId, memberName, channelName);
   }
 
-  private static Payload decodePlaintextMessage(JsonArray array) {
-    Objects.checkIndex(3, array.size());
-    String messageId = array.getString(1);
-    String text = array.getString(2);
-    Instant timestamp = Instant.parse(array.getString(3));
+  private static Payload decodePlaintextMessage(Frame frame) {
+    String messageId = frame.string();
+    String text = frame.string();
+    Instant timestamp = Instant.parse(frame.string());
     int status = 0;
-    if (array.size() > 4) {
-      status = array.getJsonNumber(4).intValue();
+    var statusValue = frame.optionalNumber();
+    if (null != statusValue) {
+      status = statusValue.intValue();
     }
     return new PlaintextMessage(text, messageId, timestamp, status);
   }
 
-  private static Payload decodeBinaryMessage(JsonArray array) {
-    Objects.checkIndex(6, array.size());
-    var messageId = array.getString(1);
-    var url = array.getString(2);
-    var fileName = array.getString(3);
-    var fileType = array.getString(4);
-    var fileSize = array.getJsonNumber(5).longValueExact();
-    Instant timestamp = Instant.parse(array.getString(6));
+  private static Payload decodeBinaryMessage(Frame frame) {
+    var messageId = frame.string();
+    var url = frame.string();
+    var fileName = frame.string();
+    var fileType = frame.string();
+    var fileSize = frame.number().longValueExact();
+    Instant timestamp = Instant.parse(frame.string());
     int status = 0;
-    if (array.size() > 7) {
-      status = array.getJsonNumber(7).intValue();
+    var statusValue = frame.optionalNumber();
+    if (null != statusValue) {
+      status = statusValue.intValue();
     }
     return new BinaryMessage(url, fileName, fileType, fileSize, messageId, timestamp, status);
   }
 
-  private static Payload decodeUploadRequest(JsonArray array) {
-    Objects.checkIndex(5, array.size());
-    var messageId = array.getString(1);
-    var fileName = array.getString(2);
-    var fileType = array.getString(3);
-    var fileSize = array.getJsonNumber(4).longValueExact();
-    Instant timestamp = Instant.parse(array.getString(5));
+  private static Payload decodeUploadRequest(Frame frame) {
+    var messageId = frame.string();
+    var fileName = frame.string();
+    var fileType = frame.string();
+    var fileSize = frame.number().longValueExact();
+    Instant timestamp = Instant.parse(frame.string());
     return new UploadRequest(fileName, fileType, fileSize, messageId, timestamp);
   }
 
-  private static Payload decodePing(JsonArray array) {
+  private static Payload decodePing(Frame frame) {
     return new Ping();
   }
+
+  /** Sequential reader of the frame array elements */
+  static final class Frame {
+
+    private final JsonParser parser;
+    private int index = 0;
+    private boolean ended = false;
+
+    Frame(JsonParser parser) {
+      this.parser = parser;
+    }
+
+    String string() {
+      var event = this.required();
+      if (event != Event.VALUE_STRING) {
+        throw new ClassCastException("Element %d is not a string".formatted(this.index - 1));
+      }
+      return this.parser.getString();
+    }
+
+    /** Returns string element, or default value if element is not a string */
+    String string(String defaultValue) {
+      var event = this.required();
+      if (event == Event.VALUE_STRING) {
+        return this.parser.getString();
+      }
+      this.skipValue(event);
+      return defaultValue;
+    }
+
+    BigDecimal number() {
+      return this.number(this.required());
+    }
+
+    /** Returns number element, or null if there are no more elements */
+    BigDecimal optionalNumber() {
+      var event = this.next();
+      return null == event ? null : this.number(event);
+    }
+
+    void skipRest() {
+      if (!this.ended) {
+        this.parser.skipArray();
+        this.ended = true;
+      }
+    }
+
+    private BigDecimal number(Event event) {
+      if (event != Event.VALUE_NUMBER) {
+        throw new ClassCastException("Element %d is not a number".formatted(this.index - 1));
+      }
+      return this.parser.getBigDecimal();
+    }
+
+    private Event required() {
+      var event = this.next();
+      if (null == event) {
+        throw new IndexOutOfBoundsException(
+            "Index %d out of bounds for length %d".formatted(this.index, this.index));
+      }
+      return event;
+    }
+
+    private Event next() {
+      if (this.ended) {
+        return null;
+      }
+      var event = this.parser.next();
+      if (event == Event.END_ARRAY) {
+        this.ended = true;
+        return null;
+      }
+      this.index++;
+      return event;
+    }
+
+    private void skipValue(Event event) {
+      if (event == Event.START_ARRAY) {
+        this.parser.skipArray();
+      } else if (event == Event.START_OBJECT) {
+        this.parser.skipObject();
+      }
+    }
+  }
+
+  private static final class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return this.buffer.hasRemaining() ? this.buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+      if (length == 0) {
+        return 0;
+      }
+      if (!this.buffer.hasRemaining()) {
+        return -1;
+      }
+      int count = Math.min(length, this.buffer.remaining());
+      this.buffer.get(bytes, offset, count);
+      return count;
+    }
+
+    @Override
+    public int available() {
+      return this.buffer.remaining();
+    }
+  }
 }
@@ -2,18 +2,33 @@
 package ua.com.pragmasoft.k1te.backend.ws;
 
 import jakarta.json.Json;
-import jakarta.json.JsonWriter;
-import java.io.StringWriter;
+import jakarta.json.stream.JsonGenerator;
+import jakarta.json.stream.JsonGeneratorFactory;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.EnumMap;
 import java.util.Objects;
 import java.util.function.BiConsumer;
 import java.util.function.Function;
 import ua.com.pragmasoft.k1te.backend.router.domain.payload.*;
-import ua.com.pragmasoft.k1te.backend.tg.TelegramConnector;
 
+/**
+ * Encodes payloads in the k1te.chat.v1 format. Array elements are written straight to the {@link
+ * JsonGenerator}, {@link #apply(Payload)} reuses per thread buffer.
+ */
 public class PayloadEncoder implements Function<Payload, String> {
 
-  static final EnumMap<Payload.Type, BiConsumer<Payload, JsonWriter>> ENCODERS =
+  private static final JsonGeneratorFactory GENERATORS = Json.createGeneratorFactory(null);
+  private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+  private static final ThreadLocal<StringBuilderWriter> BUFFERS =
+      ThreadLocal.withInitial(StringBuilderWriter::new);
+
+  static final EnumMap<Payload.Type, BiConsumer<Payload, JsonGenerator>> ENCODERS =
       new EnumMap<>(Payload.Type.class);
 
   static {
@@ -28,89 +43,157 @@ public class PayloadEncoder implements Function<Payload, String> {
 
   @Override
   public String apply(Payload payload) {
-    var sw = new StringWriter();
-    try (var jw = Json.createWriter(sw)) {
-      final var type = payload.type();
-      var encoder = ENCODERS.get(type);
-      Objects.requireNonNull(encoder, "No encoder for " + type);
-      encoder.accept(payload, jw);
-      return sw.toString();
+    var buffer = BUFFERS.get();
+    try {
+      encode(payload, GENERATORS.createGenerator(buffer));
+      return buffer.toString();
+    } finally {
+      buffer.reset();
     }
   }
 
-  private static void encodeAck(Payload payload, JsonWriter jw) {
+  /** Writes encoded payload to the writer. Writer is flushed, but not closed. */
+  public void encode(Payload payload, Writer writer) {
+    encode(payload, GENERATORS.createGenerator(new NonClosingWriter(writer)));
+  }
+
+  /**
+   * Writes UTF-8 encoded payload to the buffer, starting at its current position.
+   *
+   * @throws BufferOverflowException if there's not enough space remaining in the buffer
+   */
+  public void encode(Payload payload, ByteBuffer buffer) {
+    encode(
+        payload,
+        GENERATORS.createGenerator(new ByteBufferOutputStream(buffer), StandardCharsets.UTF_8));
+  }
+
+  private static void encode(Payload payload, JsonGenerator generator) {
+    final var type = payload.type();
+    var encoder = ENCODERS.get(type);
+    Objects.requireNonNull(encoder, "No encoder for " + type);
+    try (generator) {
+      generator.writeStartArray();
+      generator.write(type.name());
+      encoder.accept(payload, generator);
+      generator.writeEnd();
+    }
+  }
+
+  private static void encodeAck(Payload payload, JsonGenerator jg) {
     var ack = (MessageAck) payload;
-    var array =
-        Json.createArrayBuilder()
-            .add(payload.type().name())
-            .add(ack.messageId())
-            .add(ack.destinationMessageId())
-            .add(ack.delivered().toString())
-            .build();
-    jw.writeArray(array);
+    jg.write(ack.messageId()).write(ack.destinationMessageId()).write(ack.delivered().toString());
   }
 
-  private static void encodeError(Payload payload, JsonWriter jw) {
+  private static void encodeError(Payload payload, JsonGenerator jg) {
     var error = (ErrorResponse) payload;
-    var array =
-        Json.createArrayBuilder()
-            .add(payload.type().name())
-            .add(error.reason())
-            .add(error.code())
-            .build();
-    jw.writeArray(array);
+    jg.write(error.reason()).write(error.code());
   }
 
-  private static void encodePlaintext(Payload payload, JsonWriter jw) {
+  private static void encodePlaintext(Payload payload, JsonGenerator jg) {
     var message = (PlaintextMessage) payload;
-    var arrayBuilder =
-        Json.createArrayBuilder()
-            .add(payload.type().name())
-            .add(message.messageId())
-            .add(message.text())
-            .add(message.created().toString());
+    jg.write(message.messageId()).write(message.text()).write(message.created().toString());
     if (message.status() != null && message.status() != 0) {
-      arrayBuilder.add(message.status());
+      jg.write(message.status());
     }
-    jw.writeArray(arrayBuilder.build());
   }
 
-  private static void encodeBinary(Payload payload, JsonWriter jw) {
-    var message =
-        payload instanceof TelegramConnector.TelegramBinaryMessage
-            ? (BinaryPayload) payload
-            : (BinaryMessage) payload;
-    var arrayBuilder =
-        Json.createArrayBuilder()
-            .add(payload.type().name())
-            .add(message.messageId())
-            .add(message.uri().toString())
-            .add(message.fileName())
-            .add(message.fileType())
-            .add(message.fileSize())
-            .add(message.created().toString());
+  private static void encodeBinary(Payload payload, JsonGenerator jg) {
+    var message = (BinaryPayload) payload;
+    jg.write(message.messageId())
+        .write(message.uri().toString())
+        .write(message.fileName())
+        .write(message.fileType())
+        .write(message.fileSize())
+        .write(message.created().toString());
     if (message.status() != null && message.status() != 0) {
-      arrayBuilder.add(message.status());
+      jg.write(message.status());
     }
-    jw.writeArray(arrayBuilder.build());
   }
 
-  private static void encodeUploadResponse(Payload payload, JsonWriter jw) {
+  private static void encodeUploadResponse(Payload payload, JsonGenerator jg) {
     var message = (UploadResponse) payload;
-    var array =
-        Json.createArrayBuilder()
-            .add(payload.type().name())
-            .add(message.messageId())
-            .add(message.canonicalUri().toString());
-
+    jg.write(message.messageId()).write(message.canonicalUri().toString());
     if (null != message.uploadUri()) {
-      array.add(message.uploadUri().toString());
+      jg.write(message.uploadUri().toString());
     }
-    jw.writeArray(array.build());
   }
 
-  private static void encodeTypeOnlyPayload(Payload payload, JsonWriter jw) {
-    var array = Json.createArrayBuilder().add(payload.type().name()).build();
-    jw.writeArray(array);
+  private static void encodeTypeOnlyPayload(Payload payload, JsonGenerator jg) {
+    // type is the only element
+  }
+
+  private static final class StringBuilderWriter extends Writer {
+
+    private StringBuilder builder = new StringBuilder(256);
+
+    @Override
+    public void write(char[] chars, int offset, int length) {
+      this.builder.append(chars, offset, length);
+    }
+
+    @Override
+    public void write(String str, int offset, int length) {
+      this.builder.append(str, offset, offset + length);
+    }
+
+    @Override
+    public void write(int c) {
+      this.builder.append((char) c);
+    }
+
+    @Override
+    public void flush() {
+      // nothing to flush
+    }
+
+    @Override
+    public void close() {
+      // buffer is reused
+    }
+
+    void reset() {
+      if (this.builder.capacity() > MAX_RETAINED_BUFFER) {
+        this.builder = new StringBuilder(256);
+      } else {
+        this.builder.setLength(0);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return this.builder.toString();
+    }
+  }
+
+  private static final class NonClosingWriter extends FilterWriter {
+
+    NonClosingWriter(Writer out) {
+      super(out);
+    }
+
+    @Override
+    public void close() throws IOException {
+      this.flush();
+    }
+  }
+
+  private static final class ByteBufferOutputStream extends OutputStream {
+
+    private final ByteBuffer buffer;
+
+    ByteBufferOutputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public void write(int b) {
+      this.buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+      this.buffer.put(bytes, offset, length);
+    }
   }
 }
@@ -5,7 +5,8 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.Map;
-import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ua.com.pragmasoft.k1te.backend.router.domain.*;
@@ -15,6 +16,13 @@ import ua.com.pragmasoft.k1te.backend.shared.*;
 public class WsConnector implements Connector {
 
   public static final String SUBPROTOCOL = "k1te.chat.v1";
+
+  /**
+   * Compact binary framing, see {@link CompactPayloadEncoder}. Text frames are still k1te.chat.v1
+   * json on such connections, so clients have to accept both.
+   */
+  public static final String SUBPROTOCOL_V2 = "k1te.chat.v2";
+
   public static final String WS = "ws";
 
   private static final Long BYTES_IN_MB = 1048576L;
@@ -64,7 +72,7 @@ public class WsConnector implements Connector {
       Member member = this.channels.reconnect(channelName, memberId, connectionUri);
 
       if (member != null) {
-        CompletableFuture.runAsync(() -> dispatchMemberHistory(member, connectionUri));
+        this.router.runOrdered(member, () -> dispatchMemberHistory(member, connectionUri));
         log.debug("Member {} reconnected to the Channel {}", memberId, channelName);
       } else {
         log.debug("Member {} connected to the Channel {}", connectionUri, channelName);
@@ -176,8 +184,8 @@ public class WsConnector implements Connector {
 
     var originConnection = this.connectionUriOf(connection);
     var ctx = RoutingContext.create().withOriginConnection(originConnection).withRequest(message);
-    this.router.dispatch(ctx);
-    return ctx.response;
+    // ack the sender as soon as message is delivered, history is written in the background
+    return await(this.router.dispatchAsync(ctx));
   }
 
   @Override
@@ -201,7 +209,11 @@ public class WsConnector implements Connector {
     }
     WsConnection connection = this.requiredConnection(ctx.destinationConnection);
     try {
-      connection.sendObject(messagePayload);
+      if (messagePayload == ctx.request && SUBPROTOCOL.equals(connection.subprotocol())) {
+        connection.sendEncoded(ctx.encodedRequest());
+      } else {
+        connection.sendObject(messagePayload);
+      }
       ctx.response = new MessageAck(messagePayload.messageId());
     } catch (IOException e) {
       throw new RoutingException(e.getMessage(), e);
@@ -209,8 +221,7 @@ public class WsConnector implements Connector {
   }
 
   private void dispatchMemberHistory(Member member, String connectionUri) {
-    this.messages
-        .findAll(
+    this.messages.stream(
             Messages.MessagesRequest.builder()
                 .member(member)
                 .connectionUri(connectionUri)
@@ -218,17 +229,29 @@ public class WsConnector implements Connector {
                 .build())
         .forEach(
             message -> {
-              Payload payload = DECODER.apply(message.getContent());
+              String content = message.getContent();
+              Payload payload = DECODER.apply(content);
               var context =
                   RoutingContext.create()
                       .withFrom(member)
                       .withTo(member)
                       .withDestinationConnection(member.getConnectionUri())
-                      .withRequest((MessagePayload) payload);
+                      .withRequest((MessagePayload) payload, content);
               this.dispatch(context);
             });
   }
 
+  private static <T> T await(CompletionStage<T> stage) {
+    try {
+      return stage.toCompletableFuture().join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      }
+      throw e;
+    }
+  }
+
   private String connectionUriOf(WsConnection c) {
     return this.connectionUri(c.connectionUri());
   }
@@ -245,7 +268,15 @@ public class WsConnector implements Connector {
 
     public String connectionUri();
 
+    /** Negotiated subprotocol, which determines the encoding used by {@link #sendObject} */
+    public default String subprotocol() {
+      return SUBPROTOCOL;
+    }
+
     public void sendObject(Payload payload) throws IOException;
+
+    /** Sends frame already serialized in the k1te.chat.v1 format */
+    public void sendEncoded(String frame) throws IOException;
   }
 
   public static interface WsConnectionRegistry {
@@ -0,0 +1,57 @@
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.backend.router.domain;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+class TestConnectionUri {
+
+  @Test
+  void testParse() {
+    var uri = ConnectionUri.parse("ws:abc:def");
+    assertEquals("ws", uri.connectorId());
+    assertEquals("abc:def", uri.rawConnection());
+    assertEquals("ws:abc:def", uri.toString());
+    assertEquals(uri, ConnectionUri.of("ws", "abc:def"));
+    assertEquals(uri.hashCode(), ConnectionUri.of("ws", "abc:def").hashCode());
+    assertEquals("", ConnectionUri.parse("tg:").rawConnection());
+    assertThrows(IndexOutOfBoundsException.class, () -> ConnectionUri.parse("ws"));
+  }
+
+  @Test
+  void testConnectorIdsAreCanonical() {
+    String connectorId = ConnectionUri.of(new String("test"), "1").connectorId();
+    assertSame(connectorId, ConnectionUri.parse("test:2").connectorId());
+    assertSame(connectorId, ConnectionUri.connectorIdOf("test:3"));
+    assertEquals("test", ConnectionUri.connectorIdOf("test"));
+  }
+
+  @Test
+  void testPartsWithoutParsing() {
+    assertEquals("tg", ConnectionUri.connectorIdOf("tg:123"));
+    assertEquals("123", ConnectionUri.rawConnectionOf("tg:123"));
+    assertThrows(IndexOutOfBoundsException.class, () -> ConnectionUri.rawConnectionOf("tg"));
+  }
+
+  @Test
+  void testRoutingContextParsesChangedConnections() {
+    var ctx =
+        RoutingContext.create().withOriginConnection("ws:1").withDestinationConnection("tg:1");
+    var origin = ctx.origin();
+    assertSame(origin, ctx.origin());
+    assertEquals("tg", ctx.destination().connectorId());
+
+    // equal, but not the same string is not parsed again
+    ctx.withOriginConnection(new String("ws:1"));
+    assertSame(origin, ctx.origin());
+
+    ctx.withOriginConnection("ws:2").withDestinationConnection("ws:3");
+    assertNotSame(origin, ctx.origin());
+    assertEquals("2", ctx.origin().rawConnection());
+    assertEquals("ws:3", ctx.destination().toString());
+  }
+}
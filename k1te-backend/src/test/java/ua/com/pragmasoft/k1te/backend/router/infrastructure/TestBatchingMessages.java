@@ -0,0 +1,142 @@
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.backend.router.infrastructure;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbEnhancedClient;
+import ua.com.pragmasoft.k1te.backend.router.infrastructure.DynamoDbMessages.HistoryFormat;
+import ua.com.pragmasoft.k1te.backend.router.infrastructure.TestDynamoDbWriteBehind.FakeDynamoDb;
+
+class TestBatchingMessages {
+
+  @TempDir Path dir;
+
+  final FakeDynamoDb dynamoDb = new FakeDynamoDb();
+  final DynamoDbEnhancedClient enhanced =
+      DynamoDbEnhancedClient.builder().dynamoDbClient(this.dynamoDb).build();
+  final DynamoDbMessages messages =
+      new DynamoDbMessages(null, this.enhanced, this.dynamoDb, null, HistoryFormat.COMPACT);
+  final DynamoDbMember member = new DynamoDbMember("channel", "m1", "name", false, null);
+
+  {
+    this.dynamoDb.keyAttribute = "messageId";
+  }
+
+  @Test
+  void testSpillsAndRestores() throws Exception {
+    var spillFile = this.dir.resolve("storage").resolve("history.spill");
+    var time = Instant.parse("2023-12-01T10:00:00Z");
+    this.dynamoDb.throttle = true;
+    var batching =
+        new BatchingMessages(this.messages, 100, Duration.ofHours(1), 1, Duration.ZERO, spillFile);
+    for (int i = 0; i < 3; i++) {
+      batching.persist(this.member, "msg" + i, "content " + i, time.plusSeconds(i));
+    }
+    assertEquals(3, batching.getQueueDepth());
+    batching.close();
+    assertTrue(Files.exists(spillFile));
+    assertEquals(3, Files.readAllLines(spillFile).size());
+
+    this.dynamoDb.throttle = false;
+    this.dynamoDb.leaveUnprocessed = false;
+    var restored =
+        new BatchingMessages(this.messages, 100, Duration.ofHours(1), 1, Duration.ZERO, spillFile);
+    assertFalse(Files.exists(spillFile));
+    assertEquals(3, restored.getQueueDepth());
+    assertTrue(restored.flush());
+
+    assertEquals(3, this.dynamoDb.items.size());
+    assertEquals(
+        "content 1",
+        DynamoDbHistoryMessage.decodeBody(this.dynamoDb.items.get("msg1").get("body").b()));
+    assertEquals(3, restored.getWrittenMessages());
+    restored.close();
+  }
+
+  @Test
+  void testKeepsOrderOnRetry() {
+    var batching =
+        new BatchingMessages(this.messages, 100, Duration.ofHours(1), 1, Duration.ZERO, null);
+    var time = Instant.parse("2023-12-01T10:00:00Z");
+    for (int i = 0; i < 30; i++) {
+      batching.persist(this.member, "msg" + i, "content", time.plusSeconds(i));
+    }
+
+    // last message of the first batch is left unprocessed, so the next batch waits for it
+    assertFalse(batching.flush());
+    assertEquals(24, this.dynamoDb.items.size());
+    assertEquals(6, batching.getQueueDepth());
+
+    this.dynamoDb.leaveUnprocessed = false;
+    assertTrue(batching.flush());
+    assertEquals(30, this.dynamoDb.items.size());
+    assertEquals(List.of(25, 6), this.dynamoDb.requestSizes);
+    batching.close();
+  }
+
+  @Test
+  void testDropsRejectedMessages() {
+    this.dynamoDb.leaveUnprocessed = false;
+    this.dynamoDb.rejectedKey = "msg1";
+    var batching =
+        new BatchingMessages(this.messages, 100, Duration.ofHours(1), 1, Duration.ZERO, null);
+    var time = Instant.parse("2023-12-01T10:00:00Z");
+    for (int i = 0; i < 3; i++) {
+      batching.persist(this.member, "msg" + i, "content", time.plusSeconds(i));
+    }
+
+    // rejected batch is written one by one, so only the rejected message is dropped
+    assertTrue(batching.flush());
+    assertEquals(List.of(3, 1, 1, 1), this.dynamoDb.requestSizes);
+    assertEquals(Set.of("msg0", "msg2"), this.dynamoDb.items.keySet());
+    assertEquals(2, batching.getWrittenMessages());
+    assertEquals(1, batching.getRejectedMessages());
+    assertEquals(0, batching.getQueueDepth());
+    batching.close();
+  }
+
+  @Test
+  void testReplacesResentMessage() {
+    this.dynamoDb.leaveUnprocessed = false;
+    var batching =
+        new BatchingMessages(this.messages, 100, Duration.ofHours(1), 1, Duration.ZERO, null);
+    var time = Instant.parse("2023-12-01T10:00:00Z");
+    batching.persist(this.member, "msg0", "first", time);
+    batching.persist(this.member, "msg1", "content", time);
+    batching.persist(this.member, "msg0", "resent", time);
+
+    assertTrue(batching.flush());
+    assertEquals(List.of(2), this.dynamoDb.requestSizes);
+    assertEquals(
+        "resent",
+        DynamoDbHistoryMessage.decodeBody(this.dynamoDb.items.get("msg0").get("body").b()));
+    batching.close();
+  }
+
+  @Test
+  void testWritesInPlaceWhenFull() {
+    this.dynamoDb.leaveUnprocessed = false;
+    var batching =
+        new BatchingMessages(this.messages, 100, Duration.ofHours(1), 1, Duration.ZERO, null, 2);
+    var time = Instant.parse("2023-12-01T10:00:00Z");
+    for (int i = 0; i < 3; i++) {
+      batching.persist(this.member, "msg" + i, "content", time.plusSeconds(i));
+    }
+
+    assertEquals(2, batching.getQueueDepth());
+    assertEquals(Set.of("msg2"), this.dynamoDb.items.keySet());
+    assertTrue(batching.flush());
+    assertEquals(3, this.dynamoDb.items.size());
+    batching.close();
+  }
+}
@@ -0,0 +1,94 @@
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.backend.router.infrastructure;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+import ua.com.pragmasoft.k1te.backend.router.domain.Member;
+import ua.com.pragmasoft.k1te.backend.shared.NotFoundException;
+
+class TestCachingChannels {
+
+  static final String CHANNEL = "caching-channel";
+
+  /** Counts lookups reaching the delegate */
+  static class CountingChannels extends InMemoryChannels {
+    final AtomicInteger reads = new AtomicInteger();
+
+    @Override
+    public InMemoryMember find(String memberConnection) {
+      reads.incrementAndGet();
+      return super.find(memberConnection);
+    }
+
+    @Override
+    public InMemoryMember find(String channelName, String memberId) {
+      reads.incrementAndGet();
+      return super.find(channelName, memberId);
+    }
+  }
+
+  @Test
+  void testCachedUntilInvalidated() {
+    var delegate = new CountingChannels();
+    var clock = new AtomicLong();
+    var channels = new CachingChannels(delegate, 10, Duration.ofSeconds(1), true, clock::get);
+    delegate.hostChannel(CHANNEL, "host", "tg:1", null);
+    delegate.joinChannel(CHANNEL, "client", "ws:1", "Client");
+
+    var route = channels.findRoute("ws:1");
+    assertEquals(2, delegate.reads.get());
+    assertSame(route.from(), channels.find("ws:1"));
+    assertSame(route.to(), channels.find(CHANNEL, "host"));
+    assertEquals(2, delegate.reads.get());
+
+    clock.addAndGet(Duration.ofSeconds(2).toNanos());
+    channels.find(CHANNEL, "host");
+    assertEquals(3, delegate.reads.get());
+
+    channels.disconnect("ws:1");
+    assertThrows(NotFoundException.class, () -> channels.find("ws:1"));
+    assertEquals(1, channels.size());
+
+    channels.leaveChannel(channels.reconnect(CHANNEL, "client", "ws:2").getConnectionUri());
+    assertThrows(NotFoundException.class, () -> channels.find(CHANNEL, "client"));
+  }
+
+  @Test
+  void testEvictsLeastRecentlyUsed() {
+    var delegate = new InMemoryChannels();
+    var channels = new CachingChannels(delegate, 2, Duration.ofMinutes(1));
+    delegate.hostChannel(CHANNEL, "host", "tg:1", null);
+    for (int i = 0; i < 3; i++) {
+      delegate.joinChannel(CHANNEL, "client" + i, "ws:" + i, "Client");
+    }
+    Member first = channels.find("ws:0");
+    channels.find("ws:1");
+    channels.find("ws:0");
+    channels.find("ws:2");
+    assertEquals(2, channels.size());
+    assertSame(first, channels.find("ws:0"));
+  }
+
+  @Test
+  void testHostsAreNotCachedIfDisabled() {
+    var delegate = new CountingChannels();
+    var channels = new CachingChannels(delegate, 10, Duration.ofMinutes(1), false);
+    delegate.hostChannel(CHANNEL, "host", "tg:1", null);
+    delegate.joinChannel(CHANNEL, "client", "ws:1", "Client");
+
+    channels.findRoute("ws:1");
+    assertEquals(1, channels.size());
+    assertEquals(2, delegate.reads.get());
+
+    channels.findRoute("ws:1");
+    channels.find("tg:1");
+    assertEquals(1, channels.size());
+    assertEquals(4, delegate.reads.get());
+  }
+}
@@ -0,0 +1,47 @@
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.backend.router.infrastructure;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+class TestConnectionIdentities {
+
+  final AtomicLong clock = new AtomicLong();
+  final ConnectionIdentities identities =
+      new ConnectionIdentities(2, Duration.ofNanos(100), this.clock::get);
+
+  @Test
+  void testReturnsOwnerUntilExpired() {
+    this.identities.put("ws:1", "channel", "member", "host");
+
+    var connection = this.identities.get("ws:1");
+    assertEquals("ws", connection.getConnector());
+    assertEquals("1", connection.getRawId());
+    assertEquals("channel", connection.getChannelName());
+    assertEquals("member", connection.getMemberId());
+    assertEquals("host", connection.getPeerMemberId());
+
+    this.clock.set(101);
+    assertNull(this.identities.get("ws:1"));
+    assertEquals(0, this.identities.size());
+  }
+
+  @Test
+  void testEvictsLeastRecentlyUsed() {
+    this.identities.put("ws:1", "channel", "a", null);
+    this.identities.put("ws:2", "channel", "b", null);
+    this.identities.get("ws:1");
+    this.identities.put("ws:3", "channel", "c", null);
+
+    assertNull(this.identities.get("ws:2"));
+    assertEquals("a", this.identities.get("ws:1").getMemberId());
+
+    this.identities.remove("ws:1");
+    assertNull(this.identities.get("ws:1"));
+    assertEquals(1, this.identities.size());
+  }
+}
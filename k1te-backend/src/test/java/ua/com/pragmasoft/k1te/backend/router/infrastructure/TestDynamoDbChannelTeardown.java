@@ -0,0 +1,219 @@
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.backend.router.infrastructure;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbEnhancedClient;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbTable;
+import software.amazon.awssdk.enhanced.dynamodb.TableSchema;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.DynamoDbRequest;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.PutItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
+
+class TestDynamoDbChannelTeardown {
+
+  /**
+   * Keeps items of the tables in memory, sorted by the key. Understands just enough of the
+   * expressions used by the teardown. First item of the first batch is left unprocessed.
+   */
+  static class FakeDynamoDb implements DynamoDbClient {
+    static final Map<String, List<String>> KEYS =
+        Map.of(
+            "Channels", List.of("name"),
+            "Members", List.of("channelName", "id"),
+            "Connections", List.of("connector", "rawId"),
+            "Messages", List.of("id", "messageId"));
+    static final Map<String, String> INDEX_KEYS =
+        Map.of(DynamoDbChannel.TOMBSTONES_INDEX, DynamoDbChannel.TOMBSTONE_ATTRIBUTE);
+
+    final Map<String, TreeMap<String, Map<String, AttributeValue>>> tables = new HashMap<>();
+    final List<Integer> batchSizes = new ArrayList<>();
+    boolean leaveUnprocessed = true;
+
+    TreeMap<String, Map<String, AttributeValue>> table(String name) {
+      return this.tables.computeIfAbsent(name, k -> new TreeMap<>());
+    }
+
+    static String key(String table, Map<String, AttributeValue> item) {
+      return KEYS.get(table).stream()
+          .map(attribute -> item.get(attribute).s())
+          .reduce((pk, sk) -> pk + '\0' + sk)
+          .orElseThrow();
+    }
+
+    @Override
+    public PutItemResponse putItem(PutItemRequest request) {
+      this.table(request.tableName()).put(key(request.tableName(), request.item()), request.item());
+      return PutItemResponse.builder().build();
+    }
+
+    @Override
+    public QueryResponse query(QueryRequest request) {
+      String partition =
+          null != request.indexName()
+              ? INDEX_KEYS.get(request.indexName())
+              : KEYS.get(request.tableName()).get(0);
+      String value = request.expressionAttributeValues().values().iterator().next().s();
+      List<Map<String, AttributeValue>> matching =
+          this.table(request.tableName()).values().stream()
+              .filter(item -> item.containsKey(partition))
+              .filter(item -> value.equals(item.get(partition).s()))
+              .filter(
+                  item ->
+                      !request.hasExclusiveStartKey()
+                          || key(request.tableName(), item)
+                                  .compareTo(key(request.tableName(), request.exclusiveStartKey()))
+                              > 0)
+              .toList();
+      int limit = null == request.limit() ? matching.size() : request.limit();
+      var page = matching.subList(0, Math.min(limit, matching.size()));
+      var response = QueryResponse.builder().items(page).count(page.size());
+      if (page.size() < matching.size()) {
+        response.lastEvaluatedKey(page.get(page.size() - 1));
+      }
+      return response.build();
+    }
+
+    @Override
+    public BatchWriteItemResponse batchWriteItem(BatchWriteItemRequest request) {
+      var unprocessed = new HashMap<String, List<WriteRequest>>();
+      request
+          .requestItems()
+          .forEach(
+              (table, writes) -> {
+                this.batchSizes.add(writes.size());
+                int first = 0;
+                if (this.leaveUnprocessed) {
+                  this.leaveUnprocessed = false;
+                  unprocessed.put(table, writes.subList(0, 1));
+                  first = 1;
+                }
+                for (var write : writes.subList(first, writes.size())) {
+                  this.table(table).remove(key(table, write.deleteRequest().key()));
+                }
+              });
+      return BatchWriteItemResponse.builder().unprocessedItems(unprocessed).build();
+    }
+
+    @Override
+    public DeleteItemResponse deleteItem(DeleteItemRequest request) {
+      String key = key(request.tableName(), request.key());
+      var item = this.table(request.tableName()).get(key);
+      if (null == item || !this.matches(item, request.conditionExpression(), request)) {
+        throw ConditionalCheckFailedException.builder().message("condition").build();
+      }
+      this.table(request.tableName()).remove(key);
+      return DeleteItemResponse.builder().build();
+    }
+
+    /** Either attribute_exists(#name) or #name = :value */
+    @SuppressWarnings("unchecked")
+    private boolean matches(
+        Map<String, AttributeValue> item, String expression, DynamoDbRequest request) {
+      Map<String, String> names =
+          request.getValueForField("ExpressionAttributeNames", Map.class).orElse(Map.of());
+      Map<String, AttributeValue> values =
+          request.getValueForField("ExpressionAttributeValues", Map.class).orElse(Map.of());
+      if (expression.startsWith("attribute_exists(")) {
+        String name = expression.substring("attribute_exists(".length(), expression.length() - 1);
+        return item.containsKey(names.get(name));
+      }
+      String[] operands = expression.split(" = ");
+      return values.get(operands[1]).equals(item.get(names.get(operands[0])));
+    }
+
+    @Override
+    public String serviceName() {
+      return "dynamodb";
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  final FakeDynamoDb dynamoDb = new FakeDynamoDb();
+  final DynamoDbEnhancedClient enhanced =
+      DynamoDbEnhancedClient.builder().dynamoDbClient(this.dynamoDb).build();
+  final DynamoDbTable<DynamoDbChannel> channels =
+      this.enhanced.table("Channels", TableSchema.fromClass(DynamoDbChannel.class));
+  final DynamoDbTable<DynamoDbMember> members =
+      this.enhanced.table("Members", TableSchema.fromClass(DynamoDbMember.class));
+  final DynamoDbTable<DynamoDBConnection> connections =
+      this.enhanced.table("Connections", TableSchema.fromClass(DynamoDBConnection.class));
+  final DynamoDbTable<DynamoDbHistoryMessage> messages =
+      this.enhanced.table("Messages", TableSchema.fromClass(DynamoDbHistoryMessage.class));
+
+  @Test
+  void testResumesDroppedChannel() {
+    var dropped = new DynamoDbChannel("support", "host");
+    dropped.tombstone(Instant.now().getEpochSecond());
+    this.channels.putItem(dropped);
+    this.channels.putItem(new DynamoDbChannel("host:host", "support"));
+    for (int i = 0; i < 120; i++) {
+      this.addMember("support", i == 0 ? "host" : "m" + i);
+    }
+    this.channels.putItem(new DynamoDbChannel("other", "otherHost"));
+    this.channels.putItem(new DynamoDbChannel("host:otherHost", "other"));
+    this.addMember("other", "otherHost");
+
+    var teardown = new DynamoDbChannelTeardown(this.enhanced, null, null);
+
+    assertEquals(1, teardown.resume());
+    assertEquals(2, this.dynamoDb.table("Channels").size());
+    assertEquals(1, this.dynamoDb.table("Members").size());
+    assertEquals(1, this.dynamoDb.table("Connections").size());
+    assertEquals(3, this.dynamoDb.table("Messages").size());
+    assertTrue(this.dynamoDb.batchSizes.stream().allMatch(size -> size <= 25));
+    assertEquals(0, teardown.resume());
+  }
+
+  @Test
+  void testPausesAfterDeadline() {
+    var dropped = new DynamoDbChannel("support", "host");
+    dropped.tombstone(Instant.now().getEpochSecond());
+    this.channels.putItem(dropped);
+    this.addMember("support", "host");
+    this.dynamoDb.leaveUnprocessed = false;
+
+    var teardown = new DynamoDbChannelTeardown(this.enhanced, null, null, Duration.ofMinutes(1));
+
+    assertFalse(teardown.teardown("support", "host", System.nanoTime() - 1));
+    assertEquals(1, this.dynamoDb.table("Members").size());
+    assertEquals(1, teardown.resume());
+    assertEquals(0, this.dynamoDb.table("Channels").size());
+    assertEquals(0, this.dynamoDb.table("Members").size());
+    assertEquals(0, this.dynamoDb.table("Messages").size());
+  }
+
+  private void addMember(String channel, String id) {
+    var member = new DynamoDbMember(channel, id, id, false, null);
+    member.updateConnection("tg:" + channel + id);
+    this.members.putItem(member);
+    this.connections.putItem(new DynamoDBConnection("tg:" + channel + id, channel, id));
+    for (int i = 0; i < 3; i++) {
+      this.messages.putItem(
+          new DynamoDbHistoryMessage(
+              DynamoDbHistoryMessage.buildId(channel, id), "msg" + i, "text", Instant.now()));
+    }
+  }
+}
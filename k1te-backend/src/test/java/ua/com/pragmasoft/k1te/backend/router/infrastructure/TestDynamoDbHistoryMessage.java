@@ -0,0 +1,47 @@
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.backend.router.infrastructure;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Instant;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.enhanced.dynamodb.TableSchema;
+
+class TestDynamoDbHistoryMessage {
+
+  static final TableSchema<DynamoDbHistoryMessage> SCHEMA =
+      TableSchema.fromClass(DynamoDbHistoryMessage.class);
+
+  @Test
+  void testCompactItem() {
+    var time = Instant.parse("2023-12-01T10:00:00.123Z");
+    var content = "[\"TXT\",\"1\",\"" + "hello ".repeat(100) + "\",\"" + time + "\"]";
+    var message = DynamoDbHistoryMessage.compact("channel:member", "1", content, time);
+
+    var item = SCHEMA.itemToMap(message, true);
+    assertFalse(item.containsKey("content"));
+    assertFalse(item.containsKey("time"));
+    assertEquals("1701424800123", item.get("ts").n());
+    assertTrue(item.get("body").b().asByteArray().length < content.length() / 4);
+
+    var read = SCHEMA.mapToItem(item);
+    assertEquals(content, read.getContent());
+    assertEquals(time, read.getTime());
+    assertEquals("channel", read.getChannelName());
+    assertEquals("member", read.getMemberId());
+  }
+
+  @Test
+  void testLegacyItem() {
+    var time = Instant.parse("2023-12-01T10:00:00.123456Z");
+    var message = new DynamoDbHistoryMessage("channel:member", "1", "short", time);
+
+    var item = SCHEMA.itemToMap(message, true);
+    assertEquals("short", item.get("content").s());
+    assertEquals(time.toString(), item.get("time").s());
+    assertEquals(
+        "short", DynamoDbHistoryMessage.decodeBody(DynamoDbHistoryMessage.encodeBody("short")));
+  }
+}
@@ -0,0 +1,70 @@
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.backend.router.infrastructure;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.Instant;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.enhanced.dynamodb.TableSchema;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+/** Static schemas must map items exactly as the bean schemas of the annotated classes do */
+class TestDynamoDbSchemas {
+
+  static final Instant TIME = Instant.parse("2023-12-01T10:00:00.123Z");
+
+  @Test
+  void testChannel() {
+    var channel = new DynamoDbChannel("channel", "host");
+    channel.tombstone(TIME.getEpochSecond());
+    assertSameMapping(DynamoDbChannel.class, DynamoDbChannel.SCHEMA, channel);
+    assertSameMapping(
+        DynamoDbChannel.class, DynamoDbChannel.SCHEMA, new DynamoDbChannel("host:host", "channel"));
+  }
+
+  @Test
+  void testMember() {
+    var member = new DynamoDbMember("channel", "member", "user", true, "peer");
+    member.updateConnection("tg:1", "msg", TIME);
+    member.updateConnection("ws:2");
+    member.getPinnedMessages().put("peer", "msg");
+    member.setVersion(3L);
+    assertSameMapping(DynamoDbMember.class, DynamoDbMember.SCHEMA, member);
+    assertSameMapping(
+        DynamoDbMember.class,
+        DynamoDbMember.SCHEMA,
+        new DynamoDbMember("channel", "client", "user", false, null));
+  }
+
+  @Test
+  void testConnection() {
+    var connection = new DynamoDBConnection("tg:1", "channel", "member");
+    assertSameMapping(DynamoDBConnection.class, DynamoDBConnection.SCHEMA, connection);
+    connection.setPeerMemberId("peer");
+    assertSameMapping(DynamoDBConnection.class, DynamoDBConnection.SCHEMA, connection);
+    connection.setSubprotocol("k1te.chat.v2");
+    assertSameMapping(DynamoDBConnection.class, DynamoDBConnection.SCHEMA, connection);
+  }
+
+  @Test
+  void testHistoryMessage() {
+    assertSameMapping(
+        DynamoDbHistoryMessage.class,
+        DynamoDbHistoryMessage.SCHEMA,
+        new DynamoDbHistoryMessage("channel:member", "1", "text", TIME));
+    assertSameMapping(
+        DynamoDbHistoryMessage.class,
+        DynamoDbHistoryMessage.SCHEMA,
+        DynamoDbHistoryMessage.compact("channel:member", "2", "x".repeat(1000), TIME));
+  }
+
+  private static <T> void assertSameMapping(Class<T> itemClass, TableSchema<T> schema, T item) {
+    TableSchema<T> bean = TableSchema.fromBean(itemClass);
+    assertEquals(bean.itemToMap(item, false), schema.itemToMap(item, false));
+    Map<String, AttributeValue> map = bean.itemToMap(item, true);
+    assertEquals(map, schema.itemToMap(item, true));
+    assertEquals(map, bean.itemToMap(schema.mapToItem(map), true));
+    assertEquals(bean.tableMetadata().primaryKeys(), schema.tableMetadata().primaryKeys());
+  }
+}
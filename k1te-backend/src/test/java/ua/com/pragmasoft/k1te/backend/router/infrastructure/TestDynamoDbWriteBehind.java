@@ -0,0 +1,246 @@
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.backend.router.infrastructure;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbEnhancedClient;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbTable;
+import software.amazon.awssdk.enhanced.dynamodb.TableSchema;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.DynamoDbException;
+import software.amazon.awssdk.services.dynamodb.model.ProvisionedThroughputExceededException;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
+
+class TestDynamoDbWriteBehind {
+
+  /** Leaves the last item of every request unprocessed, or fails the requests */
+  static class FakeDynamoDb implements DynamoDbClient {
+    final List<Integer> requestSizes = new ArrayList<>();
+    final List<UpdateItemRequest> updates = new ArrayList<>();
+    final Map<String, Map<String, AttributeValue>> items = new HashMap<>();
+    boolean throttle = false;
+    boolean leaveUnprocessed = true;
+    String keyAttribute = "rawId";
+    String rejectedKey;
+    Map<String, AttributeValue> concurrentItem;
+
+    @Override
+    public BatchWriteItemResponse batchWriteItem(BatchWriteItemRequest request) {
+      if (this.throttle) {
+        throw ProvisionedThroughputExceededException.builder().message("throttled").build();
+      }
+      var unprocessed = new HashMap<String, List<WriteRequest>>();
+      request
+          .requestItems()
+          .forEach(
+              (table, writes) -> {
+                this.requestSizes.add(writes.size());
+                var keys = new HashSet<String>();
+                for (var write : writes) {
+                  String key = write.putRequest().item().get(this.keyAttribute).s();
+                  if (!keys.add(key)) {
+                    throw rejected("Provided list of item keys contains duplicates");
+                  }
+                  if (key.equals(this.rejectedKey)) {
+                    throw rejected("Item size has exceeded the maximum allowed size");
+                  }
+                }
+                int processed =
+                    writes.size() > 1 && this.leaveUnprocessed ? writes.size() - 1 : writes.size();
+                for (int i = 0; i < processed; i++) {
+                  var item = writes.get(i).putRequest().item();
+                  this.items.put(item.get(this.keyAttribute).s(), item);
+                }
+                if (processed < writes.size()) {
+                  unprocessed.put(table, writes.subList(processed, writes.size()));
+                }
+              });
+      return BatchWriteItemResponse.builder().unprocessedItems(unprocessed).build();
+    }
+
+    static DynamoDbException rejected(String message) {
+      return DynamoDbException.builder()
+          .statusCode(400)
+          .awsErrorDetails(
+              AwsErrorDetails.builder()
+                  .errorCode("ValidationException")
+                  .errorMessage(message)
+                  .build())
+          .build();
+    }
+
+    @Override
+    public UpdateItemResponse updateItem(UpdateItemRequest request) {
+      this.updates.add(request);
+      if (null != this.concurrentItem) {
+        var item = this.concurrentItem;
+        this.concurrentItem = null;
+        throw ConditionalCheckFailedException.builder().item(item).build();
+      }
+      return UpdateItemResponse.builder().build();
+    }
+
+    @Override
+    public String serviceName() {
+      return "dynamodb";
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  final FakeDynamoDb dynamoDb = new FakeDynamoDb();
+  final DynamoDbEnhancedClient enhanced =
+      DynamoDbEnhancedClient.builder().dynamoDbClient(this.dynamoDb).build();
+  final DynamoDbTable<DynamoDbMember> members =
+      this.enhanced.table("Members", TableSchema.fromClass(DynamoDbMember.class));
+  final DynamoDbTable<DynamoDBConnection> connections =
+      this.enhanced.table("Connections", TableSchema.fromClass(DynamoDBConnection.class));
+
+  @Test
+  void testChunksCoalescesAndRetries() {
+    var writeBehind =
+        new DynamoDbWriteBehind(this.enhanced, this.dynamoDb, 3, Duration.ZERO, Duration.ZERO);
+    for (int i = 0; i < 30; i++) {
+      writeBehind.put(this.connections, new DynamoDBConnection("tg:" + i, "channel", "m" + i));
+    }
+    var updated = new DynamoDBConnection("tg:0", "channel", "updated");
+    writeBehind.put(this.connections, updated);
+    updated.setMemberId("changed after put");
+    assertEquals(30, writeBehind.getQueueDepth());
+
+    writeBehind.flush();
+
+    assertEquals(List.of(25, 1, 5, 1), this.dynamoDb.requestSizes);
+    assertEquals(30, this.dynamoDb.items.size());
+    assertEquals("updated", this.dynamoDb.items.get("0").get("memberId").s());
+    assertEquals(0, writeBehind.getQueueDepth());
+    assertEquals(1, writeBehind.getCoalescedItems());
+    assertEquals(2, writeBehind.getRetriedItems());
+  }
+
+  @Test
+  void testKeepsItemsWhenThrottled() {
+    var writeBehind =
+        new DynamoDbWriteBehind(this.enhanced, this.dynamoDb, 2, Duration.ZERO, Duration.ZERO);
+    writeBehind.put(this.connections, new DynamoDBConnection("tg:1", "channel", "m1"));
+    this.dynamoDb.throttle = true;
+    writeBehind.flush();
+    assertEquals(1, writeBehind.getQueueDepth());
+
+    writeBehind.discard(
+        this.connections, this.connections.keyFrom(new DynamoDBConnection("tg:2", "c", "m1")));
+    assertEquals(1, writeBehind.getQueueDepth());
+    writeBehind.discard(
+        this.connections, this.connections.keyFrom(new DynamoDBConnection("tg:1", "c", "m1")));
+    assertEquals(0, writeBehind.getQueueDepth());
+  }
+
+  @Test
+  void testWritesOnlyChangedAttributes() {
+    var writeBehind =
+        new DynamoDbWriteBehind(this.enhanced, this.dynamoDb, 2, Duration.ZERO, Duration.ZERO);
+    var member = new DynamoDbMember("channel", "m1", "name", false, null);
+    var peer = new DynamoDbMember("channel", "m2", "peer", true, null);
+    member.setVersion(3L);
+    member.updatePeer("m2");
+    member.updateUnAnsweredMessage(peer, "msg1");
+    writeBehind.update(this.members, member, member.takeChanges());
+    member.deleteUnAnsweredMessage(peer);
+    writeBehind.update(this.members, member, member.takeChanges());
+    assertEquals(1, writeBehind.getQueueDepth());
+
+    writeBehind.flush();
+
+    assertEquals(List.of(), this.dynamoDb.requestSizes);
+    assertEquals(1, this.dynamoDb.updates.size());
+    var request = this.dynamoDb.updates.get(0);
+    assertEquals("SET #n0 = :v0, #ver = :ver REMOVE #n1.#n2", request.updateExpression());
+    assertEquals("attribute_exists(#key) AND #ver = :expected", request.conditionExpression());
+    assertEquals(
+        List.of("peerMemberId", "pinnedMessages", "m2"),
+        List.of(
+            request.expressionAttributeNames().get("#n0"),
+            request.expressionAttributeNames().get("#n1"),
+            request.expressionAttributeNames().get("#n2")));
+    assertEquals("m2", request.expressionAttributeValues().get(":v0").s());
+    assertEquals("3", request.expressionAttributeValues().get(":expected").n());
+    assertEquals(0, writeBehind.getQueueDepth());
+    assertEquals(4L, member.getVersion());
+  }
+
+  @Test
+  void testFlushUpdatesPeerHintOfExistingConnections() {
+    var writeBehind = new DynamoDbWriteBehind(this.enhanced, this.dynamoDb);
+    var channels = new DynamoDbChannels(this.enhanced, null, writeBehind);
+    var member = new DynamoDbMember("channel", "m1", "name", false, "m2");
+    member.updateConnection("ws:1");
+    member.takeChanges();
+    member.setDirty(false);
+    member.setVersion(1L);
+    member.setPeerHintStale(true);
+    channels.attach(member);
+    // connection was deleted on disconnect by another instance
+    this.dynamoDb.concurrentItem = Map.of();
+
+    channels.flush();
+
+    assertEquals(List.of(), this.dynamoDb.requestSizes);
+    assertEquals(1, this.dynamoDb.updates.size());
+    var request = this.dynamoDb.updates.get(0);
+    assertEquals("Connections", request.tableName());
+    assertEquals("1", request.key().get("rawId").s());
+    assertEquals("SET #n0 = :v0", request.updateExpression());
+    assertEquals("attribute_exists(#key)", request.conditionExpression());
+    assertEquals("peerMemberId", request.expressionAttributeNames().get("#n0"));
+    assertEquals("m2", request.expressionAttributeValues().get(":v0").s());
+    assertEquals(0, writeBehind.getQueueDepth());
+    assertTrue(this.dynamoDb.items.isEmpty());
+  }
+
+  @Test
+  void testMergesConcurrentUpdate() {
+    var writeBehind =
+        new DynamoDbWriteBehind(this.enhanced, this.dynamoDb, 2, Duration.ZERO, Duration.ZERO);
+    var earlier = Instant.parse("2023-12-01T10:00:00Z");
+    var later = earlier.plusSeconds(1);
+    var member = new DynamoDbMember("channel", "m1", "name", false, "m2");
+    member.setVersion(1L);
+    member.updateConnection("tg:1", "msg1", earlier);
+
+    var concurrent = new DynamoDbMember("channel", "m1", "name", false, "m2");
+    concurrent.updateConnection("tg:1", "msg2", later);
+    concurrent.updateUnAnsweredMessage(new DynamoDbMember("channel", "m3", "n", false, null), "x");
+    concurrent.setVersion(2L);
+    this.dynamoDb.concurrentItem =
+        TableSchema.fromBean(DynamoDbMember.class).itemToMap(concurrent, true);
+
+    writeBehind.update(this.members, member, member.takeChanges());
+    writeBehind.flush();
+
+    assertEquals(2, this.dynamoDb.updates.size());
+    var retry = this.dynamoDb.updates.get(1);
+    assertEquals("2", retry.expressionAttributeValues().get(":expected").n());
+    assertEquals("msg2", retry.expressionAttributeValues().get(":v0").m().get("lastMessageId").s());
+    assertEquals(later, member.getLastMessageTimeForConnection("tg:1"));
+    assertEquals("x", member.getPinnedMessages().get("m3"));
+    assertEquals(3L, member.getVersion());
+    assertEquals(1, writeBehind.getConflictCount());
+  }
+}
@@ -0,0 +1,270 @@
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.backend.router.infrastructure;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+import ua.com.pragmasoft.k1te.backend.router.domain.Connector;
+import ua.com.pragmasoft.k1te.backend.router.domain.HistoryMessage;
+import ua.com.pragmasoft.k1te.backend.router.domain.KiteRouter;
+import ua.com.pragmasoft.k1te.backend.router.domain.MemberMailboxes;
+import ua.com.pragmasoft.k1te.backend.router.domain.Messages.Cursor;
+import ua.com.pragmasoft.k1te.backend.router.domain.Messages.MessagesRequest;
+import ua.com.pragmasoft.k1te.backend.router.domain.Router.BroadcastResult;
+import ua.com.pragmasoft.k1te.backend.router.domain.RoutingContext;
+import ua.com.pragmasoft.k1te.backend.router.domain.payload.MessageAck;
+import ua.com.pragmasoft.k1te.backend.router.domain.payload.PlaintextMessage;
+import ua.com.pragmasoft.k1te.backend.shared.ConflictException;
+import ua.com.pragmasoft.k1te.backend.shared.NotFoundException;
+import ua.com.pragmasoft.k1te.backend.shared.RoutingException;
+import ua.com.pragmasoft.k1te.backend.shared.ValidationException;
+
+class TestInMemory {
+
+  static final String CHANNEL = "inmemory";
+
+  @Test
+  void testConnectionIndex() {
+    var channels = new InMemoryChannels();
+    var host = channels.hostChannel(CHANNEL, "host", "tg:1", null);
+    var client = channels.joinChannel(CHANNEL, "client", "ws:1", "Client");
+    assertThrows(
+        ConflictException.class, () -> channels.hostChannel(CHANNEL, "other", "tg:2", null));
+
+    assertSame(host, channels.find("tg:1"));
+    assertSame(client, channels.find(CHANNEL, "client"));
+    assertEquals("host", client.getPeerMemberId());
+
+    channels.disconnect("ws:1");
+    assertNull(client.getConnectionUri());
+    assertThrows(NotFoundException.class, () -> channels.find("ws:1"));
+
+    assertSame(client, channels.reconnect(CHANNEL, "client", "ws:2"));
+    assertSame(client, channels.find("ws:2"));
+    channels.switchConnection(CHANNEL, "client", "tg:3");
+    assertEquals("tg:3", client.getConnectionUri());
+    assertSame(client, channels.find("ws:2"));
+
+    channels.dropChannel("tg:1");
+    assertThrows(NotFoundException.class, () -> channels.find("tg:3"));
+    assertThrows(NotFoundException.class, () -> channels.find(CHANNEL, "host"));
+  }
+
+  @Test
+  void testBoundedHistory() {
+    var channels = new InMemoryChannels();
+    var member = channels.hostChannel(CHANNEL, "host", "tg:1", null);
+    var messages = new InMemoryMessages(channels, 3);
+    var time = Instant.parse("2023-10-01T10:00:00Z");
+    for (int i = 0; i < 5; i++) {
+      messages.persist(member, "m" + i, "content", time.plusSeconds(i));
+    }
+
+    var all = messages.findAll(MessagesRequest.builder().member(member).build());
+    assertEquals(
+        List.of("m2", "m3", "m4"), all.stream().map(HistoryMessage::getMessageId).toList());
+    assertThrows(NotFoundException.class, () -> messages.find(member, "m1"));
+
+    var recent =
+        messages.findAll(
+            MessagesRequest.builder().connectionUri("tg:1").lastMessageId("m2").limit(1).build());
+    assertEquals("m4", recent.get(0).getMessageId());
+    assertEquals(1, recent.size());
+  }
+
+  @Test
+  void testForgetsHistoryOfRemovedMembers() {
+    var channels = new InMemoryChannels();
+    var messages = new InMemoryMessages(channels);
+    channels.onMemberRemoved(messages::delete);
+    var host = channels.hostChannel(CHANNEL, "host", "tg:1", null);
+    var client = channels.joinChannel(CHANNEL, "client", "ws:1", "Client");
+    var time = Instant.parse("2023-10-01T10:00:00Z");
+    messages.persist(host, "m1", "content", time);
+    messages.persist(client, "m2", "content", time);
+
+    channels.leaveChannel("ws:1");
+    assertThrows(NotFoundException.class, () -> messages.find(client, "m2"));
+    var rejoined = channels.joinChannel(CHANNEL, "client", "ws:2", "Client");
+    assertEquals(List.of(), messages.findAll(MessagesRequest.builder().member(rejoined).build()));
+    assertEquals("m1", messages.find(host, "m1").getMessageId());
+
+    channels.dropChannel("tg:1");
+    assertThrows(NotFoundException.class, () -> messages.find(host, "m1"));
+  }
+
+  @Test
+  void testPagesHistory() {
+    var channels = new InMemoryChannels();
+    var member = channels.hostChannel(CHANNEL, "host", "tg:1", null);
+    var messages = new InMemoryMessages(channels);
+    var time = Instant.parse("2023-10-01T10:00:00Z");
+    for (int i = 0; i < 5; i++) {
+      messages.persist(member, "m" + i, "content", time.plusSeconds(i / 2));
+    }
+
+    var request = MessagesRequest.builder().member(member).limit(2).build();
+    var first = messages.findPage(request);
+    assertEquals(
+        List.of("m0", "m1"), first.messages().stream().map(HistoryMessage::getMessageId).toList());
+    var second = messages.findPage(request.withCursor(first.nextCursor()));
+    assertEquals(
+        List.of("m2", "m3"), second.messages().stream().map(HistoryMessage::getMessageId).toList());
+    assertEquals(
+        List.of("m3", "m4"),
+        messages.stream(request.withCursor(Cursor.of(messages.find(member, "m2")).encode()))
+            .map(HistoryMessage::getMessageId)
+            .toList());
+    assertThrows(
+        ValidationException.class, () -> messages.findPage(request.withCursor("not a cursor")));
+  }
+
+  @Test
+  void testMailboxesKeepOrder() {
+    var channels = new InMemoryChannels();
+    var host = channels.hostChannel(CHANNEL, "host", "tg:1", null);
+    var client = channels.joinChannel(CHANNEL, "client", "ws:1", "Client");
+    List<Integer> hostTasks = Collections.synchronizedList(new ArrayList<>());
+    List<Integer> clientTasks = Collections.synchronizedList(new ArrayList<>());
+    CompletableFuture<Void> last = null;
+    try (var mailboxes = new MemberMailboxes()) {
+      for (int i = 0; i < 100; i++) {
+        final int task = i;
+        mailboxes.execute(
+            host,
+            () -> {
+              if (task == 50) {
+                throw new IllegalStateException("failed task");
+              }
+              hostTasks.add(task);
+            });
+        last = mailboxes.execute(client, () -> clientTasks.add(task));
+      }
+      last.join();
+    }
+    assertEquals(IntStream.range(0, 100).filter(i -> i != 50).boxed().toList(), hostTasks);
+    assertEquals(IntStream.range(0, 100).boxed().toList(), clientTasks);
+  }
+
+  @Test
+  void testBroadcasts() {
+    var channels = new InMemoryChannels();
+    var messages = new InMemoryMessages(channels);
+    var router = new KiteRouter(channels, List.of(), messages);
+    Set<String> received = ConcurrentHashMap.newKeySet();
+    router.registerConnector(
+        new Connector() {
+          @Override
+          public String id() {
+            return "ws";
+          }
+
+          @Override
+          public void dispatch(RoutingContext ctx) {
+            received.add(ctx.destinationConnection);
+          }
+        });
+    channels.hostChannel(CHANNEL, "host", "tg:1", null);
+    for (int i = 0; i < 250; i++) {
+      channels.joinChannel(CHANNEL, "m" + i, "ws:" + i, "Member " + i);
+      if (i % 5 == 0) {
+        channels.disconnect("ws:" + i);
+      }
+    }
+
+    var result =
+        router.broadcast(
+            RoutingContext.create()
+                .withOriginConnection("tg:1")
+                .withRequest(new PlaintextMessage("Maintenance at 10:00", "b1", Instant.now(), 0)));
+
+    assertEquals(new BroadcastResult(250, 200, 0), result);
+    assertEquals(200, received.size());
+    var offline = channels.find(CHANNEL, "m5");
+    assertEquals("b1", messages.find(offline, "b1").getMessageId());
+    // delivered broadcast is not replayed on reconnect
+    var online = channels.find(CHANNEL, "m1");
+    assertEquals(
+        List.of(),
+        messages.findAll(
+            MessagesRequest.builder()
+                .member(online)
+                .connectionUri("ws:1")
+                .lastMessageByConnection(true)
+                .build()));
+    assertThrows(
+        ValidationException.class,
+        () ->
+            router.broadcast(
+                RoutingContext.create()
+                    .withOriginConnection("ws:1")
+                    .withRequest(new PlaintextMessage("spam", "b2", Instant.now(), 0))));
+  }
+
+  @Test
+  void testDispatchesAsync() {
+    var channels =
+        new InMemoryChannels() {
+          @Override
+          public CompletionStage<Route> findRouteAsync(String memberConnection) {
+            return CompletableFuture.supplyAsync(
+                () -> this.findRoute(memberConnection),
+                CompletableFuture.delayedExecutor(10, TimeUnit.MILLISECONDS));
+          }
+        };
+    var router = new KiteRouter(channels, List.of(), new InMemoryMessages(channels));
+    List<Thread> deliveries = Collections.synchronizedList(new ArrayList<>());
+    router.registerConnector(
+        new Connector() {
+          @Override
+          public String id() {
+            return "tg";
+          }
+
+          @Override
+          public void dispatch(RoutingContext ctx) {
+            deliveries.add(Thread.currentThread());
+            ctx.response = new MessageAck(ctx.request.messageId());
+          }
+        });
+    channels.hostChannel(CHANNEL, "host", "tg:1", null);
+    channels.joinChannel(CHANNEL, "client", "ws:1", "Client");
+
+    var ack =
+        router
+            .dispatchAsync(
+                RoutingContext.create()
+                    .withOriginConnection("ws:1")
+                    .withRequest(new PlaintextMessage("hi", "a1", Instant.now(), 0)))
+            .toCompletableFuture()
+            .join();
+
+    assertEquals("a1", ack.messageId());
+    assertEquals(List.of(Thread.currentThread()), deliveries);
+    var unknown =
+        router
+            .dispatchAsync(
+                RoutingContext.create()
+                    .withOriginConnection("ws:2")
+                    .withRequest(new PlaintextMessage("hi", "a2", Instant.now(), 0)))
+            .toCompletableFuture();
+    var failure = assertThrows(CompletionException.class, unknown::join);
+    assertInstanceOf(RoutingException.class, failure.getCause());
+    router.close();
+  }
+}
@@ -0,0 +1,132 @@
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.backend.router.infrastructure;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ua.com.pragmasoft.k1te.backend.router.domain.HistoryMessage;
+import ua.com.pragmasoft.k1te.backend.router.domain.Messages.MessagesRequest;
+import ua.com.pragmasoft.k1te.backend.router.infrastructure.TestDynamoDbWriteBehind.FakeDynamoDb;
+import ua.com.pragmasoft.k1te.backend.router.infrastructure.WriteAheadMessages.Fsync;
+import ua.com.pragmasoft.k1te.backend.shared.KiteException;
+
+class TestWriteAheadMessages {
+
+  static class FlakyMessages extends InMemoryMessages {
+    volatile boolean down = false;
+    volatile String rejectedMessageId;
+    final List<Integer> batchSizes = new ArrayList<>();
+
+    FlakyMessages() {
+      super(null);
+    }
+
+    @Override
+    public HistoryMessage persist(
+        String channelName, String memberId, String messageId, String content, Instant time) {
+      if (this.down) {
+        throw new IllegalStateException("down");
+      }
+      if (messageId.equals(this.rejectedMessageId)) {
+        throw new KiteException("rejected", FakeDynamoDb.rejected("Item size exceeded"));
+      }
+      return super.persist(channelName, memberId, messageId, content, time);
+    }
+
+    @Override
+    public List<HistoryMessage> persistBatch(List<? extends HistoryMessage> messages) {
+      this.batchSizes.add(messages.size());
+      // like batch write, the whole batch is rejected
+      if (messages.stream().anyMatch(m -> m.getMessageId().equals(this.rejectedMessageId))) {
+        throw new KiteException("rejected", FakeDynamoDb.rejected("Item size exceeded"));
+      }
+      return super.persistBatch(messages);
+    }
+  }
+
+  @TempDir Path dir;
+
+  final DynamoDbMember member = new DynamoDbMember("channel", "m1", "name", false, null);
+  final FlakyMessages delegate = new FlakyMessages();
+
+  @Test
+  void testShipsAfterRestart() throws IOException {
+    var time = Instant.parse("2023-12-01T10:00:00Z");
+    this.delegate.down = true;
+    // small segments, so the log rolls over several of them
+    var messages =
+        new WriteAheadMessages(this.delegate, this.dir, 128, Fsync.NONE, Duration.ofHours(1));
+    for (int i = 0; i < 10; i++) {
+      messages.persist(this.member, "msg" + i, "content " + i, time.plusSeconds(i));
+    }
+    assertFalse(messages.ship());
+    messages.close();
+    assertEquals(0, messages.getShippedMessages());
+
+    this.delegate.down = false;
+    var restarted =
+        new WriteAheadMessages(this.delegate, this.dir, 128, Fsync.ALWAYS, Duration.ofHours(1));
+    assertTrue(restarted.ship());
+    assertEquals(10, restarted.getShippedMessages());
+
+    var history = restarted.findAll(MessagesRequest.builder().member(this.member).build());
+    assertEquals(
+        IntStream.range(0, 10).mapToObj(i -> "msg" + i).toList(),
+        history.stream().map(HistoryMessage::getMessageId).toList());
+    assertEquals("content 3", history.get(3).getContent());
+    try (var files = Files.list(this.dir)) {
+      assertEquals(2, files.count()); // checkpoint and the current segment
+    }
+    restarted.close();
+  }
+
+  @Test
+  void testShipsRetiredSegmentsWhileAppending() {
+    var time = Instant.parse("2023-12-01T10:00:00Z");
+    var messages =
+        new WriteAheadMessages(this.delegate, this.dir, 128, Fsync.NONE, Duration.ofHours(1));
+    for (int i = 0; i < 30; i++) {
+      messages.persist(this.member, "msg" + i, "content " + i, time.plusSeconds(i));
+      // every third run fails and reads retired segments again
+      this.delegate.down = i % 3 == 0;
+      assertEquals(!this.delegate.down, messages.ship());
+    }
+    this.delegate.down = false;
+    assertTrue(messages.ship());
+    assertEquals(30, messages.getShippedMessages());
+    messages.close();
+  }
+
+  @Test
+  void testSkipsRejectedMessages() {
+    var time = Instant.parse("2023-12-01T10:00:00Z");
+    this.delegate.rejectedMessageId = "msg2";
+    var messages =
+        new WriteAheadMessages(this.delegate, this.dir, 4096, Fsync.NONE, Duration.ofHours(1));
+    for (int i = 0; i < 30; i++) {
+      messages.persist(this.member, "msg" + i, "content " + i, time.plusSeconds(i));
+    }
+
+    // rejected batch is shipped one by one, so only the rejected message is skipped
+    assertTrue(messages.ship());
+    assertEquals(List.of(25, 5), this.delegate.batchSizes);
+    assertEquals(29, messages.getShippedMessages());
+    assertEquals(1, messages.getRejectedMessages());
+    var history = messages.findAll(MessagesRequest.builder().member(this.member).build());
+    assertEquals(
+        IntStream.range(0, 30).filter(i -> i != 2).mapToObj(i -> "msg" + i).toList(),
+        history.stream().map(HistoryMessage::getMessageId).toList());
+    messages.close();
+  }
+}
@@ -2,13 +2,30 @@
 package ua.com.pragmasoft.k1te.backend.ws;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ua.com.pragmasoft.k1te.backend.router.domain.payload.BinaryMessage;
+import ua.com.pragmasoft.k1te.backend.router.domain.payload.ErrorResponse;
+import ua.com.pragmasoft.k1te.backend.router.domain.payload.JoinChannel;
+import ua.com.pragmasoft.k1te.backend.router.domain.payload.MessageAck;
+import ua.com.pragmasoft.k1te.backend.router.domain.payload.OkResponse;
 import ua.com.pragmasoft.k1te.backend.router.domain.payload.Payload;
+import ua.com.pragmasoft.k1te.backend.router.domain.payload.Ping;
 import ua.com.pragmasoft.k1te.backend.router.domain.payload.PlaintextMessage;
+import ua.com.pragmasoft.k1te.backend.router.domain.payload.Pong;
+import ua.com.pragmasoft.k1te.backend.router.domain.payload.UploadRequest;
+import ua.com.pragmasoft.k1te.backend.router.domain.payload.UploadResponse;
 
 class TestSerialization {
 
@@ -19,6 +36,8 @@ class TestSerialization {
 
   static final PayloadEncoder ENCODER = new PayloadEncoder();
   static final PayloadDecoder DECODER = new PayloadDecoder();
+  static final CompactPayloadEncoder COMPACT_ENCODER = new CompactPayloadEncoder();
+  static final CompactPayloadDecoder COMPACT_DECODER = new CompactPayloadDecoder();
 
   @Test
   void testSerializeAndDeserialize() {
@@ -27,4 +46,108 @@ class TestSerialization {
     final Payload deserialized = DECODER.apply(serialized);
     assertEquals(PLAINTEXT_MSG, deserialized);
   }
+
+  @Test
+  void testDecodeAllTypes() {
+    var created = Instant.parse("2023-10-01T10:15:30.123Z");
+    assertEquals(
+        new JoinChannel("m1", "Joe", "channel"),
+        DECODER.apply("[\"JOIN\",\"m1\",\"Joe\",\"channel\"]"));
+    assertEquals(
+        new JoinChannel("m1", "m1", "channel"),
+        DECODER.apply("[\"JOIN\",\"m1\",null,\"channel\"]"));
+    assertEquals(
+        new PlaintextMessage("text", "id", created, 0),
+        DECODER.apply("[\"TXT\",\"id\",\"text\",\"2023-10-01T10:15:30.123Z\"]"));
+    assertEquals(
+        new PlaintextMessage("text", "id", created, 3),
+        DECODER.apply("[\"TXT\",\"id\",\"text\",\"2023-10-01T10:15:30.123Z\",3,\"x\"]"));
+    assertEquals(
+        new BinaryMessage("https://k1te.chat/f.png", "f.png", "image/png", 1024L, "id", created, 1),
+        DECODER.apply(
+            "[\"BIN\",\"id\",\"https://k1te.chat/f.png\",\"f.png\",\"image/png\",1024,"
+                + "\"2023-10-01T10:15:30.123Z\",1]"));
+    assertEquals(
+        new UploadRequest("f.png", "image/png", 1024L, "id", created),
+        DECODER.apply(
+            "[\"UPL\",\"id\",\"f.png\",\"image/png\",1024,\"2023-10-01T10:15:30.123Z\"]"));
+    assertInstanceOf(Ping.class, DECODER.apply("[\"PING\"]"));
+    assertThrows(IndexOutOfBoundsException.class, () -> DECODER.apply("[\"TXT\",\"id\",\"text\"]"));
+    assertThrows(NullPointerException.class, () -> DECODER.apply("[\"ACK\",\"id\"]"));
+  }
+
+  @Test
+  void testDecodeBytes() {
+    final byte[] serialized = ENCODER.apply(PLAINTEXT_MSG).getBytes(StandardCharsets.UTF_8);
+    assertEquals(PLAINTEXT_MSG, DECODER.decode(new ByteArrayInputStream(serialized)));
+    assertEquals(PLAINTEXT_MSG, DECODER.decode(ByteBuffer.wrap(serialized)));
+    var direct = ByteBuffer.allocateDirect(serialized.length).put(serialized).flip();
+    assertEquals(PLAINTEXT_MSG, DECODER.decode(direct));
+  }
+
+  @Test
+  void testEncodeAllTypes() {
+    var created = Instant.parse("2023-10-01T10:15:30.123Z");
+    assertEquals(
+        "[\"ACK\",\"m1\",\"d1\",\"2023-10-01T10:15:30.123Z\"]",
+        ENCODER.apply(new MessageAck("m1", "d1", created)));
+    assertEquals("[\"OK\"]", ENCODER.apply(new OkResponse()));
+    assertEquals("[\"PONG\"]", ENCODER.apply(new Pong()));
+    assertEquals(
+        "[\"ERR\",\"\u26d4 \\\"bad\\\"\\n\",400]",
+        ENCODER.apply(new ErrorResponse("\u26d4 \"bad\"\n", 400)));
+    assertEquals(
+        "[\"TXT\",\"m1\",\"\u041f\u0440\u0438\u0432\u0456\u0442 \\\"x\\\" \\\\ \\t"
+            + " \ud83d\ude00 </b>\",\"2023-10-01T10:15:30.123Z\"]",
+        ENCODER.apply(
+            new PlaintextMessage(
+                "\u041f\u0440\u0438\u0432\u0456\u0442 \"x\" \\ \t \ud83d\ude00 </b>",
+                "m1",
+                created,
+                0)));
+    assertEquals(
+        "[\"TXT\",\"m1\",\"hi\",\"2023-10-01T10:15:30.123Z\",2]",
+        ENCODER.apply(new PlaintextMessage("hi", "m1", created, 2)));
+    assertEquals(
+        "[\"BIN\",\"m1\",\"https://k1te.chat/f.png\",\"f.png\",\"image/png\",1024,"
+            + "\"2023-10-01T10:15:30.123Z\",1]",
+        ENCODER.apply(
+            new BinaryMessage(
+                "https://k1te.chat/f.png", "f.png", "image/png", 1024L, "m1", created, 1)));
+    assertEquals(
+        "[\"UPL\",\"m1\",\"https://k1te.chat/f\",\"https://s3/f?x=1\"]",
+        ENCODER.apply(
+            new UploadResponse(
+                "m1", URI.create("https://k1te.chat/f"), URI.create("https://s3/f?x=1"))));
+    assertEquals(
+        "[\"UPL\",\"m1\",\"https://k1te.chat/f\"]",
+        ENCODER.apply(new UploadResponse("m1", URI.create("https://k1te.chat/f"))));
+  }
+
+  @Test
+  void testEncodeToWriterAndBuffer() {
+    final String expected = ENCODER.apply(PLAINTEXT_MSG);
+    var writer = new StringWriter();
+    ENCODER.encode(PLAINTEXT_MSG, writer);
+    assertEquals(expected, writer.toString());
+    var buffer = ByteBuffer.allocate(256);
+    ENCODER.encode(PLAINTEXT_MSG, buffer);
+    assertEquals(expected, StandardCharsets.UTF_8.decode(buffer.flip()).toString());
+  }
+
+  @Test
+  void testCompactRoundTrip() {
+    var created = Instant.parse("2023-10-01T10:15:30.123Z");
+    var plaintext = new PlaintextMessage("\u041f\u0440\u0438\u0432\u0456\u0442", "m1", created, 2);
+    var binary =
+        new BinaryMessage(
+            "https://k1te.chat/f.png", "f.png", "image/png", 1L << 33, "m1", created, 0);
+    for (var message : new Payload[] {plaintext, binary, PLAINTEXT_MSG}) {
+      var frame = COMPACT_ENCODER.apply(message);
+      assertEquals(message, COMPACT_DECODER.apply(frame));
+      assertFalse(frame.hasRemaining());
+    }
+    // tag + (1 + 2) + (1 + 12) + 6 bytes of millis + status, vs 56 bytes of json
+    assertEquals(24, COMPACT_ENCODER.apply(plaintext).remaining());
+  }
 }
@@ -0,0 +1,43 @@
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.benchmarks;
+
+import ua.com.pragmasoft.k1te.backend.router.domain.Connector;
+import ua.com.pragmasoft.k1te.backend.router.domain.RoutingContext;
+import ua.com.pragmasoft.k1te.backend.router.domain.payload.MessageAck;
+import ua.com.pragmasoft.k1te.backend.router.infrastructure.InMemoryChannels;
+
+/** In-memory collaborators, so benchmarks measure the routing code only */
+final class BenchmarkFixtures {
+
+  static final String CHANNEL = "benchmark";
+  static final String HOST = "host";
+  static final String CLIENT = "client";
+  static final String HOST_CONNECTION = "loop:host";
+  static final String CLIENT_CONNECTION = "loop:client";
+
+  private BenchmarkFixtures() {}
+
+  /** Channel with a host and a single client, both connected to the loopback connector */
+  static InMemoryChannels channels() {
+    var channels = new InMemoryChannels();
+    channels.hostChannel(CHANNEL, HOST, HOST_CONNECTION, null);
+    channels.joinChannel(CHANNEL, CLIENT, CLIENT_CONNECTION, CLIENT);
+    return channels;
+  }
+
+  /** Delivers everything back to nowhere, acknowledging immediately */
+  static final class LoopbackConnector implements Connector {
+
+    static final String ID = "loop";
+
+    @Override
+    public String id() {
+      return ID;
+    }
+
+    @Override
+    public void dispatch(RoutingContext context) {
+      context.response = new MessageAck(context.request.messageId(), context.request.messageId());
+    }
+  }
+}
@@ -0,0 +1,29 @@
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import ua.com.pragmasoft.k1te.backend.router.domain.Connector;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConnectorUriBenchmark {
+
+  /** Api gateway websocket connection id and telegram chat id */
+  @Param({"ws:Lz1cXeCGoAMCJ4g=", "tg:-1001234567890"})
+  public String connectionUri;
+
+  @Benchmark
+  public String connectorId() {
+    return Connector.connectorId(this.connectionUri);
+  }
+
+  @Benchmark
+  public String rawConnection() {
+    return Connector.rawConnection(this.connectionUri);
+  }
+}
@@ -0,0 +1,51 @@
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import ua.com.pragmasoft.k1te.backend.router.domain.HistoryPostProcessor;
+import ua.com.pragmasoft.k1te.backend.router.domain.Member;
+import ua.com.pragmasoft.k1te.backend.router.domain.RoutingContext;
+import ua.com.pragmasoft.k1te.backend.router.domain.payload.MessageAck;
+import ua.com.pragmasoft.k1te.backend.router.domain.payload.PlaintextMessage;
+import ua.com.pragmasoft.k1te.backend.router.infrastructure.InMemoryMessages;
+
+/** History post processing of the message, delivered from the websocket client to the host */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistoryPostProcessorBenchmark {
+
+  private HistoryPostProcessor postProcessor;
+  private Member client;
+  private Member host;
+  private PlaintextMessage message;
+  private MessageAck ack;
+
+  @Setup
+  public void setup() {
+    var channels = BenchmarkFixtures.channels();
+    this.postProcessor = new HistoryPostProcessor(new InMemoryMessages(channels));
+    this.client = channels.find(BenchmarkFixtures.CHANNEL, BenchmarkFixtures.CLIENT);
+    this.host = channels.find(BenchmarkFixtures.CHANNEL, BenchmarkFixtures.HOST);
+    this.message = new PlaintextMessage(Payloads.TEXT, Payloads.MESSAGE_ID, Payloads.CREATED, 2);
+    this.ack = new MessageAck(Payloads.MESSAGE_ID, "4711", Payloads.CREATED);
+  }
+
+  @Benchmark
+  public RoutingContext accept() {
+    var ctx =
+        RoutingContext.create()
+            .withOriginConnection("ws:Lz1cXeCGoAMCJ4g=")
+            .withDestinationConnection("tg:-1001234567890")
+            .withFrom(this.client)
+            .withTo(this.host)
+            .withRequest(this.message)
+            .withResponse(this.ack);
+    this.postProcessor.accept(ctx);
+    return ctx;
+  }
+}
@@ -0,0 +1,50 @@
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import ua.com.pragmasoft.k1te.backend.router.domain.HistoryPostProcessor;
+import ua.com.pragmasoft.k1te.backend.router.domain.KiteRouter;
+import ua.com.pragmasoft.k1te.backend.router.domain.PeerUpdatePostProcessor;
+import ua.com.pragmasoft.k1te.backend.router.domain.RoutingContext;
+import ua.com.pragmasoft.k1te.backend.router.domain.payload.MessageAck;
+import ua.com.pragmasoft.k1te.backend.router.domain.payload.PlaintextMessage;
+import ua.com.pragmasoft.k1te.backend.router.infrastructure.InMemoryMessages;
+import ua.com.pragmasoft.k1te.benchmarks.BenchmarkFixtures.LoopbackConnector;
+
+/** Client message routed to the channel host, including post processing */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KiteRouterBenchmark {
+
+  private KiteRouter router;
+  private PlaintextMessage message;
+
+  @Setup
+  public void setup() {
+    var channels = BenchmarkFixtures.channels();
+    var messages = new InMemoryMessages(channels);
+    this.router =
+        new KiteRouter(
+            channels,
+            List.of(new PeerUpdatePostProcessor(), new HistoryPostProcessor(messages)),
+            messages);
+    this.router.registerConnector(new LoopbackConnector());
+    this.message = new PlaintextMessage(Payloads.TEXT, Payloads.MESSAGE_ID, Payloads.CREATED, 2);
+  }
+
+  @Benchmark
+  public MessageAck dispatch() {
+    var ctx =
+        RoutingContext.create()
+            .withOriginConnection(BenchmarkFixtures.CLIENT_CONNECTION)
+            .withRequest(this.message);
+    this.router.dispatch(ctx);
+    return ctx.response;
+  }
+}
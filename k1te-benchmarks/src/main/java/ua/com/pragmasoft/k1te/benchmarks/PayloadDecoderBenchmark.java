@@ -0,0 +1,116 @@
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import ua.com.pragmasoft.k1te.backend.router.domain.payload.Payload;
+import ua.com.pragmasoft.k1te.backend.router.domain.payload.Payload.Type;
+import ua.com.pragmasoft.k1te.backend.ws.CompactPayloadDecoder;
+import ua.com.pragmasoft.k1te.backend.ws.CompactPayloadEncoder;
+import ua.com.pragmasoft.k1te.backend.ws.PayloadDecoder;
+import ua.com.pragmasoft.k1te.backend.ws.PayloadEncoder;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PayloadDecoderBenchmark {
+
+  private static final PayloadDecoder DECODER = new PayloadDecoder();
+  private static final CompactPayloadDecoder COMPACT_DECODER = new CompactPayloadDecoder();
+
+  @Param({"JOIN", "TXT", "BIN", "UPL", "PING"})
+  public String type;
+
+  private String text;
+  private byte[] utf8;
+  private byte[] compact;
+
+  @Setup
+  public void setup() {
+    Payload payload = Payloads.INBOUND.get(Type.valueOf(this.type));
+    this.text = encodeInbound(payload);
+    this.utf8 = this.text.getBytes(StandardCharsets.UTF_8);
+    this.compact = encodeInboundCompact(payload);
+  }
+
+  @Benchmark
+  public Payload decodeString() {
+    return DECODER.apply(this.text);
+  }
+
+  @Benchmark
+  public Payload decodeBytes() {
+    return DECODER.decode(ByteBuffer.wrap(this.utf8));
+  }
+
+  @Benchmark
+  public Payload decodeCompact() {
+    return COMPACT_DECODER.apply(ByteBuffer.wrap(this.compact));
+  }
+
+  /**
+   * Encoders only support outbound payloads, so inbound frames are composed here. TXT and BIN are
+   * symmetric and go through the regular encoders.
+   */
+  private static String encodeInbound(Payload payload) {
+    return switch (payload.type()) {
+      case TXT, BIN -> new PayloadEncoder().apply(payload);
+      case JOIN -> "[\"JOIN\",\"a1b2c3d4\",\"Joe Customer\",\"support\"]";
+      case UPL -> "[\"UPL\",\"%s\",\"invoice.pdf\",\"application/pdf\",183204,\"%s\"]"
+          .formatted(Payloads.MESSAGE_ID, Payloads.CREATED);
+      case PING -> "[\"PING\"]";
+      default -> throw new IllegalArgumentException(payload.type().name());
+    };
+  }
+
+  private static byte[] encodeInboundCompact(Payload payload) {
+    return switch (payload.type()) {
+      case TXT, BIN -> {
+        var frame = new CompactPayloadEncoder().apply(payload);
+        yield frame.array();
+      }
+      case JOIN -> concat(new byte[] {1}, str("a1b2c3d4"), str("support"), str("Joe Customer"));
+      case UPL -> concat(
+          new byte[] {7},
+          str(Payloads.MESSAGE_ID),
+          str("invoice.pdf"),
+          str("application/pdf"),
+          varint(183_204L),
+          varint(Payloads.CREATED.toEpochMilli()));
+      case PING -> new byte[] {8};
+      default -> throw new IllegalArgumentException(payload.type().name());
+    };
+  }
+
+  private static byte[] str(String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    return concat(varint(bytes.length), bytes);
+  }
+
+  private static byte[] varint(long value) {
+    var buffer = ByteBuffer.allocate(10);
+    while ((value & ~0x7FL) != 0) {
+      buffer.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    buffer.put((byte) value);
+    byte[] bytes = new byte[buffer.position()];
+    buffer.flip().get(bytes);
+    return bytes;
+  }
+
+  private static byte[] concat(byte[]... parts) {
+    var buffer = ByteBuffer.allocate(1024);
+    for (byte[] part : parts) {
+      buffer.put(part);
+    }
+    byte[] bytes = new byte[buffer.position()];
+    buffer.flip().get(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,54 @@
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import ua.com.pragmasoft.k1te.backend.router.domain.payload.Payload;
+import ua.com.pragmasoft.k1te.backend.router.domain.payload.Payload.Type;
+import ua.com.pragmasoft.k1te.backend.ws.CompactPayloadEncoder;
+import ua.com.pragmasoft.k1te.backend.ws.PayloadEncoder;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PayloadEncoderBenchmark {
+
+  private static final PayloadEncoder ENCODER = new PayloadEncoder();
+  private static final CompactPayloadEncoder COMPACT_ENCODER = new CompactPayloadEncoder();
+
+  @Param({"ACK", "OK", "ERR", "TXT", "BIN", "UPL", "PONG"})
+  public String type;
+
+  private Payload payload;
+
+  @State(Scope.Thread)
+  public static class Buffer {
+    final ByteBuffer bytes = ByteBuffer.allocate(8 * 1024);
+  }
+
+  @Setup
+  public void setup() {
+    this.payload = Payloads.OUTBOUND.get(Type.valueOf(this.type));
+  }
+
+  @Benchmark
+  public String encodeString() {
+    return ENCODER.apply(this.payload);
+  }
+
+  @Benchmark
+  public ByteBuffer encodeBytes(Buffer buffer) {
+    var bytes = buffer.bytes.clear();
+    ENCODER.encode(this.payload, bytes);
+    return bytes;
+  }
+
+  @Benchmark
+  public ByteBuffer encodeCompact() {
+    return COMPACT_ENCODER.apply(this.payload);
+  }
+}
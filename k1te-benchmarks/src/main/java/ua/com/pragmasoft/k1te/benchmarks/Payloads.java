@@ -0,0 +1,59 @@
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.benchmarks;
+
+import java.net.URI;
+import java.time.Instant;
+import java.util.EnumMap;
+import ua.com.pragmasoft.k1te.backend.router.domain.payload.*;
+import ua.com.pragmasoft.k1te.backend.router.domain.payload.Payload.Type;
+
+/** Representative payload of every type */
+final class Payloads {
+
+  static final Instant CREATED = Instant.parse("2023-10-01T10:15:30.123Z");
+  static final String MESSAGE_ID = "c0a8012e-7f3a-4c1b-9d2e-5b6f7a8b9c0d";
+  static final String TEXT =
+      "Hello! I've got a question about my order #12345, it was supposed to arrive yesterday 📦";
+
+  /** Payloads server receives from clients */
+  static final EnumMap<Type, Payload> INBOUND = new EnumMap<>(Type.class);
+
+  /** Payloads server sends to clients */
+  static final EnumMap<Type, Payload> OUTBOUND = new EnumMap<>(Type.class);
+
+  static {
+    INBOUND.put(Type.JOIN, new JoinChannel("a1b2c3d4", "Joe Customer", "support"));
+    INBOUND.put(Type.TXT, new PlaintextMessage(TEXT, MESSAGE_ID, CREATED, 1));
+    INBOUND.put(
+        Type.BIN,
+        new BinaryMessage(
+            "https://files.k1te.chat/support/a1b2c3d4/invoice.pdf",
+            "invoice.pdf",
+            "application/pdf",
+            183_204L,
+            MESSAGE_ID,
+            CREATED,
+            1));
+    INBOUND.put(
+        Type.UPL,
+        new UploadRequest("invoice.pdf", "application/pdf", 183_204L, MESSAGE_ID, CREATED));
+    INBOUND.put(Type.PING, new Ping());
+
+    OUTBOUND.put(Type.ACK, new MessageAck(MESSAGE_ID, "4711", CREATED));
+    OUTBOUND.put(Type.OK, new OkResponse());
+    OUTBOUND.put(Type.ERR, new ErrorResponse("⛔ Unsupported Media type image/bmp", 400));
+    OUTBOUND.put(Type.TXT, new PlaintextMessage(TEXT, MESSAGE_ID, CREATED, 2));
+    OUTBOUND.put(Type.BIN, INBOUND.get(Type.BIN));
+    OUTBOUND.put(
+        Type.UPL,
+        new UploadResponse(
+            MESSAGE_ID,
+            URI.create("https://files.k1te.chat/support/a1b2c3d4/invoice.pdf"),
+            URI.create(
+                "https://k1te-files.s3.amazonaws.com/support/a1b2c3d4/invoice.pdf"
+                    + "?X-Amz-Algorithm=AWS4-HMAC-SHA256&X-Amz-Expires=600")));
+    OUTBOUND.put(Type.PONG, new Pong());
+  }
+
+  private Payloads() {}
+}
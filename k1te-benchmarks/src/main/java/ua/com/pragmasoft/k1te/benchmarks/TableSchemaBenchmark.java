@@ -0,0 +1,43 @@
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import software.amazon.awssdk.enhanced.dynamodb.TableSchema;
+import ua.com.pragmasoft.k1te.backend.router.infrastructure.DynamoDBConnection;
+import ua.com.pragmasoft.k1te.backend.router.infrastructure.DynamoDbChannel;
+import ua.com.pragmasoft.k1te.backend.router.infrastructure.DynamoDbHistoryMessage;
+import ua.com.pragmasoft.k1te.backend.router.infrastructure.DynamoDbMember;
+import ua.com.pragmasoft.k1te.backend.router.infrastructure.DynamoDbSchemas;
+
+/**
+ * Cold start cost of the item schemas. Every fork creates the schemas once in the fresh JVM, the
+ * way lambda does on its first request, so compare the single shot times, not the throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(20)
+public class TableSchemaBenchmark {
+
+  @Benchmark
+  public List<TableSchema<?>> beanSchemas() {
+    return List.of(
+        TableSchema.fromBean(DynamoDbChannel.class),
+        TableSchema.fromBean(DynamoDbMember.class),
+        TableSchema.fromBean(DynamoDBConnection.class),
+        TableSchema.fromBean(DynamoDbHistoryMessage.class));
+  }
+
+  @Benchmark
+  public List<TableSchema<?>> staticSchemas() {
+    return List.of(
+        DynamoDbSchemas.channel(),
+        DynamoDbSchemas.member(),
+        DynamoDbSchemas.connection(),
+        DynamoDbSchemas.historyMessage());
+  }
+}
@@ -0,0 +1,32 @@
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.server.router.application;
+
+import io.quarkus.arc.profile.IfBuildProfile;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.inject.Produces;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import ua.com.pragmasoft.k1te.backend.router.domain.Messages;
+import ua.com.pragmasoft.k1te.backend.router.infrastructure.InMemoryChannels;
+import ua.com.pragmasoft.k1te.backend.router.infrastructure.InMemoryMessages;
+
+/** Replaces DynamoDb channels and messages with in-memory ones, for the single node deployment */
+@IfBuildProfile("inmemory")
+public class InMemoryRouterConfiguration {
+
+  @Produces
+  @ApplicationScoped
+  public InMemoryChannels inMemoryChannels() {
+    return new InMemoryChannels();
+  }
+
+  @Produces
+  @ApplicationScoped
+  public Messages inMemoryMessages(
+      InMemoryChannels channels,
+      @ConfigProperty(name = "inmemory.history.capacity", defaultValue = "100")
+          int historyCapacity) {
+    var messages = new InMemoryMessages(channels, historyCapacity);
+    channels.onMemberRemoved(messages::delete);
+    return messages;
+  }
+}
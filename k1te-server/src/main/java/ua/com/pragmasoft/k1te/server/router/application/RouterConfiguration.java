@@ -2,30 +2,99 @@
 package ua.com.pragmasoft.k1te.server.router.application;
 
 import io.quarkus.arc.DefaultBean;
+import io.quarkus.runtime.StartupEvent;
 import jakarta.enterprise.context.*;
 import jakarta.enterprise.event.Observes;
+import jakarta.enterprise.inject.Disposes;
 import jakarta.enterprise.inject.Instance;
 import jakarta.enterprise.inject.Produces;
+import jakarta.enterprise.inject.Typed;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.Executors;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbEnhancedAsyncClient;
 import software.amazon.awssdk.enhanced.dynamodb.DynamoDbEnhancedClient;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import ua.com.pragmasoft.k1te.backend.router.domain.*;
+import ua.com.pragmasoft.k1te.backend.router.infrastructure.BatchingMessages;
+import ua.com.pragmasoft.k1te.backend.router.infrastructure.CachingChannels;
+import ua.com.pragmasoft.k1te.backend.router.infrastructure.DynamoDbChannelTeardown;
 import ua.com.pragmasoft.k1te.backend.router.infrastructure.DynamoDbChannels;
 import ua.com.pragmasoft.k1te.backend.router.infrastructure.DynamoDbMessages;
+import ua.com.pragmasoft.k1te.backend.router.infrastructure.DynamoDbMessages.HistoryFormat;
+import ua.com.pragmasoft.k1te.backend.router.infrastructure.DynamoDbWriteBehind;
+import ua.com.pragmasoft.k1te.backend.router.infrastructure.WriteAheadMessages;
+import ua.com.pragmasoft.k1te.backend.router.infrastructure.WriteAheadMessages.Fsync;
 
 public class RouterConfiguration {
 
   @Produces
   @RequestScoped
-  @DefaultBean
-  public DynamoDbChannels channels(
+  @Typed(DynamoDbChannels.class)
+  public DynamoDbChannels dynamoDbChannels(
+      DynamoDbEnhancedClient ddb,
+      DynamoDbWriteBehind writeBehind,
+      DynamoDbChannelTeardown teardown,
+      Instance<DynamoDbEnhancedAsyncClient> asyncDdb,
+      @ConfigProperty(name = "serverless.environment") final String serverlessEnvironmentName,
+      @ConfigProperty(name = "router.dynamodb.async", defaultValue = "false") boolean async) {
+    return new DynamoDbChannels(
+        ddb, serverlessEnvironmentName, writeBehind, teardown, async ? asyncDdb.get() : null);
+  }
+
+  @Produces
+  @ApplicationScoped
+  public DynamoDbChannelTeardown channelTeardown(
       DynamoDbEnhancedClient ddb,
       @ConfigProperty(name = "serverless.environment") final String serverlessEnvironmentName) {
-    return new DynamoDbChannels(ddb, serverlessEnvironmentName);
+    return new DynamoDbChannelTeardown(
+        ddb,
+        serverlessEnvironmentName,
+        Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("k1te-channel-teardown-", 0).factory()));
+  }
+
+  void resumeChannelTeardown(
+      @Observes StartupEvent event,
+      Instance<DynamoDbChannelTeardown> teardown,
+      @ConfigProperty(name = "router.teardown.resume", defaultValue = "false") boolean resume) {
+    if (resume) {
+      Thread.ofVirtual().name("k1te-channel-teardown").start(() -> teardown.get().resume());
+    }
+  }
+
+  @Produces
+  @ApplicationScoped
+  public DynamoDbWriteBehind writeBehind(
+      DynamoDbEnhancedClient ddb,
+      DynamoDbClient dynamoDbClient,
+      @ConfigProperty(name = "router.write-behind.interval", defaultValue = "PT0S")
+          Duration interval,
+      @ConfigProperty(name = "router.write-behind.max-attempts", defaultValue = "5")
+          int maxAttempts,
+      @ConfigProperty(name = "router.write-behind.backoff", defaultValue = "PT0.05S")
+          Duration backoff) {
+    return new DynamoDbWriteBehind(ddb, dynamoDbClient, maxAttempts, backoff, interval);
+  }
+
+  public void closeWriteBehind(@Disposes DynamoDbWriteBehind writeBehind) {
+    writeBehind.close();
+  }
+
+  @Produces
+  @ApplicationScoped
+  @DefaultBean
+  public Channels channels(
+      DynamoDbChannels dynamoDbChannels,
+      @ConfigProperty(name = "router.cache.max-size", defaultValue = "0") int maxSize,
+      @ConfigProperty(name = "router.cache.ttl", defaultValue = "PT1M") Duration ttl) {
+    return maxSize > 0 ? new CachingChannels(dynamoDbChannels, maxSize, ttl) : dynamoDbChannels;
   }
 
   public void observeRequestDestroyed1(
-      @Observes @BeforeDestroyed(RequestScoped.class) Object event, DynamoDbChannels channels) {
+      @Observes @BeforeDestroyed(RequestScoped.class) Object event, Channels channels) {
     channels.flush();
   }
 
@@ -36,8 +105,59 @@ public class RouterConfiguration {
       Channels channels,
       DynamoDbEnhancedClient ddb,
       DynamoDbClient dynamoDbClient,
-      @ConfigProperty(name = "serverless.environment") final String serverlessEnvironmentName) {
-    return new DynamoDbMessages(channels, ddb, dynamoDbClient, serverlessEnvironmentName);
+      Instance<DynamoDbEnhancedAsyncClient> asyncDdb,
+      @ConfigProperty(name = "serverless.environment") final String serverlessEnvironmentName,
+      @ConfigProperty(name = "router.dynamodb.async", defaultValue = "false") boolean async,
+      @ConfigProperty(name = "router.messages.format", defaultValue = "LEGACY")
+          HistoryFormat format,
+      @ConfigProperty(name = "router.messages.migrate", defaultValue = "false") boolean migrate,
+      @ConfigProperty(name = "router.history.flush-size", defaultValue = "0") int flushSize,
+      @ConfigProperty(name = "router.history.max-delay", defaultValue = "PT0.2S") Duration maxDelay,
+      @ConfigProperty(name = "router.history.capacity", defaultValue = "10000") int capacity,
+      @ConfigProperty(name = "router.write-behind.max-attempts", defaultValue = "5")
+          int maxAttempts,
+      @ConfigProperty(name = "router.write-behind.backoff", defaultValue = "PT0.05S")
+          Duration backoff,
+      @ConfigProperty(name = "router.history.spill-file") Optional<String> spillFile,
+      @ConfigProperty(name = "router.history.wal.path") Optional<String> walPath,
+      @ConfigProperty(name = "router.history.wal.segment-size", defaultValue = "16777216")
+          int walSegmentSize,
+      @ConfigProperty(name = "router.history.wal.fsync", defaultValue = "PERIODIC") Fsync fsync) {
+    var messages =
+        new DynamoDbMessages(
+            channels,
+            ddb,
+            dynamoDbClient,
+            serverlessEnvironmentName,
+            format,
+            async ? asyncDdb.get() : null);
+    if (migrate) {
+      Thread.ofVirtual().name("k1te-history-migration").start(messages::migrate);
+    }
+    if (walPath.isPresent()) {
+      return new WriteAheadMessages(
+          messages, Path.of(walPath.get()), walSegmentSize, fsync, maxDelay);
+    }
+    if (flushSize <= 0) {
+      return messages;
+    }
+    return new BatchingMessages(
+        messages,
+        flushSize,
+        maxDelay,
+        maxAttempts,
+        backoff,
+        spillFile.map(Path::of).orElse(null),
+        capacity);
+  }
+
+  public void closeMessages(@Disposes Messages messages) {
+    if (messages instanceof BatchingMessages batchingMessages) {
+      batchingMessages.close();
+    }
+    if (messages instanceof WriteAheadMessages writeAheadMessages) {
+      writeAheadMessages.close();
+    }
   }
 
   @Produces
@@ -55,7 +175,25 @@ public class RouterConfiguration {
   @Produces
   @ApplicationScoped
   public Router router(
-      Channels channels, Messages messages, Instance<RouterPostProcessor> postProcessors) {
-    return new KiteRouter(channels, postProcessors.stream().toList(), messages);
+      Channels channels,
+      Messages messages,
+      Instance<RouterPostProcessor> postProcessors,
+      @ConfigProperty(name = "router.post-processing.threads", defaultValue = "0") int threads,
+      @ConfigProperty(name = "router.post-processing.queue-capacity", defaultValue = "1024")
+          int queueCapacity,
+      @ConfigProperty(name = "router.mailboxes.enabled", defaultValue = "false")
+          boolean mailboxes) {
+    return new KiteRouter(
+        channels,
+        postProcessors.stream().toList(),
+        messages,
+        threads > 0 ? KiteRouter.postProcessingExecutor(threads, queueCapacity) : null,
+        mailboxes ? new MemberMailboxes() : null);
+  }
+
+  public void closeRouter(@Disposes Router router) {
+    if (router instanceof KiteRouter kiteRouter) {
+      kiteRouter.close();
+    }
   }
 }
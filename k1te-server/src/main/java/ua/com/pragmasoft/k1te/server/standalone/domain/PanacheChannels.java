@@ -4,9 +4,13 @@ package ua.com.pragmasoft.k1te.server.standalone.domain;
 import static ua.com.pragmasoft.k1te.server.standalone.infrastructure.PanacheMember.buildId;
 
 import io.quarkus.arc.profile.IfBuildProfile;
+import io.quarkus.hibernate.orm.panache.PanacheQuery;
+import io.quarkus.panache.common.Page;
+import io.quarkus.panache.common.Sort;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.transaction.Transactional;
 import java.util.Objects;
+import java.util.stream.Stream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ua.com.pragmasoft.k1te.backend.router.domain.ChannelName;
@@ -153,6 +157,17 @@ public class PanacheChannels implements Channels {
     return member;
   }
 
+  @Override
+  public Stream<Member> members(String channelName) {
+    PanacheQuery<PanacheMember> query =
+        PanacheMember.<PanacheMember>find(
+                "memberPK.channelName", Sort.by("memberPK.memberId"), channelName)
+            .page(Page.ofSize(MEMBERS_PAGE_SIZE));
+    return Stream.iterate(
+            query, Objects::nonNull, page -> page.hasNextPage() ? page.nextPage() : null)
+        .flatMap(page -> page.<PanacheMember>list().stream().map(Member.class::cast));
+  }
+
   @Override
   public String findUnAnsweredMessage(Member from, Member to) {
     Objects.requireNonNull(from);
@@ -12,9 +12,11 @@ import jakarta.websocket.OnOpen;
 import jakarta.websocket.Session;
 import jakarta.websocket.server.ServerEndpoint;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 import ua.com.pragmasoft.k1te.backend.router.domain.payload.Payload;
 import ua.com.pragmasoft.k1te.backend.shared.OnWsConnectionFailedException;
+import ua.com.pragmasoft.k1te.backend.ws.CompactPayloadDecoder;
 import ua.com.pragmasoft.k1te.backend.ws.WsConnector;
 import ua.com.pragmasoft.k1te.server.ws.application.JakartaWebsocketConnectionRegistry.JakartaWebsocketConnection;
 
@@ -22,12 +24,14 @@ import ua.com.pragmasoft.k1te.server.ws.application.JakartaWebsocketConnectionRe
     value = JakartaWebsocketAdapter.CHANNELS_PATH,
     decoders = {PayloadDecoderAdapter.class},
     encoders = {PayloadEncoderAdapter.class},
-    subprotocols = {WsConnector.SUBPROTOCOL})
+    subprotocols = {WsConnector.SUBPROTOCOL, WsConnector.SUBPROTOCOL_V2})
 @ApplicationScoped
 public class JakartaWebsocketAdapter {
 
   public static final String CHANNELS_PATH = "/channels";
 
+  private static final CompactPayloadDecoder COMPACT_DECODER = new CompactPayloadDecoder();
+
   private final JakartaWebsocketConnectionRegistry connectionRegistry;
 
   private final WsConnector wsConnector;
@@ -88,6 +92,15 @@ public class JakartaWebsocketAdapter {
     }
   }
 
+  /**
+   * Binary frames use k1te.chat.v2 encoding. They are decoded here rather than with the declared
+   * decoder, since the container would treat a second Payload decoder as a duplicate text handler.
+   */
+  @OnMessage
+  public void onBinaryPayload(ByteBuffer frame, Session session) throws IOException {
+    this.onPayload(COMPACT_DECODER.apply(frame), session);
+  }
+
   private String getParameter(Session session, String name) {
     List<String> values = session.getRequestParameterMap().get(name);
     return values != null && !values.isEmpty() ? values.get(0) : null;
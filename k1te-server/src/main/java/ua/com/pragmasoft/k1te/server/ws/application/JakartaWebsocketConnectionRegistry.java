@@ -10,12 +10,16 @@ import java.io.IOException;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import ua.com.pragmasoft.k1te.backend.router.domain.payload.Payload;
+import ua.com.pragmasoft.k1te.backend.ws.CompactPayloadEncoder;
+import ua.com.pragmasoft.k1te.backend.ws.WsConnector;
 import ua.com.pragmasoft.k1te.backend.ws.WsConnector.WsConnection;
 import ua.com.pragmasoft.k1te.backend.ws.WsConnector.WsConnectionRegistry;
 
 @ApplicationScoped
 public class JakartaWebsocketConnectionRegistry implements WsConnectionRegistry {
 
+  private static final CompactPayloadEncoder COMPACT_ENCODER = new CompactPayloadEncoder();
+
   private final Map<String, JakartaWebsocketConnection> connections = new ConcurrentHashMap<>();
 
   void unregisterConnection(JakartaWebsocketConnection connection) {
@@ -60,13 +64,28 @@ public class JakartaWebsocketConnectionRegistry implements WsConnectionRegistry
       return this.session.getId();
     }
 
+    @Override
+    public String subprotocol() {
+      var negotiated = this.session.getNegotiatedSubprotocol();
+      return null == negotiated || negotiated.isEmpty() ? WsConnector.SUBPROTOCOL : negotiated;
+    }
+
     @Override
     public void sendObject(Payload payload) throws IOException {
+      if (WsConnector.SUBPROTOCOL_V2.equals(this.session.getNegotiatedSubprotocol())) {
+        this.session.getBasicRemote().sendBinary(COMPACT_ENCODER.apply(payload));
+        return;
+      }
       try {
         this.session.getBasicRemote().sendObject(payload);
       } catch (EncodeException e) {
         throw new IOException(e.getMessage(), e);
       }
     }
+
+    @Override
+    public void sendEncoded(String frame) throws IOException {
+      this.session.getBasicRemote().sendText(frame);
+    }
   }
 }
@@ -1,14 +1,14 @@
 /* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
 package ua.com.pragmasoft.k1te.server.ws.application;
 
-import io.quarkus.logging.Log;
 import jakarta.websocket.DecodeException;
 import jakarta.websocket.Decoder;
 import jakarta.websocket.EndpointConfig;
+import java.io.Reader;
 import ua.com.pragmasoft.k1te.backend.router.domain.payload.Payload;
 import ua.com.pragmasoft.k1te.backend.ws.PayloadDecoder;
 
-public class PayloadDecoderAdapter implements Decoder.Text<Payload> {
+public class PayloadDecoderAdapter implements Decoder.TextStream<Payload> {
 
   static final PayloadDecoder DECODER = new PayloadDecoder();
 
@@ -23,19 +23,11 @@ public class PayloadDecoderAdapter implements Decoder.Text<Payload> {
   }
 
   @Override
-  public Payload decode(String text) throws DecodeException {
-
-    Log.debug("decode " + text);
-
+  public Payload decode(Reader reader) throws DecodeException {
     try {
-      return DECODER.apply(text);
+      return DECODER.decode(reader);
     } catch (Exception e) {
-      throw new DecodeException(text, e.getMessage(), e);
+      throw new DecodeException((String) null, e.getMessage(), e);
     }
   }
-
-  @Override
-  public boolean willDecode(String text) {
-    return true;
-  }
 }
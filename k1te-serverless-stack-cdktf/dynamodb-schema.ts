@@ -6,6 +6,7 @@ import { Grantable } from "./grantable";
 
 const billingMode = "PAY_PER_REQUEST";
 const STRING = "S";
+const NUMBER = "N";
 
 export type DynamoDbSchemaProps = {
   dependsOn?: ITerraformDependable[];
@@ -40,8 +41,22 @@ export class DynamoDbSchema extends Construct {
         enabled: true,
         attributeName: "ttl",
       },
+      globalSecondaryIndex: [
+        {
+          // sparse, only dropped channels have the tombstone
+          name: "Tombstones",
+          hashKey: "tombstone",
+          rangeKey: "dropped",
+          projectionType: "INCLUDE",
+          nonKeyAttributes: ["host"],
+        },
+      ],
       hashKey: "name",
-      attribute: [{ name: "name", type: STRING }],
+      attribute: [
+        { name: "name", type: STRING },
+        { name: "tombstone", type: STRING },
+        { name: "dropped", type: NUMBER },
+      ],
     });
 
     const members = new DynamodbTable(this, "Members", {
@@ -97,6 +112,16 @@ export class DynamoDbSchema extends Construct {
           rangeKey: "time",
         },
       ],
+      globalSecondaryIndex: [
+        {
+          name: "MessageTs",
+          hashKey: "id",
+          rangeKey: "ts",
+          projectionType: "INCLUDE",
+          // content and time of DUAL items, read until they are migrated to COMPACT
+          nonKeyAttributes: ["body", "content", "time"],
+        },
+      ],
       ttl: {
         enabled: true,
         attributeName: "ttl",
@@ -107,6 +132,7 @@ export class DynamoDbSchema extends Construct {
         { name: "id", type: STRING },
         { name: "messageId", type: STRING },
         { name: "time", type: STRING },
+        { name: "ts", type: NUMBER },
       ],
     });
 
@@ -1,3 +1,5 @@
+import { CloudwatchEventRule } from "@cdktf/provider-aws/lib/cloudwatch-event-rule";
+import { CloudwatchEventTarget } from "@cdktf/provider-aws/lib/cloudwatch-event-target";
 import { LambdaInvocation } from "@cdktf/provider-aws/lib/lambda-invocation";
 import { AwsProvider } from "@cdktf/provider-aws/lib/provider";
 import {
@@ -163,6 +165,24 @@ export class KiteStack extends TerraformStack {
     wsApiStage.addDefaultRoutes(mainHandler, apiGatewayPrincipal);
     restApiStage.addHandler(telegramRoute, "POST", mainHandler);
 
+    // resumes teardown of the dropped channels, which didn't complete within the request
+    const teardownSchedule = new CloudwatchEventRule(
+      this,
+      "channel-teardown-schedule",
+      {
+        name: "k1te-channel-teardown",
+        scheduleExpression: "rate(5 minutes)",
+      }
+    );
+    new CloudwatchEventTarget(this, "channel-teardown-target", {
+      rule: teardownSchedule.name,
+      arn: mainHandler.arn,
+    });
+    mainHandler.allowInvocationForService({
+      principal: "events.amazonaws.com",
+      sourceArn: teardownSchedule.arn,
+    });
+
     const lifecycleHandler = new Lambda(this, "lifecycle-handler", {
       role,
       asset: archiveResource,
@@ -1,52 +1,67 @@
-/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
-package ua.com.pragmasoft.k1te.serverless.handler;
-
-import com.amazonaws.services.lambda.runtime.Context;
-import com.amazonaws.services.lambda.runtime.RequestStreamHandler;
-import com.amazonaws.services.lambda.runtime.events.APIGatewayV2HTTPEvent;
-import com.amazonaws.services.lambda.runtime.events.APIGatewayV2WebSocketEvent;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import jakarta.enterprise.context.control.ActivateRequestContext;
-import jakarta.inject.Inject;
-import jakarta.inject.Named;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import ua.com.pragmasoft.k1te.backend.shared.KiteException;
-import ua.com.pragmasoft.k1te.serverless.handler.event.LambdaEvent;
-
-@Named(value = "main")
-@ActivateRequestContext
-public class RequestDispatcher implements RequestStreamHandler {
-
-  private final ObjectMapper objectMapper;
-  private final TgWebhook tg;
-  private final WsHandler ws;
-
-  @Inject
-  public RequestDispatcher(ObjectMapper objectMapper, TgWebhook tg, WsHandler ws) {
-    this.objectMapper = objectMapper;
-    this.tg = tg;
-    this.ws = ws;
-  }
-
-  @Override
-  public void handleRequest(InputStream input, OutputStream output, Context context)
-      throws IOException {
-    final LambdaEvent lambdaEvent;
-    try (input) {
-      lambdaEvent = objectMapper.readValue(input, LambdaEvent.class);
-    } catch (Exception exception) {
-      throw new KiteException("Event deserialization error", exception);
-    }
-    final Object response;
-    if (lambdaEvent instanceof APIGatewayV2HTTPEvent httpEvent) {
-      response = this.tg.handleRequest(httpEvent, context);
-    } else if (lambdaEvent instanceof APIGatewayV2WebSocketEvent wsEvent) {
-      response = this.ws.handleRequest(wsEvent, context);
-    } else {
-      throw new KiteException("Unsupported event: " + lambdaEvent);
-    }
-    objectMapper.writeValue(output, response);
-  }
-}
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.serverless.handler;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestStreamHandler;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.enterprise.context.control.ActivateRequestContext;
+import jakarta.inject.Inject;
+import jakarta.inject.Named;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import ua.com.pragmasoft.k1te.backend.router.infrastructure.DynamoDbChannelTeardown;
+import ua.com.pragmasoft.k1te.backend.shared.KiteException;
+import ua.com.pragmasoft.k1te.serverless.handler.event.SniffedLambdaEvent;
+
+@Named(value = "main")
+@ActivateRequestContext
+public class RequestDispatcher implements RequestStreamHandler {
+
+  private final ObjectMapper objectMapper;
+  private final TgWebhook tg;
+  private final WsHandler ws;
+  private final DynamoDbChannelTeardown teardown;
+
+  @Inject
+  public RequestDispatcher(
+      ObjectMapper objectMapper,
+      TgWebhook tg,
+      WsHandler ws,
+      DynamoDbChannelTeardown teardown) {
+    this.objectMapper = objectMapper;
+    this.tg = tg;
+    this.ws = ws;
+    this.teardown = teardown;
+  }
+
+  /**
+   * Sniffs the fields handlers need from the raw event with the token parser, without deserializing
+   * the whole event, and hands the body to the handler of the event kind
+   */
+  @Override
+  public void handleRequest(InputStream input, OutputStream output, Context context)
+      throws IOException {
+    final SniffedLambdaEvent lambdaEvent;
+    try (input;
+        JsonParser parser = objectMapper.getFactory().createParser(input)) {
+      lambdaEvent = SniffedLambdaEvent.read(parser);
+    } catch (Exception exception) {
+      throw new KiteException("Event deserialization error", exception);
+    }
+    final Object response;
+    if (lambdaEvent.kind() == SniffedLambdaEvent.Kind.HTTP) {
+      response = this.tg.handleRequest(lambdaEvent, context);
+    } else if (lambdaEvent.kind() == SniffedLambdaEvent.Kind.WEBSOCKET) {
+      response = this.ws.handleRequest(lambdaEvent, context);
+    } else if (lambdaEvent.kind() == SniffedLambdaEvent.Kind.SCHEDULED) {
+      // continues teardown of the channels which didn't complete within the request
+      response = Map.of("resumed", this.teardown.resume());
+    } else {
+      throw new KiteException("Unsupported event: " + lambdaEvent);
+    }
+    objectMapper.writeValue(output, response);
+  }
+}
@@ -13,6 +13,7 @@ import jakarta.inject.Named;
 import java.util.Map;
 import software.amazon.awssdk.http.HttpStatusCode;
 import ua.com.pragmasoft.k1te.backend.tg.TelegramConnector;
+import ua.com.pragmasoft.k1te.serverless.handler.event.SniffedLambdaEvent;
 
 @ApplicationScoped
 @Named("tg")
@@ -26,7 +27,15 @@ public class TgWebhook implements RequestHandler<APIGatewayV2HTTPEvent, APIGatew
 
   @Override
   public APIGatewayV2HTTPResponse handleRequest(APIGatewayV2HTTPEvent input, Context context) {
-    final var requestBody = input.getBody();
+    return this.handle(input.getBody());
+  }
+
+  /** Handles the event sniffed from the raw event stream */
+  public APIGatewayV2HTTPResponse handleRequest(SniffedLambdaEvent input, Context context) {
+    return this.handle(input.body());
+  }
+
+  private APIGatewayV2HTTPResponse handle(String requestBody) {
     Log.debug(">> " + requestBody);
     Update update = BotUtils.parseUpdate(requestBody);
     var responseBody = this.connector.onUpdate(update);
@@ -7,13 +7,19 @@ import com.amazonaws.services.lambda.runtime.events.APIGatewayV2WebSocketEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayV2WebSocketResponse;
 import io.quarkus.logging.Log;
 import jakarta.inject.Named;
+import java.nio.ByteBuffer;
+import java.util.Base64;
 import java.util.Map;
 import java.util.Objects;
+import java.util.function.Supplier;
 import ua.com.pragmasoft.k1te.backend.router.domain.payload.Payload;
 import ua.com.pragmasoft.k1te.backend.shared.OnWsConnectionFailedException;
+import ua.com.pragmasoft.k1te.backend.ws.CompactPayloadDecoder;
+import ua.com.pragmasoft.k1te.backend.ws.CompactPayloadEncoder;
 import ua.com.pragmasoft.k1te.backend.ws.PayloadDecoder;
 import ua.com.pragmasoft.k1te.backend.ws.PayloadEncoder;
 import ua.com.pragmasoft.k1te.backend.ws.WsConnector;
+import ua.com.pragmasoft.k1te.serverless.handler.event.SniffedLambdaEvent;
 import ua.com.pragmasoft.k1te.serverless.ws.application.AwsApiGwConnectionRegistry;
 
 @Named("ws")
@@ -22,6 +28,8 @@ public class WsHandler
 
   private static final PayloadDecoder DECODER = new PayloadDecoder();
   private static final PayloadEncoder ENCODER = new PayloadEncoder();
+  private static final CompactPayloadDecoder COMPACT_DECODER = new CompactPayloadDecoder();
+  private static final CompactPayloadEncoder COMPACT_ENCODER = new CompactPayloadEncoder();
 
   private final WsConnector wsConnector;
   private final AwsApiGwConnectionRegistry connectionRegistry;
@@ -39,16 +47,62 @@ public class WsHandler
   public final APIGatewayV2WebSocketResponse handleRequest(
       APIGatewayV2WebSocketEvent input, Context context) {
     Log.debug(input.toString());
-    final var eventType = input.getRequestContext().getEventType();
-    final var connectionId = input.getRequestContext().getConnectionId();
-    final var body = input.getBody();
-    final var connection = this.connectionRegistry.getConnection(connectionId);
     String channelName = null;
     String memberId = null;
     if (input.getQueryStringParameters() != null) {
       channelName = input.getQueryStringParameters().get("c");
       memberId = input.getQueryStringParameters().get("m");
     }
+    final var response =
+        this.handle(
+            input.getRequestContext().getEventType(),
+            input.getRequestContext().getConnectionId(),
+            subprotocolsHeader(input),
+            channelName,
+            memberId,
+            () -> decode(input.isIsBase64Encoded(), input.getBody()),
+            input.isIsBase64Encoded());
+    Log.debugf("ws %s (%s) -> %s", input, context, response);
+    return response;
+  }
+
+  /** Handles the event sniffed from the raw event stream, body is decoded only for messages */
+  public final APIGatewayV2WebSocketResponse handleRequest(
+      SniffedLambdaEvent input, Context context) {
+    Log.debug(input.toString());
+    final var response =
+        this.handle(
+            input.eventType(),
+            input.connectionId(),
+            input.subprotocols(),
+            input.channelName(),
+            input.memberId(),
+            () ->
+                input.isBase64Encoded()
+                    ? COMPACT_DECODER.apply(ByteBuffer.wrap(input.binaryBody()))
+                    : DECODER.apply(input.body()),
+            input.isBase64Encoded());
+    Log.debugf("ws %s (%s) -> %s", input, context, response);
+    return response;
+  }
+
+  private APIGatewayV2WebSocketResponse handle(
+      String eventType,
+      String connectionId,
+      String subprotocols,
+      String channelName,
+      String memberId,
+      Supplier<Payload> body,
+      boolean binary) {
+    if ("CONNECT".equals(eventType)) {
+      this.connectionRegistry.useSubprotocol(connectionId, negotiateSubprotocol(subprotocols));
+    } else if ("DISCONNECT".equals(eventType)) {
+      this.connectionRegistry.forget(connectionId);
+    } else if (binary) {
+      // only k1te.chat.v2 clients send binary frames
+      this.connectionRegistry.useSubprotocol(connectionId, WsConnector.SUBPROTOCOL_V2);
+    }
+    final var connection = this.connectionRegistry.getConnection(connectionId);
     Payload responsePayload;
     Integer status = null;
     try {
@@ -56,7 +110,7 @@ public class WsHandler
           switch (eventType) {
             case "CONNECT" -> this.wsConnector.onOpen(connection, channelName, memberId);
             case "DISCONNECT" -> this.wsConnector.onClose(connection);
-            case "MESSAGE" -> this.wsConnector.onPayload(DECODER.apply(body), connection);
+            case "MESSAGE" -> this.wsConnector.onPayload(body.get(), connection);
             default -> throw new IllegalStateException("Unsupported event type: " + eventType);
           };
     } catch (OnWsConnectionFailedException wsException) {
@@ -66,13 +120,50 @@ public class WsHandler
       responsePayload = this.wsConnector.onError(connection, e);
     }
     final var response = new APIGatewayV2WebSocketResponse();
-    response.setHeaders(Map.of("Sec-WebSocket-Protocol", WsConnector.SUBPROTOCOL));
+    final var subprotocol = connection.subprotocol();
+    response.setHeaders(Map.of("Sec-WebSocket-Protocol", subprotocol));
     if (null != responsePayload) {
-      response.setBody(ENCODER.apply(responsePayload));
+      if (WsConnector.SUBPROTOCOL_V2.equals(subprotocol)) {
+        response.setBody(
+            Base64.getEncoder().encodeToString(COMPACT_ENCODER.apply(responsePayload).array()));
+        response.setIsBase64Encoded(true);
+      } else {
+        response.setBody(ENCODER.apply(responsePayload));
+      }
     }
     response.setStatusCode(Objects.requireNonNullElse(status, 200));
-
-    Log.debugf("ws %s (%s) -> %s", input, context, response);
     return response;
   }
+
+  private static Payload decode(boolean base64Encoded, String body) {
+    if (base64Encoded) {
+      return COMPACT_DECODER.apply(ByteBuffer.wrap(Base64.getDecoder().decode(body)));
+    }
+    return DECODER.apply(body);
+  }
+
+  private static String subprotocolsHeader(APIGatewayV2WebSocketEvent input) {
+    if (null != input.getHeaders()) {
+      for (var header : input.getHeaders().entrySet()) {
+        if ("Sec-WebSocket-Protocol".equalsIgnoreCase(header.getKey())) {
+          return header.getValue();
+        }
+      }
+    }
+    return null;
+  }
+
+  /** Picks the first of the client requested subprotocols we support, v1 by default */
+  private static String negotiateSubprotocol(String subprotocols) {
+    if (null != subprotocols) {
+      for (String requested : subprotocols.split(",")) {
+        String subprotocol = requested.trim();
+        if (WsConnector.SUBPROTOCOL.equals(subprotocol)
+            || WsConnector.SUBPROTOCOL_V2.equals(subprotocol)) {
+          return subprotocol;
+        }
+      }
+    }
+    return WsConnector.SUBPROTOCOL;
+  }
 }
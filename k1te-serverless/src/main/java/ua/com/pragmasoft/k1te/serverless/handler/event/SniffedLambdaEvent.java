@@ -0,0 +1,199 @@
+/* LGPL 3.0 ©️ Dmytro Zemnytskyi, pragmasoft@gmail.com, 2023 */
+package ua.com.pragmasoft.k1te.serverless.handler.event;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.util.Base64;
+
+/**
+ * Fields of the API Gateway event which handlers need, read with the token parser in a single pass
+ * over the raw event. Everything else is skipped, so no event object graph is built. Scheduled
+ * EventBridge events are only recognized by their source.
+ */
+public final class SniffedLambdaEvent {
+
+  public enum Kind {
+    HTTP,
+    WEBSOCKET,
+    SCHEDULED
+  }
+
+  private static final String SUBPROTOCOL_HEADER = "Sec-WebSocket-Protocol";
+  private static final String SCHEDULED_EVENT_SOURCE = "aws.events";
+
+  private boolean http;
+  private String source;
+  private String eventType;
+  private String routeKey;
+  private String connectionId;
+  private String channelName;
+  private String memberId;
+  private String subprotocols;
+  private String body;
+  private boolean base64Encoded;
+
+  private SniffedLambdaEvent() {}
+
+  /**
+   * Reads the event object the parser is positioned at, or the first one if parser was not started
+   * yet
+   */
+  public static SniffedLambdaEvent read(JsonParser parser) throws IOException {
+    final var event = new SniffedLambdaEvent();
+    expect(parser, null == parser.currentToken() ? parser.nextToken() : parser.currentToken());
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      final String field = parser.currentName();
+      final JsonToken value = parser.nextToken();
+      switch (field) {
+        case "version" -> event.http = true;
+        case "source" -> event.source = parser.getValueAsString();
+        case "routeKey" -> event.routeKey = parser.getValueAsString();
+        case "body" -> event.body = parser.getValueAsString();
+        case "isBase64Encoded" -> event.base64Encoded = parser.getValueAsBoolean();
+        case "headers" -> event.readHeaders(parser, value);
+        case "queryStringParameters" -> event.readQueryString(parser, value);
+        case "requestContext" -> event.readRequestContext(parser, value);
+        default -> parser.skipChildren();
+      }
+    }
+    return event;
+  }
+
+  private void readRequestContext(JsonParser parser, JsonToken value) throws IOException {
+    if (value != JsonToken.START_OBJECT) {
+      parser.skipChildren();
+      return;
+    }
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      final String field = parser.currentName();
+      parser.nextToken();
+      switch (field) {
+        case "eventType" -> this.eventType = parser.getValueAsString();
+        case "connectionId" -> this.connectionId = parser.getValueAsString();
+        case "routeKey" -> this.routeKey = parser.getValueAsString();
+        case "http" -> {
+          this.http = true;
+          parser.skipChildren();
+        }
+        default -> parser.skipChildren();
+      }
+    }
+  }
+
+  private void readHeaders(JsonParser parser, JsonToken value) throws IOException {
+    if (value != JsonToken.START_OBJECT) {
+      parser.skipChildren();
+      return;
+    }
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      final String header = parser.currentName();
+      parser.nextToken();
+      if (SUBPROTOCOL_HEADER.equalsIgnoreCase(header)) {
+        this.subprotocols = parser.getValueAsString();
+      } else {
+        parser.skipChildren();
+      }
+    }
+  }
+
+  private void readQueryString(JsonParser parser, JsonToken value) throws IOException {
+    if (value != JsonToken.START_OBJECT) {
+      parser.skipChildren();
+      return;
+    }
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      final String parameter = parser.currentName();
+      parser.nextToken();
+      switch (parameter) {
+        case "c" -> this.channelName = parser.getValueAsString();
+        case "m" -> this.memberId = parser.getValueAsString();
+        default -> parser.skipChildren();
+      }
+    }
+  }
+
+  private static void expect(JsonParser parser, JsonToken token) throws IOException {
+    if (token != JsonToken.START_OBJECT) {
+      throw new IOException(
+          "Event object expected, got " + token + " at " + parser.currentLocation());
+    }
+  }
+
+  /**
+   * Websocket events have the event type, http ones have the version, scheduled ones come from
+   * EventBridge, null if neither
+   */
+  public Kind kind() {
+    if (null != this.eventType) {
+      return Kind.WEBSOCKET;
+    }
+    if (SCHEDULED_EVENT_SOURCE.equals(this.source)) {
+      return Kind.SCHEDULED;
+    }
+    return this.http ? Kind.HTTP : null;
+  }
+
+  /** CONNECT, MESSAGE or DISCONNECT of the websocket event */
+  public String eventType() {
+    return this.eventType;
+  }
+
+  public String routeKey() {
+    return this.routeKey;
+  }
+
+  public String connectionId() {
+    return this.connectionId;
+  }
+
+  /** {@code c} query string parameter */
+  public String channelName() {
+    return this.channelName;
+  }
+
+  /** {@code m} query string parameter */
+  public String memberId() {
+    return this.memberId;
+  }
+
+  /** Value of the Sec-WebSocket-Protocol header, or null */
+  public String subprotocols() {
+    return this.subprotocols;
+  }
+
+  /** Body as sent, base64 encoded if {@link #isBase64Encoded()} */
+  public String body() {
+    return this.body;
+  }
+
+  /** Decoded body bytes of the base64 encoded event */
+  public byte[] binaryBody() {
+    return Base64.getDecoder().decode(this.body);
+  }
+
+  public boolean isBase64Encoded() {
+    return this.base64Encoded;
+  }
+
+  @Override
+  public String toString() {
+    return "SniffedLambdaEvent [kind="
+        + this.kind()
+        + ", eventType="
+        + this.eventType
+        + ", routeKey="
+        + this.routeKey
+        + ", connectionId="
+        + this.connectionId
+        + ", channelName="
+        + this.channelName
+        + ", memberId="
+        + this.memberId
+        + ", subprotocols="
+        + this.subprotocols
+        + ", base64Encoded="
+        + this.base64Encoded
+        + "]";
+  }
+}
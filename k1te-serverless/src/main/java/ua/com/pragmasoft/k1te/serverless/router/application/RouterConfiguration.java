@@ -5,25 +5,88 @@ import jakarta.enterprise.context.*;
 import jakarta.enterprise.event.Observes;
 import jakarta.enterprise.inject.Instance;
 import jakarta.enterprise.inject.Produces;
+import jakarta.enterprise.inject.Typed;
+import java.time.Duration;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 import software.amazon.awssdk.enhanced.dynamodb.DynamoDbEnhancedClient;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import ua.com.pragmasoft.k1te.backend.router.domain.*;
+import ua.com.pragmasoft.k1te.backend.router.infrastructure.CachingChannels;
+import ua.com.pragmasoft.k1te.backend.router.infrastructure.ConnectionIdentities;
+import ua.com.pragmasoft.k1te.backend.router.infrastructure.DynamoDbChannelTeardown;
 import ua.com.pragmasoft.k1te.backend.router.infrastructure.DynamoDbChannels;
 import ua.com.pragmasoft.k1te.backend.router.infrastructure.DynamoDbMessages;
+import ua.com.pragmasoft.k1te.backend.router.infrastructure.DynamoDbMessages.HistoryFormat;
+import ua.com.pragmasoft.k1te.backend.router.infrastructure.DynamoDbWriteBehind;
 
 public class RouterConfiguration {
 
   @Produces
   @RequestScoped
-  public DynamoDbChannels channels(
+  @Typed(DynamoDbChannels.class)
+  public DynamoDbChannels dynamoDbChannels(
       DynamoDbEnhancedClient ddb,
-      @ConfigProperty(name = "serverless.environment") final String serverlessEnvironmentName) {
-    return new DynamoDbChannels(ddb, serverlessEnvironmentName);
+      DynamoDbWriteBehind writeBehind,
+      DynamoDbChannelTeardown teardown,
+      Instance<ConnectionIdentities> identities,
+      @ConfigProperty(name = "serverless.environment") final String serverlessEnvironmentName,
+      @ConfigProperty(name = "router.identities.max-size", defaultValue = "10000") int maxSize) {
+    return new DynamoDbChannels(
+        ddb,
+        serverlessEnvironmentName,
+        writeBehind,
+        teardown,
+        null,
+        maxSize > 0 ? identities.get() : null);
+  }
+
+  /**
+   * Lambda is frozen after the response, so channels are torn down within the request, at most for
+   * the budget. The rest is resumed by the scheduled event.
+   */
+  @Produces
+  @ApplicationScoped
+  public DynamoDbChannelTeardown channelTeardown(
+      DynamoDbEnhancedClient ddb,
+      @ConfigProperty(name = "serverless.environment") final String serverlessEnvironmentName,
+      @ConfigProperty(name = "router.teardown.budget", defaultValue = "PT10S") Duration budget) {
+    return new DynamoDbChannelTeardown(ddb, serverlessEnvironmentName, null, budget);
+  }
+
+  /** Connection owners are kept by the warm container, so messages skip the connection read */
+  @Produces
+  @ApplicationScoped
+  public ConnectionIdentities connectionIdentities(
+      @ConfigProperty(name = "router.identities.max-size", defaultValue = "10000") int maxSize,
+      @ConfigProperty(name = "router.identities.ttl", defaultValue = "PT10M") Duration ttl) {
+    return new ConnectionIdentities(maxSize, ttl);
+  }
+
+  /** Lambda may be frozen right after the response, so members are written before it */
+  @Produces
+  @ApplicationScoped
+  public DynamoDbWriteBehind writeBehind(
+      DynamoDbEnhancedClient ddb, DynamoDbClient dynamoDbClient) {
+    return new DynamoDbWriteBehind(ddb, dynamoDbClient);
+  }
+
+  /**
+   * Other containers route messages of the same channels, so the cache is off by default, and hosts
+   * are not cached
+   */
+  @Produces
+  @ApplicationScoped
+  public Channels channels(
+      DynamoDbChannels dynamoDbChannels,
+      @ConfigProperty(name = "router.cache.max-size", defaultValue = "0") int maxSize,
+      @ConfigProperty(name = "router.cache.ttl", defaultValue = "PT5S") Duration ttl) {
+    return maxSize > 0
+        ? new CachingChannels(dynamoDbChannels, maxSize, ttl, false)
+        : dynamoDbChannels;
   }
 
   public void observeRequestDestroyed1(
-      @Observes @BeforeDestroyed(RequestScoped.class) Object event, DynamoDbChannels channels) {
+      @Observes @BeforeDestroyed(RequestScoped.class) Object event, Channels channels) {
     channels.flush();
   }
 
@@ -33,8 +96,10 @@ public class RouterConfiguration {
       Channels channels,
       DynamoDbEnhancedClient ddb,
       DynamoDbClient dynamoDbClient,
-      @ConfigProperty(name = "serverless.environment") final String serverlessEnvironmentName) {
-    return new DynamoDbMessages(channels, ddb, dynamoDbClient, serverlessEnvironmentName);
+      @ConfigProperty(name = "serverless.environment") final String serverlessEnvironmentName,
+      @ConfigProperty(name = "router.messages.format", defaultValue = "LEGACY")
+          HistoryFormat format) {
+    return new DynamoDbMessages(channels, ddb, dynamoDbClient, serverlessEnvironmentName, format);
   }
 
   @Produces
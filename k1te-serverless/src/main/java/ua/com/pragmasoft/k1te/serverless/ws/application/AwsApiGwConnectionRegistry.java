@@ -2,37 +2,70 @@
 package ua.com.pragmasoft.k1te.serverless.ws.application;
 
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
 import software.amazon.awssdk.core.SdkBytes;
 import software.amazon.awssdk.services.apigatewaymanagementapi.ApiGatewayManagementApiClient;
 import software.amazon.awssdk.services.apigatewaymanagementapi.model.DeleteConnectionRequest;
 import software.amazon.awssdk.services.apigatewaymanagementapi.model.PostToConnectionRequest;
 import ua.com.pragmasoft.k1te.backend.router.domain.payload.Payload;
+import ua.com.pragmasoft.k1te.backend.router.infrastructure.ConnectionSubprotocols;
+import ua.com.pragmasoft.k1te.backend.ws.CompactPayloadEncoder;
 import ua.com.pragmasoft.k1te.backend.ws.PayloadEncoder;
+import ua.com.pragmasoft.k1te.backend.ws.WsConnector;
 import ua.com.pragmasoft.k1te.backend.ws.WsConnector.WsConnection;
 import ua.com.pragmasoft.k1te.backend.ws.WsConnector.WsConnectionRegistry;
 
 public final class AwsApiGwConnectionRegistry implements WsConnectionRegistry {
 
   private static final PayloadEncoder ENCODER = new PayloadEncoder();
+  private static final CompactPayloadEncoder COMPACT_ENCODER = new CompactPayloadEncoder();
+  private static final int MAX_KNOWN_CONNECTIONS = 10_000;
+  private static final ThreadLocal<ByteBuffer> BUFFERS =
+      ThreadLocal.withInitial(() -> ByteBuffer.allocate(8 * 1024));
 
   private final ApiGatewayManagementApiClient apiClient;
+  private final ConnectionSubprotocols subprotocols;
+
+  /**
+   * Subprotocols of the connections, recently used in this container. Api gateway does not keep
+   * negotiated subprotocol, so it is stored with the connection, and read once per container.
+   */
+  private final Map<String, String> knownSubprotocols =
+      Collections.synchronizedMap(
+          new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+              return this.size() > MAX_KNOWN_CONNECTIONS;
+            }
+          });
 
   /**
    * @param apiClient
+   * @param subprotocols stores subprotocols negotiated by connections
    */
-  public AwsApiGwConnectionRegistry(ApiGatewayManagementApiClient apiClient) {
+  public AwsApiGwConnectionRegistry(
+      ApiGatewayManagementApiClient apiClient, ConnectionSubprotocols subprotocols) {
     this.apiClient = apiClient;
+    this.subprotocols = subprotocols;
   }
 
   final class AwsApiGwWebsocketConnection implements WsConnection {
 
     private final String connectionUri;
+    private final String subprotocol;
 
     /**
      * @param connectionUri
+     * @param subprotocol
      */
-    public AwsApiGwWebsocketConnection(String connectionUri) {
+    public AwsApiGwWebsocketConnection(String connectionUri, String subprotocol) {
       this.connectionUri = connectionUri;
+      this.subprotocol = subprotocol;
     }
 
     @Override
@@ -47,9 +80,33 @@ public final class AwsApiGwConnectionRegistry implements WsConnectionRegistry {
       return this.connectionUri;
     }
 
+    @Override
+    public String subprotocol() {
+      return this.subprotocol;
+    }
+
     @Override
     public void sendObject(Payload payload) throws IOException {
-      final var serializedPayload = SdkBytes.fromUtf8String(ENCODER.apply(payload));
+      if (WsConnector.SUBPROTOCOL_V2.equals(this.subprotocol)) {
+        this.send(SdkBytes.fromByteBuffer(COMPACT_ENCODER.apply(payload)));
+        return;
+      }
+      final var buffer = BUFFERS.get().clear();
+      try {
+        ENCODER.encode(payload, buffer);
+      } catch (BufferOverflowException tooLarge) {
+        this.sendEncoded(ENCODER.apply(payload));
+        return;
+      }
+      this.send(SdkBytes.fromByteBuffer(buffer.flip()));
+    }
+
+    @Override
+    public void sendEncoded(String frame) throws IOException {
+      this.send(SdkBytes.fromUtf8String(frame));
+    }
+
+    private void send(SdkBytes serializedPayload) {
       final var request =
           PostToConnectionRequest.builder()
               .connectionId(this.connectionUri)
@@ -59,8 +116,34 @@ public final class AwsApiGwConnectionRegistry implements WsConnectionRegistry {
     }
   }
 
+  /** Remembers subprotocol negotiated by the connection, stores it unless it is the default */
+  public void useSubprotocol(String connectionUri, String subprotocol) {
+    String known = this.knownSubprotocols.put(connectionUri, subprotocol);
+    if (!WsConnector.SUBPROTOCOL.equals(subprotocol) && !subprotocol.equals(known)) {
+      this.subprotocols.put(connectionUri, subprotocol);
+    }
+  }
+
+  public void forget(String connectionUri) {
+    String subprotocol = this.subprotocolOf(connectionUri);
+    this.knownSubprotocols.remove(connectionUri);
+    if (!WsConnector.SUBPROTOCOL.equals(subprotocol)) {
+      this.subprotocols.remove(connectionUri);
+    }
+  }
+
   @Override
   public WsConnection getConnection(String connectionUri) {
-    return new AwsApiGwWebsocketConnection(connectionUri);
+    return new AwsApiGwWebsocketConnection(connectionUri, this.subprotocolOf(connectionUri));
+  }
+
+  private String subprotocolOf(String connectionUri) {
+    String subprotocol = this.knownSubprotocols.get(connectionUri);
+    if (null == subprotocol) {
+      subprotocol =
+          Objects.requireNonNullElse(this.subprotocols.get(connectionUri), WsConnector.SUBPROTOCOL);
+      this.knownSubprotocols.put(connectionUri, subprotocol);
+    }
+    return subprotocol;
   }
 }
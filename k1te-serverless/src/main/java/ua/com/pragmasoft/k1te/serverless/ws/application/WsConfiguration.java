@@ -8,6 +8,7 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbEnhancedClient;
 import software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient;
 import software.amazon.awssdk.services.apigatewaymanagementapi.ApiGatewayManagementApiClient;
 import software.amazon.awssdk.services.s3.S3Client;
@@ -15,6 +16,7 @@ import software.amazon.awssdk.services.s3.presigner.S3Presigner;
 import ua.com.pragmasoft.k1te.backend.router.domain.Channels;
 import ua.com.pragmasoft.k1te.backend.router.domain.Messages;
 import ua.com.pragmasoft.k1te.backend.router.domain.Router;
+import ua.com.pragmasoft.k1te.backend.router.infrastructure.ConnectionSubprotocols;
 import ua.com.pragmasoft.k1te.backend.ws.ObjectStore;
 import ua.com.pragmasoft.k1te.backend.ws.WsConnector;
 import ua.com.pragmasoft.k1te.backend.ws.WsConnector.WsConnectionRegistry;
@@ -49,8 +51,11 @@ public class WsConfiguration {
   @Produces
   @ApplicationScoped
   public AwsApiGwConnectionRegistry awsApiGwConnectionRegistry(
-      ApiGatewayManagementApiClient apiClient) {
-    return new AwsApiGwConnectionRegistry(apiClient);
+      ApiGatewayManagementApiClient apiClient,
+      DynamoDbEnhancedClient ddb,
+      @ConfigProperty(name = "serverless.environment") final String serverlessEnvironmentName) {
+    return new AwsApiGwConnectionRegistry(
+        apiClient, new ConnectionSubprotocols(ddb, serverlessEnvironmentName));
   }
 
   @ApplicationScoped
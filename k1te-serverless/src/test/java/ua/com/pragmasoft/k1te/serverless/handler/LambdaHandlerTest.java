@@ -2,12 +2,15 @@
 package ua.com.pragmasoft.k1te.serverless.handler;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInstance;
 import ua.com.pragmasoft.k1te.serverless.handler.event.HttpV2LambdaEvent;
 import ua.com.pragmasoft.k1te.serverless.handler.event.LambdaEvent;
+import ua.com.pragmasoft.k1te.serverless.handler.event.SniffedLambdaEvent;
 import ua.com.pragmasoft.k1te.serverless.handler.event.WebSocketLambdaEvent;
 
 @TestInstance(TestInstance.Lifecycle.PER_CLASS)
@@ -40,4 +43,55 @@ class LambdaHandlerTest {
             LambdaEvent.class);
     Assertions.assertSame(lambdaEvent.getClass(), WebSocketLambdaEvent.class);
   }
+
+  @Test
+  void testSniffHttpEvent() throws IOException {
+    var event = sniff(getClass().getClassLoader().getResourceAsStream("http-event.json"));
+    Assertions.assertEquals(SniffedLambdaEvent.Kind.HTTP, event.kind());
+    Assertions.assertEquals("ANY /test", event.routeKey());
+    Assertions.assertNull(event.connectionId());
+  }
+
+  @Test
+  void testSniffWebSocketConnectEvent() throws IOException {
+    var event = sniff(getClass().getClassLoader().getResourceAsStream("ws-connect-event.json"));
+    Assertions.assertEquals(SniffedLambdaEvent.Kind.WEBSOCKET, event.kind());
+    Assertions.assertEquals("CONNECT", event.eventType());
+    Assertions.assertEquals("$connect", event.routeKey());
+    Assertions.assertEquals("NP5T-c6PvHcCESA=", event.connectionId());
+    Assertions.assertNull(event.body());
+  }
+
+  @Test
+  void testSniffWebSocketMessageEvent() throws IOException {
+    var event = sniff(getClass().getClassLoader().getResourceAsStream("ws-message-event.json"));
+    Assertions.assertEquals(SniffedLambdaEvent.Kind.WEBSOCKET, event.kind());
+    Assertions.assertEquals("MESSAGE", event.eventType());
+    Assertions.assertEquals("NQoEEcatvHcCGwg=", event.connectionId());
+    Assertions.assertEquals("[\"JOIN\",\"HqcMLf1qT4\",null,\"my-chat-123\"]", event.body());
+    Assertions.assertFalse(event.isBase64Encoded());
+  }
+
+  @Test
+  void testSniffBinaryFrameWithParameters() throws IOException {
+    var json =
+        """
+        {"body":"AQID","headers":{"sec-websocket-protocol":"k1te.chat.v2, k1te.chat.v1"},
+         "queryStringParameters":{"c":"channel","m":"member","x":"y"},
+         "requestContext":{"identity":{"sourceIp":"ip"},"eventType":"MESSAGE",
+         "connectionId":"id","routeKey":"$default"},"isBase64Encoded":true}
+        """;
+    var event = sniff(new ByteArrayInputStream(json.getBytes()));
+    Assertions.assertEquals("channel", event.channelName());
+    Assertions.assertEquals("member", event.memberId());
+    Assertions.assertEquals("k1te.chat.v2, k1te.chat.v1", event.subprotocols());
+    Assertions.assertTrue(event.isBase64Encoded());
+    Assertions.assertArrayEquals(new byte[] {1, 2, 3}, event.binaryBody());
+  }
+
+  private SniffedLambdaEvent sniff(InputStream input) throws IOException {
+    try (var parser = objectMapper.getFactory().createParser(input)) {
+      return SniffedLambdaEvent.read(parser);
+    }
+  }
 }